@@ -0,0 +1,12 @@
+package uk.co.alexpringle.crate.benchmark;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+public class BenchmarkCrate extends Crate<BenchmarkItem>
+{
+    public BenchmarkCrate(Context context)
+    {
+        super(context);
+    }
+}
@@ -0,0 +1,60 @@
+package uk.co.alexpringle.crate.benchmark;
+
+import uk.co.alexpringle.crate.HasId;
+
+import java.util.Random;
+
+/**
+ * Item like the functional tests' SimpleItem, with notes to pad it out to a given size
+ */
+public class BenchmarkItem implements HasId
+{
+    private String id;
+    private String name;
+    private String email;
+    private Double balance;
+    private int someInt;
+    private long someLong;
+    private float someFloat;
+    private boolean enabled;
+    private String notes;
+
+    public BenchmarkItem()
+    {
+
+    }
+
+    /**
+     * @param notesLength Length of the notes, which make up most of a large item
+     */
+    public static BenchmarkItem create(String id, int notesLength, Random random)
+    {
+        BenchmarkItem item = new BenchmarkItem();
+        item.id = id;
+        item.name = "Forename Surname" + random.nextInt();
+        item.email = "email@email.com";
+        item.balance = random.nextDouble();
+        item.someInt = random.nextInt();
+        item.someLong = random.nextLong();
+        item.someFloat = random.nextFloat();
+        item.enabled = random.nextBoolean();
+
+        StringBuilder notes = new StringBuilder(notesLength);
+        for(int i = 0; i < notesLength; i++)
+        {
+            notes.append((char) ('a' + random.nextInt(26)));
+        }
+        item.notes = notes.toString();
+        return item;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getNotes()
+    {
+        return notes;
+    }
+}
@@ -0,0 +1,56 @@
+package uk.co.alexpringle.crate.benchmark;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collection;
+
+/**
+ * Runs the benchmarks inside a Robolectric test, as crates need Robolectric's SQLite to run on the JVM. Benchmarks
+ * are not forked for the same reason. Results are written as JSON to target/jmh-result.json.
+ * <pre>
+ * mvn test -Dbenchmark.include=ReadBenchmark.withId -Dbenchmark.rows=1000
+ * </pre>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CrateBenchmarkTest
+{
+    @Test
+    public void runBenchmarks() throws RunnerException
+    {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", CrateBenchmarkTest.class.getPackage().getName() + "\\..*Benchmark"))
+                .forks(0)
+                .warmupIterations(Integer.getInteger("benchmark.warmupIterations", 3))
+                .warmupTime(TimeValue.seconds(Integer.getInteger("benchmark.seconds", 2)))
+                .measurementIterations(Integer.getInteger("benchmark.iterations", 5))
+                .measurementTime(TimeValue.seconds(Integer.getInteger("benchmark.seconds", 2)))
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("benchmark.result", "target/jmh-result.json"));
+
+        String rows = System.getProperty("benchmark.rows");
+        if(rows != null)
+        {
+            options.param("rows", rows.split(","));
+        }
+        String itemBytes = System.getProperty("benchmark.itemBytes");
+        if(itemBytes != null)
+        {
+            options.param("itemBytes", itemBytes.split(","));
+        }
+
+        Collection<RunResult> results = new Runner(options.build()).run();
+        Assert.assertFalse("No benchmarks matched", results.isEmpty());
+    }
+}
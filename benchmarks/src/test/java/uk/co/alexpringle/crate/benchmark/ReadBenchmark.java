@@ -0,0 +1,122 @@
+package uk.co.alexpringle.crate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.robolectric.RuntimeEnvironment;
+import uk.co.alexpringle.crate.Crate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point reads, tag scans and full scans of a crate filled once per trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark
+{
+    private static final String TAG = "TAGGED";
+    private static final int TAGGED_COUNT = 100;
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * Prime step through the ids, so consecutive reads do not hit neighbouring rows
+     */
+    private static final int ID_STEP = 7919;
+
+    @Param({"1000", "10000", "100000"})
+    public int rows;
+
+    @Param({"100", "1000"})
+    public int itemBytes;
+
+    private BenchmarkCrate crate;
+    private String[] ids;
+    private String[] missingIds;
+    private int nextId;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Crate.LOGGING_ENABLED = false;
+        crate = new BenchmarkCrate(RuntimeEnvironment.application);
+        crate.removeAll();
+
+        Random random = new Random(100);
+        ids = new String[rows];
+        missingIds = new String[rows];
+        List<BenchmarkItem> batch = new ArrayList<BenchmarkItem>();
+        for(int i = 0; i < rows; i++)
+        {
+            ids[i] = String.format("item%08d", i);
+            missingIds[i] = String.format("missing%08d", i);
+            batch.add(BenchmarkItem.create(ids[i], itemBytes, random));
+            if(i + 1 == TAGGED_COUNT)
+            {
+                crate.put(batch, TAG);
+                batch.clear();
+            }
+            else if(batch.size() == BATCH_SIZE || i + 1 == rows)
+            {
+                crate.put(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        crate.removeAll();
+        crate.close();
+    }
+
+    private int nextIndex()
+    {
+        nextId = (nextId + ID_STEP) % rows;
+        return nextId;
+    }
+
+    @Benchmark
+    public BenchmarkItem withIdHit()
+    {
+        return crate.withId(ids[nextIndex()]);
+    }
+
+    @Benchmark
+    public BenchmarkItem withIdMiss()
+    {
+        return crate.withId(missingIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean exists()
+    {
+        return crate.exists(ids[nextIndex()]);
+    }
+
+    /**
+     * Reads the {@value #TAGGED_COUNT} tagged items, however many rows the crate has
+     */
+    @Benchmark
+    public List<BenchmarkItem> withTag()
+    {
+        return crate.withTag(TAG);
+    }
+
+    @Benchmark
+    public List<BenchmarkItem> all()
+    {
+        return crate.all();
+    }
+}
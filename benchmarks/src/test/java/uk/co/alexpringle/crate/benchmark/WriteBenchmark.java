@@ -0,0 +1,90 @@
+package uk.co.alexpringle.crate.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.robolectric.RuntimeEnvironment;
+import uk.co.alexpringle.crate.Crate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single and bulk puts. Items are put over and over, so after the first round each put replaces a stored item.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriteBenchmark
+{
+    private static final int ITEM_COUNT = 1000;
+    private static final int BULK_SIZE = 100;
+
+    @Param({"100", "1000"})
+    public int itemBytes;
+
+    private BenchmarkCrate crate;
+    private BenchmarkItem[] items;
+    private List<BenchmarkItem> bulkItems;
+    private int nextItem;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Crate.LOGGING_ENABLED = false;
+        crate = new BenchmarkCrate(RuntimeEnvironment.application);
+
+        Random random = new Random(100);
+        items = new BenchmarkItem[ITEM_COUNT];
+        for(int i = 0; i < ITEM_COUNT; i++)
+        {
+            items[i] = BenchmarkItem.create(String.format("item%08d", i), itemBytes, random);
+        }
+        bulkItems = new ArrayList<BenchmarkItem>();
+        for(int i = 0; i < BULK_SIZE; i++)
+        {
+            bulkItems.add(items[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        crate.removeAll();
+        crate.close();
+    }
+
+    @Benchmark
+    public void put()
+    {
+        crate.put(items[nextItem]);
+        nextItem = (nextItem + 1) % ITEM_COUNT;
+    }
+
+    /**
+     * Reported per item, so it can be compared with single puts
+     */
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public void putBulk()
+    {
+        crate.put(bulkItems);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK_SIZE)
+    public void putBulkWithTag()
+    {
+        crate.put(bulkItems, "BULK");
+    }
+}
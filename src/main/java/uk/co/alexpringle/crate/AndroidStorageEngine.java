@@ -0,0 +1,291 @@
+package uk.co.alexpringle.crate;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores a crate with Android's SQLite
+ */
+class AndroidStorageEngine extends SQLiteStorageEngine
+{
+    private final CrateSQLiteOpenHelper helper;
+    private final int walAutoCheckpointPages;
+    /**
+     * Held around each write, and from the start to the end of a transaction. Taken before waiting for SQLite's
+     * primary connection, so a thread never holds a statement while another thread's transaction holds the connection.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean tablesCreated;
+    private boolean creatingTables;
+
+    AndroidStorageEngine(Context context,String databaseName,String tableName,List<IndexedField> indexedFields,
+                         boolean writeAheadLogging,int walAutoCheckpointPages)
+    {
+        super(tableName, indexedFields);
+        helper = new CrateSQLiteOpenHelper(context, databaseName, writeAheadLogging);
+        this.walAutoCheckpointPages = writeAheadLogging ? walAutoCheckpointPages : 0;
+    }
+
+    /**
+     * @return The open database, with the crate's tables created on first use
+     */
+    private SQLiteDatabase getDatabase()
+    {
+        SQLiteDatabase database = helper.getDatabase();
+        if(!tablesCreated)
+        {
+            createTablesOnce();
+        }
+        return database;
+    }
+
+    /**
+     * In a transaction so every statement runs on the primary connection, rather than a pooled read connection
+     * that would not see the tables being created. Other threads wait until the tables are ready.
+     */
+    private synchronized void createTablesOnce()
+    {
+        if(tablesCreated || creatingTables)
+        {
+            return;
+        }
+        creatingTables = true;
+        try
+        {
+            createTables(walAutoCheckpointPages);
+            tablesCreated = true;
+        }
+        finally
+        {
+            creatingTables = false;
+        }
+    }
+
+    private void createTables(int walAutoCheckpointPages)
+    {
+        beginTransaction();
+        try
+        {
+            if(walAutoCheckpointPages > 0)
+            {
+                // only the primary connection writes, so only it checkpoints
+                queryLong("PRAGMA wal_autocheckpoint=" + walAutoCheckpointPages);
+            }
+            createTables();
+            setTransactionSuccessful();
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public void beginTransaction()
+    {
+        // tables are created before the lock is taken, as creating them takes it too
+        SQLiteDatabase database = getDatabase();
+        writeLock.lock();
+        try
+        {
+            database.beginTransaction();
+        }
+        catch(RuntimeException e)
+        {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful()
+    {
+        getDatabase().setTransactionSuccessful();
+    }
+
+    @Override
+    public void endTransaction()
+    {
+        if(!writeLock.isHeldByCurrentThread())
+        {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        try
+        {
+            getDatabase().endTransaction();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    Rows query(String sql, String... selectionArgs)
+    {
+        final Cursor cursor = getDatabase().rawQuery(sql, selectionArgs);
+        return new Rows()
+        {
+            @Override
+            public boolean moveToNext()
+            {
+                return cursor.moveToNext();
+            }
+
+            @Override
+            public String getString(int column)
+            {
+                return cursor.getString(column);
+            }
+
+            @Override
+            public byte[] getBlob(int column)
+            {
+                return cursor.getBlob(column);
+            }
+
+            @Override
+            public long getLong(int column)
+            {
+                return cursor.getLong(column);
+            }
+
+            @Override
+            public void close()
+            {
+                cursor.close();
+            }
+
+            @Override
+            public boolean isClosed()
+            {
+                return cursor.isClosed();
+            }
+        };
+    }
+
+    @Override
+    Statement prepare(String sql)
+    {
+        return new AndroidStatement(sql);
+    }
+
+    @Override
+    void execute(String sql)
+    {
+        SQLiteDatabase database = getDatabase();
+        writeLock.lock();
+        try
+        {
+            database.execSQL(sql);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        super.close();
+        helper.close();
+    }
+
+    /**
+     * Compiled on first use, and again if the database has been reopened since. Runs with the write lock held, so is
+     * never used by two threads at once.
+     */
+    private final class AndroidStatement implements Statement
+    {
+        private final String sql;
+        private SQLiteDatabase compiledDatabase;
+        private SQLiteStatement statement;
+
+        AndroidStatement(String sql)
+        {
+            this.sql = sql;
+        }
+
+        @Override
+        public int execute(Object... bindArgs)
+        {
+            SQLiteDatabase database = getDatabase();
+            writeLock.lock();
+            try
+            {
+                return bindAndExecute(database, bindArgs);
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+
+        private int bindAndExecute(SQLiteDatabase database, Object... bindArgs)
+        {
+            if(statement == null || compiledDatabase != database)
+            {
+                closeStatement();
+                statement = database.compileStatement(sql);
+                compiledDatabase = database;
+            }
+
+            statement.clearBindings();
+            for(int i = 0; i < bindArgs.length; i++)
+            {
+                Object bindArg = bindArgs[i];
+                if(bindArg == null)
+                {
+                    statement.bindNull(i + 1);
+                }
+                else if(bindArg instanceof byte[])
+                {
+                    statement.bindBlob(i + 1, (byte[]) bindArg);
+                }
+                else if(bindArg instanceof Long || bindArg instanceof Integer)
+                {
+                    statement.bindLong(i + 1, ((Number) bindArg).longValue());
+                }
+                else if(bindArg instanceof Double)
+                {
+                    statement.bindDouble(i + 1, (Double) bindArg);
+                }
+                else
+                {
+                    statement.bindString(i + 1, bindArg.toString());
+                }
+            }
+            return statement.executeUpdateDelete();
+        }
+
+        @Override
+        public void close()
+        {
+            writeLock.lock();
+            try
+            {
+                closeStatement();
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+
+        private void closeStatement()
+        {
+            if(statement != null)
+            {
+                statement.close();
+                statement = null;
+                compiledDatabase = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package uk.co.alexpringle.crate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stores items in a compact binary format. Field values are written in a fixed order without field names, using
+ * variable length integers where possible. Fields of types other than primitives, their boxed types, strings, enums
+ * and byte arrays are written as embedded JSON.
+ * <p>
+ * Every row starts with a hash of the item's fields. Rows written before the fields of the item class changed can
+ * not be decoded, so the crate should be cleared when that happens.
+ * <p>
+ * Items must have a no argument constructor, which may be private.
+ * @param <T> Type of item stored in the crate
+ */
+public class BinaryItemCodec<T> implements ItemCodec<T>
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Gson gson = new Gson();
+
+    private final Class<T> itemClass;
+    private final Constructor<T> constructor;
+    private final FieldCodec[] fieldCodecs;
+    private final int schemaHash;
+
+    /**
+     * @param itemClass Class of item stored in the crate
+     */
+    public BinaryItemCodec(Class<T> itemClass)
+    {
+        this.itemClass = itemClass;
+        try
+        {
+            constructor = itemClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        }
+        catch(NoSuchMethodException e)
+        {
+            throw new IllegalArgumentException(itemClass.getName() + " must have a no argument constructor", e);
+        }
+
+        List<Field> fields = getStoredFields(itemClass);
+        fieldCodecs = new FieldCodec[fields.size()];
+        StringBuilder schema = new StringBuilder();
+        for(int i = 0; i < fields.size(); i++)
+        {
+            Field field = fields.get(i);
+            field.setAccessible(true);
+            fieldCodecs[i] = new FieldCodec(field, getValueCodec(field));
+            schema.append(field.getName()).append(':').append(field.getGenericType()).append(';');
+        }
+        schemaHash = schema.toString().hashCode();
+    }
+
+    @Override
+    public byte[] encode(T item)
+    {
+        Output output = new Output();
+        output.writeFixedInt(schemaHash);
+        try
+        {
+            for(FieldCodec fieldCodec : fieldCodecs)
+            {
+                fieldCodec.write(item, output);
+            }
+        }
+        catch(IllegalAccessException e)
+        {
+            throw new ItemCodecException("Failed to write " + itemClass.getName(), e);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public T decode(byte[] bytes)
+    {
+        Input input = new Input(bytes);
+        if(input.readFixedInt() != schemaHash)
+        {
+            throw new ItemCodecException("Item was not written with the current fields of " + itemClass.getName());
+        }
+
+        try
+        {
+            T item = constructor.newInstance();
+            for(FieldCodec fieldCodec : fieldCodecs)
+            {
+                fieldCodec.read(item, input);
+            }
+            if(!input.isFinished())
+            {
+                throw new ItemCodecException("Unexpected bytes after " + itemClass.getName());
+            }
+            return item;
+        }
+        catch(InstantiationException e)
+        {
+            throw new ItemCodecException("Failed to create " + itemClass.getName(), e);
+        }
+        catch(InvocationTargetException e)
+        {
+            throw new ItemCodecException("Failed to create " + itemClass.getName(), e);
+        }
+        catch(IllegalAccessException e)
+        {
+            throw new ItemCodecException("Failed to read " + itemClass.getName(), e);
+        }
+    }
+
+    /**
+     * @return Instance fields of the class and its superclasses, superclass fields first and each class sorted by name
+     */
+    private static List<Field> getStoredFields(Class<?> itemClass)
+    {
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for(Class<?> currentClass = itemClass; currentClass != null && currentClass != Object.class; currentClass = currentClass.getSuperclass())
+        {
+            hierarchy.add(0, currentClass);
+        }
+
+        List<Field> fields = new ArrayList<Field>();
+        for(Class<?> currentClass : hierarchy)
+        {
+            List<Field> declaredFields = new ArrayList<Field>(Arrays.asList(currentClass.getDeclaredFields()));
+            Collections.sort(declaredFields, new Comparator<Field>()
+            {
+                @Override
+                public int compare(Field lhs, Field rhs)
+                {
+                    return lhs.getName().compareTo(rhs.getName());
+                }
+            });
+            for(Field field : declaredFields)
+            {
+                int modifiers = field.getModifiers();
+                if(!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic())
+                {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ValueCodec getValueCodec(Field field)
+    {
+        Class<?> type = field.getType();
+        if(type == boolean.class || type == Boolean.class)
+        {
+            return BOOLEAN;
+        }
+        if(type == byte.class || type == Byte.class)
+        {
+            return BYTE;
+        }
+        if(type == short.class || type == Short.class)
+        {
+            return SHORT;
+        }
+        if(type == char.class || type == Character.class)
+        {
+            return CHARACTER;
+        }
+        if(type == int.class || type == Integer.class)
+        {
+            return INTEGER;
+        }
+        if(type == long.class || type == Long.class)
+        {
+            return LONG;
+        }
+        if(type == float.class || type == Float.class)
+        {
+            return FLOAT;
+        }
+        if(type == double.class || type == Double.class)
+        {
+            return DOUBLE;
+        }
+        if(type == String.class)
+        {
+            return STRING;
+        }
+        if(type == byte[].class)
+        {
+            return BYTES;
+        }
+        if(type.isEnum())
+        {
+            return new EnumCodec(type);
+        }
+        return new JsonCodec(field.getGenericType());
+    }
+
+    private static final class FieldCodec
+    {
+        private final Field field;
+        private final ValueCodec valueCodec;
+        private final boolean nullable;
+
+        FieldCodec(Field field, ValueCodec valueCodec)
+        {
+            this.field = field;
+            this.valueCodec = valueCodec;
+            this.nullable = !field.getType().isPrimitive();
+        }
+
+        void write(Object item, Output output) throws IllegalAccessException
+        {
+            Object value = field.get(item);
+            if(nullable)
+            {
+                if(value == null)
+                {
+                    output.write(0);
+                    return;
+                }
+                output.write(1);
+            }
+            valueCodec.write(value, output);
+        }
+
+        void read(Object item, Input input) throws IllegalAccessException
+        {
+            if(nullable && input.readByte() == 0)
+            {
+                field.set(item, null);
+                return;
+            }
+            field.set(item, valueCodec.read(input));
+        }
+    }
+
+    private interface ValueCodec
+    {
+        void write(Object value, Output output);
+
+        Object read(Input input);
+    }
+
+    private static final ValueCodec BOOLEAN = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.write((Boolean) value ? 1 : 0);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return input.readByte() != 0;
+        }
+    };
+
+    private static final ValueCodec BYTE = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.write((Byte) value);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return input.readByte();
+        }
+    };
+
+    private static final ValueCodec SHORT = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeVarLong((Short) value);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return (short) input.readVarLong();
+        }
+    };
+
+    private static final ValueCodec CHARACTER = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeVarLong((Character) value);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return (char) input.readVarLong();
+        }
+    };
+
+    private static final ValueCodec INTEGER = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeVarLong((Integer) value);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return (int) input.readVarLong();
+        }
+    };
+
+    private static final ValueCodec LONG = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeVarLong((Long) value);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return input.readVarLong();
+        }
+    };
+
+    private static final ValueCodec FLOAT = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeFixedInt(Float.floatToIntBits((Float) value));
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return Float.intBitsToFloat(input.readFixedInt());
+        }
+    };
+
+    private static final ValueCodec DOUBLE = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            long bits = Double.doubleToLongBits((Double) value);
+            output.writeFixedInt((int) (bits >>> 32));
+            output.writeFixedInt((int) bits);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            long high = input.readFixedInt() & 0xFFFFFFFFL;
+            long low = input.readFixedInt() & 0xFFFFFFFFL;
+            return Double.longBitsToDouble((high << 32) | low);
+        }
+    };
+
+    private static final ValueCodec STRING = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeBytes(((String) value).getBytes(UTF_8));
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return new String(input.readBytes(), UTF_8);
+        }
+    };
+
+    private static final ValueCodec BYTES = new ValueCodec()
+    {
+        @Override
+        public void write(Object value, Output output)
+        {
+            output.writeBytes((byte[]) value);
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            return input.readBytes();
+        }
+    };
+
+    @SuppressWarnings("rawtypes")
+    private static final class EnumCodec implements ValueCodec
+    {
+        private final Class enumClass;
+
+        EnumCodec(Class enumClass)
+        {
+            this.enumClass = enumClass;
+        }
+
+        @Override
+        public void write(Object value, Output output)
+        {
+            STRING.write(((Enum) value).name(), output);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object read(Input input)
+        {
+            String name = (String) STRING.read(input);
+            try
+            {
+                return Enum.valueOf(enumClass, name);
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new ItemCodecException("Unknown " + enumClass.getName() + " constant " + name, e);
+            }
+        }
+    }
+
+    private static final class JsonCodec implements ValueCodec
+    {
+        private final TypeAdapter<Object> typeAdapter;
+
+        @SuppressWarnings("unchecked")
+        JsonCodec(Type type)
+        {
+            typeAdapter = (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(type));
+        }
+
+        @Override
+        public void write(Object value, Output output)
+        {
+            try
+            {
+                STRING.write(typeAdapter.toJson(value), output);
+            }
+            catch(IOException e)
+            {
+                throw new ItemCodecException("Failed to write field as JSON", e);
+            }
+            catch(JsonParseException e)
+            {
+                throw new ItemCodecException("Failed to write field as JSON", e);
+            }
+        }
+
+        @Override
+        public Object read(Input input)
+        {
+            try
+            {
+                return typeAdapter.fromJson((String) STRING.read(input));
+            }
+            catch(IOException e)
+            {
+                throw new ItemCodecException("Failed to read field from JSON", e);
+            }
+            catch(JsonParseException e)
+            {
+                throw new ItemCodecException("Failed to read field from JSON", e);
+            }
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream
+    {
+        Output()
+        {
+            super(64);
+        }
+
+        void writeFixedInt(int value)
+        {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        /**
+         * Zigzag encoded so small negative numbers are short too
+         */
+        void writeVarLong(long value)
+        {
+            long zigzag = (value << 1) ^ (value >> 63);
+            while((zigzag & ~0x7FL) != 0)
+            {
+                write((int) ((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            write((int) zigzag);
+        }
+
+        void writeBytes(byte[] bytes)
+        {
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Input
+    {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        boolean isFinished()
+        {
+            return position == bytes.length;
+        }
+
+        byte readByte()
+        {
+            if(position >= bytes.length)
+            {
+                throw new ItemCodecException("Unexpected end of item");
+            }
+            return bytes[position++];
+        }
+
+        int readFixedInt()
+        {
+            return ((readByte() & 0xFF) << 24) | ((readByte() & 0xFF) << 16) | ((readByte() & 0xFF) << 8) | (readByte() & 0xFF);
+        }
+
+        long readVarLong()
+        {
+            long zigzag = 0;
+            for(int shift = 0; shift < 64; shift += 7)
+            {
+                byte currentByte = readByte();
+                zigzag |= (long) (currentByte & 0x7F) << shift;
+                if((currentByte & 0x80) == 0)
+                {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
+            }
+            throw new ItemCodecException("Malformed variable length number");
+        }
+
+        byte[] readBytes()
+        {
+            long length = readVarLong();
+            if(length < 0 || length > bytes.length - position)
+            {
+                throw new ItemCodecException("Unexpected end of item");
+            }
+            byte[] value = Arrays.copyOfRange(bytes, position, position + (int) length);
+            position += (int) length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package uk.co.alexpringle.crate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals describing how well payload compression works for a crate, used to decide whether it pays off.
+ * See {@link Crate#getCompressionThreshold()}.
+ */
+public final class CompressionStats
+{
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong uncompressedCount = new AtomicLong();
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressedCount = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    CompressionStats()
+    {
+    }
+
+    void recordCompressed(int originalLength, int compressedLength, long nanos)
+    {
+        compressedCount.incrementAndGet();
+        originalBytes.addAndGet(originalLength);
+        compressedBytes.addAndGet(compressedLength);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordUncompressed(long nanos)
+    {
+        uncompressedCount.incrementAndGet();
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordDecompressed(long nanos)
+    {
+        decompressedCount.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return Number of items stored compressed
+     */
+    public long getCompressedCount()
+    {
+        return compressedCount.get();
+    }
+
+    /**
+     * @return Number of items over the threshold that were stored uncompressed because compression did not shrink them
+     */
+    public long getUncompressedCount()
+    {
+        return uncompressedCount.get();
+    }
+
+    /**
+     * @return Compressed size divided by original size for all items stored compressed, or 1 if none have been
+     */
+    public double getCompressionRatio()
+    {
+        long original = originalBytes.get();
+        return original == 0 ? 1 : (double) compressedBytes.get() / original;
+    }
+
+    /**
+     * @return Total time spent compressing items, including attempts that did not shrink them
+     */
+    public long getCompressTimeNanos()
+    {
+        return compressNanos.get();
+    }
+
+    /**
+     * @return Number of compressed items read
+     */
+    public long getDecompressedCount()
+    {
+        return decompressedCount.get();
+    }
+
+    /**
+     * @return Total time spent decompressing items
+     */
+    public long getDecompressTimeNanos()
+    {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CompressionStats{compressed=" + getCompressedCount() + ", uncompressed=" + getUncompressedCount() +
+                ", ratio=" + getCompressionRatio() + ", compressNanos=" + getCompressTimeNanos() +
+                ", decompressed=" + getDecompressedCount() + ", decompressNanos=" + getDecompressTimeNanos() + "}";
+    }
+}
@@ -1,402 +1,2335 @@
 package uk.co.alexpringle.crate;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
 
+import java.io.File;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class Crate<T extends HasId>
 {
     private static String LOG_TAG = "Crate";
+    private static final boolean ANDROID_LOG_AVAILABLE = isAndroidLogAvailable();
+    private static final Logger JVM_LOGGER = ANDROID_LOG_AVAILABLE ? null : Logger.getLogger(LOG_TAG);
 
     /**
-     * Used to enable or disable debug logging
+     * Used to enable or disable debug logging. Log messages, including each item's toString, are only built while
+     * enabled and the platform logs debug messages for the "Crate" tag, see {@link Log#isLoggable(String, int)}, or
+     * the "Crate" logger's level is FINE on the JVM.
      */
     public static boolean LOGGING_ENABLED = true;
 
-    private static final int STORE_VERSION = 1;
-    private static final String DATABASE_NAME = "CRATE_DATABASE";
-    private static final String ID = "ID";
-    private static final String ITEM = "ITEM";
-    private static final String TAG = "TAG";
+    private static volatile CrateListener listener;
 
-    private static HashMap<String,CrateSQLiteOpenHelper> tableSQLiteHelperMap = new HashMap<String, CrateSQLiteOpenHelper>();
+    /**
+     * Version of the SQLite database. Upgrades keep every table, which are migrated by their storage engine.
+     */
+    static final int STORE_VERSION = 1;
+    static final String DATABASE_NAME = "CRATE_DATABASE";
+    static final String ID = "ID";
+    static final String ITEM = "ITEM";
+    static final String TAG = "TAG";
+    static final String FORMAT = "FORMAT";
+    static final int FORMAT_PLAIN = 0;
+    static final int FORMAT_DEFLATE = 1;
+    /**
+     * Stored formats hold the compression in their low bits and the item version above them
+     */
+    static final int FORMAT_VERSION_SHIFT = 8;
+    static final int FORMAT_COMPRESSION_MASK = (1 << FORMAT_VERSION_SHIFT) - 1;
+    static final int MAX_ITEM_VERSION = Integer.MAX_VALUE >> FORMAT_VERSION_SHIFT;
+    static final String TAGS_TABLE_SUFFIX = "_TAGS";
+    static final String TAG_INDEX_SUFFIX = "_TAG_ID_INDEX";
+    static final String LOG_DIRECTORY_SUFFIX = "-log";
+    /**
+     * SQLite's default limit on bound parameters in one statement
+     */
+    static final int MAX_QUERY_PARAMETERS = 999;
+
+    private static final HashMap<String,CrateTable<?>> tableMap = new HashMap<String, CrateTable<?>>();
+    private static final HashMap<Class<?>,ItemCodec<?>> crateItemCodecMap = new HashMap<Class<?>, ItemCodec<?>>();
+    private static final HashMap<Class<?>,List<IndexedField>> crateIndexedFieldsMap = new HashMap<Class<?>, List<IndexedField>>();
+
+    /**
+     * Reports every operation on every crate to a listener, such as {@link CrateMetrics}. With no listener,
+     * operations are not timed or measured.
+     * @param crateListener Listener to register, or null to remove the current one
+     */
+    public static void setListener(CrateListener crateListener)
+    {
+        listener = crateListener;
+    }
+
+    /**
+     * Null if the crate is stored through JDBC instead of on Android
+     */
+    private final Context context;
+    private final File directory;
+    /**
+     * Null once the crate is closed, until it is used again
+     */
+    private volatile StorageEngine storageEngine;
+    private ItemCodec<T> itemCodec;
+    private List<IndexedField> indexedFields;
+    private String tableName;
+    private String tagsTableName;
+    private ItemCache<T> itemCache;
+    private CrateExecutor crateExecutor;
+    private WriteBuffer writeBuffer;
+    private MemoryTable<T> memoryTable;
+    private int compressionThreshold;
+    private int itemVersion;
+    private CompressionStats compressionStats = new CompressionStats();
+
+    /**
+     * @param context Context of the app the crate is stored in
+     */
+    protected Crate(Context context)
+    {
+        this(notNull("context", context), null);
+    }
+
+    /**
+     * Creates a crate that runs on the JVM instead of Android, storing items with the same tables and queries in an
+     * SQLite file through JDBC. Needs the org.xerial sqlite-jdbc driver on the classpath.
+     * @param directory Directory of the crate's database file, see {@link #getDatabaseName()}
+     */
+    protected Crate(File directory)
+    {
+        this(null, notNull("directory", directory));
+    }
+
+    private Crate(Context context, File directory)
+    {
+        tableName = this.getClass().getName();
+        tableName = tableName.replace(".","");
+        tagsTableName = tableName + TAGS_TABLE_SUFFIX;
+        itemCodec = getItemCodec();
+        indexedFields = getIndexedFields();
+        this.context = context;
+        this.directory = directory;
+        compressionThreshold = getCompressionThreshold();
+        if(compressionThreshold < 0)
+        {
+            throw new IllegalArgumentException("Compression threshold must not be negative");
+        }
+        itemVersion = getItemVersion();
+        if(itemVersion < 0 || itemVersion > MAX_ITEM_VERSION)
+        {
+            throw new IllegalArgumentException("Item version must be between 0 and " + MAX_ITEM_VERSION);
+        }
+
+        StorageEngine engine = acquireEngine();
+        try
+        {
+            CrateTable<T> crateTable = getCrateTable();
+            itemCache = crateTable.getItemCache();
+            crateExecutor = crateTable.getCrateExecutor();
+            writeBuffer = crateTable.getWriteBuffer();
+            memoryTable = crateTable.getMemoryTable();
+            if(memoryTable != null)
+            {
+                loadMemoryTable();
+            }
+        }
+        catch(RuntimeException e)
+        {
+            // the instance is never returned, so can not be closed
+            storageEngine = null;
+            releaseEngine(engine);
+            throw e;
+        }
+    }
+
+    /**
+     * Crate instances using the same table share one cache, executor, write buffer and memory table, so a write through
+     * any of them is seen by all, and their asynchronous writes are applied in order.
+     */
+    @SuppressWarnings("unchecked")
+    private CrateTable<T> getCrateTable()
+    {
+        synchronized(tableMap)
+        {
+            CrateTable<T> crateTable = (CrateTable<T>) tableMap.get(tableName);
+            if(crateTable == null)
+            {
+                crateTable = new CrateTable<T>(tableName, getCacheSize(), getWriteBufferSize(), getWriteBufferDelayMillis(),
+                        isHeldInMemory() ? getSnapshotIntervalMillis() : -1);
+                tableMap.put(tableName, crateTable);
+            }
+            return crateTable;
+        }
+    }
+
+    /**
+     * Override to buffer single item puts and removes in memory, so frequent writes to the same items are coalesced
+     * into one transaction. The buffer is flushed once it holds this many items, once the oldest write has waited
+     * {@link #getWriteBufferDelayMillis()}, when {@link #flush()} is called and when the crate is closed.
+     * Buffered writes are seen by every read, but are lost if the process dies before they are flushed.
+     * @return Maximum number of buffered items, or 0 to write items immediately
+     */
+    protected int getWriteBufferSize()
+    {
+        return 0;
+    }
+
+    /**
+     * @return Longest time in milliseconds a write is buffered for, when write buffering is enabled
+     */
+    protected long getWriteBufferDelayMillis()
+    {
+        return 1000;
+    }
+
+    /**
+     * Override to hold every item of a small crate in memory, deserialized, so reads by id, by tag and of all items
+     * never touch storage or the item codec. Items are loaded from the crate's table when it is opened. Changes are
+     * stored in the table by a snapshot taken {@link #getSnapshotIntervalMillis()} after the first unstored change,
+     * when {@link #flush()} is called and when the crate is closed, so are lost if the process dies before then.
+     * Items are shared between callers and should not be modified once put or read. Caching and write buffering
+     * are not used.
+     * @return True to hold the crate's items in memory
+     */
+    protected boolean isHeldInMemory()
+    {
+        return false;
+    }
+
+    /**
+     * @return Longest time in milliseconds changes wait to be stored, when items are held in memory
+     */
+    protected long getSnapshotIntervalMillis()
+    {
+        return 5000;
+    }
+
+    /**
+     * @return Items held in memory, loaded again if the crate was closed, or null if items are read from storage
+     */
+    private MemoryTable<T> getMemoryTable()
+    {
+        if(memoryTable != null && !memoryTable.isLoaded())
+        {
+            loadMemoryTable();
+        }
+        return memoryTable;
+    }
+
+    private void loadMemoryTable()
+    {
+        synchronized(memoryTable.getSnapshotLock())
+        {
+            if(memoryTable.isLoaded())
+            {
+                return;
+            }
+
+            StorageEngine engine = getEngine();
+            HashMap<String,T> storedItems = new HashMap<String, T>();
+            StoredRows rows = engine.readAll();
+            try
+            {
+                while(rows.moveToNext())
+                {
+                    String itemId = rows.getId();
+                    try
+                    {
+                        storedItems.put(itemId, fromStore(rows.getPayload(), rows.getFormat()));
+                    }
+                    catch(ItemCodecException e)
+                    {
+                        error("Failed to read item with id " + itemId, null);
+                        e.printStackTrace();
+                    }
+                }
+            }
+            finally
+            {
+                rows.close();
+            }
+            HashMap<String,List<String>> storedTagIds = new HashMap<String, List<String>>();
+            for(String itemTag : engine.tags())
+            {
+                storedTagIds.put(itemTag, engine.ids(itemTag));
+            }
+
+            memoryTable.load(storedItems, storedTagIds);
+            if(isLoggable())
+            {
+                log("Loaded " + storedItems.size() + " items into memory",null);
+            }
+        }
+    }
+
+    /**
+     * Stores the changes made to items held in memory since the last snapshot, in one transaction
+     * @param engine Engine to store the changes with, or null to use this instance's
+     */
+    private void storeSnapshot(StorageEngine engine)
+    {
+        synchronized(memoryTable.getSnapshotLock())
+        {
+            MemoryTable.Changes<T> changes = memoryTable.takeChanges();
+            if(changes.isEmpty())
+            {
+                return;
+            }
+
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            long bytesWritten = 0;
+            boolean stored = false;
+            try
+            {
+                List<StoredItem> storedItems = new ArrayList<StoredItem>();
+                for(T item : changes.items)
+                {
+                    StoredItem storedItem = item == null ? null : toStore(item, null);
+                    storedItems.add(storedItem);
+                    bytesWritten += storedItem == null ? 0 : storedItem.payload.length;
+                }
+
+                if(engine == null)
+                {
+                    engine = getEngine();
+                }
+                engine.beginTransaction();
+                try
+                {
+                    if(changes.cleared)
+                    {
+                        engine.deleteAll();
+                    }
+                    List<String> removedIds = new ArrayList<String>();
+                    for(int i = 0; i < changes.itemIds.size(); i++)
+                    {
+                        String itemId = changes.itemIds.get(i);
+                        if(storedItems.get(i) == null)
+                        {
+                            removedIds.add(itemId);
+                            continue;
+                        }
+                        engine.store(storedItems.get(i));
+                        // the stored item's tags are replaced with the ones it has in memory
+                        List<String> itemTags = changes.itemTags.get(i);
+                        engine.removeOtherTags(itemId, itemTags.size() == 1 ? itemTags.get(0) : null);
+                        for(String tag : itemTags)
+                        {
+                            engine.addTag(tag, itemId);
+                        }
+                    }
+                    if(!removedIds.isEmpty())
+                    {
+                        engine.deleteWithIds(removedIds);
+                    }
+                    engine.setTransactionSuccessful();
+                }
+                finally
+                {
+                    engine.endTransaction();
+                }
+                stored = true;
+            }
+            finally
+            {
+                if(!stored)
+                {
+                    memoryTable.restoreChanges(changes);
+                }
+            }
+
+            report(operationListener, CrateOperation.FLUSH, startNanos, 0, changes.itemIds.size(), 0, bytesWritten, 0);
+            if(isLoggable())
+            {
+                log("Stored snapshot of " + changes.itemIds.size() + " changed items",null);
+            }
+        }
+    }
+
+    /**
+     * Schedules a snapshot for the first change since the last one
+     */
+    private void scheduleSnapshot()
+    {
+        if(memoryTable.scheduleSnapshot())
+        {
+            scheduleFlush(memoryTable.getSnapshotIntervalMillis());
+        }
+    }
+
+    private StorageEngine getEngine()
+    {
+        StorageEngine engine = storageEngine;
+        return engine != null ? engine : acquireEngine();
+    }
+
+    /**
+     * Instances of the same crate share one engine, opened by the first instance and closed by the last to close
+     */
+    private synchronized StorageEngine acquireEngine()
+    {
+        if(storageEngine == null)
+        {
+            storageEngine = StorageEngineRegistry.acquire(tableName, new StorageEngineRegistry.EngineFactory()
+            {
+                @Override
+                public StorageEngine create()
+                {
+                    StorageEngine engine = createEngine();
+                    if(!indexedFields.isEmpty())
+                    {
+                        try
+                        {
+                            openIndexedFields(engine);
+                        }
+                        catch(RuntimeException e)
+                        {
+                            engine.close();
+                            throw e;
+                        }
+                    }
+                    return engine;
+                }
+            });
+        }
+        return storageEngine;
+    }
+
+    private StorageEngine createEngine()
+    {
+        String databaseName = getDatabaseName();
+        throwIfNull("databaseName", databaseName);
+        if(isLogStructured())
+        {
+            File databaseFile = context != null ? context.getDatabasePath(databaseName) : new File(directory, databaseName);
+            return new LogStorageEngine(new File(databaseFile.getPath() + LOG_DIRECTORY_SUFFIX), tableName);
+        }
+        if(context != null)
+        {
+            return new AndroidStorageEngine(context, databaseName, tableName, indexedFields, isWriteAheadLoggingEnabled(),
+                    getWalAutoCheckpointPages());
+        }
+        return new JdbcStorageEngine(new File(directory, databaseName), tableName, indexedFields, isWriteAheadLoggingEnabled(),
+                getWalAutoCheckpointPages());
+    }
+
+    /**
+     * Stores values for newly indexed fields, filled in from the items already stored
+     */
+    private void openIndexedFields(StorageEngine engine)
+    {
+        engine.beginTransaction();
+        try
+        {
+            if(engine.addIndexedFields())
+            {
+                backfillIndexedFields(engine);
+            }
+            engine.setTransactionSuccessful();
+        }
+        finally
+        {
+            engine.endTransaction();
+        }
+    }
+
+    private void backfillIndexedFields(StorageEngine engine)
+    {
+        int itemsUpdated = 0;
+        StoredRows rows = engine.readAll();
+        try
+        {
+            while(rows.moveToNext())
+            {
+                String itemId = rows.getId();
+                T item;
+                try
+                {
+                    item = fromStore(rows.getPayload(), rows.getFormat());
+                }
+                catch(ItemCodecException e)
+                {
+                    error("Failed to read item with id " + itemId + " to index", null);
+                    e.printStackTrace();
+                    continue;
+                }
+                engine.updateIndexedValues(itemId, readIndexedValues(item));
+                itemsUpdated++;
+            }
+        }
+        finally
+        {
+            rows.close();
+        }
+        if(isLoggable())
+        {
+            log("Indexed " + itemsUpdated + " stored items",null);
+        }
+    }
+
+    /**
+     * Override to store the crate in its own database file, or one shared by a group of crates, instead of the file
+     * shared by all crates. Crates in different files do not wait on each other's writes, and each file can be
+     * measured or vacuumed on its own. Items already stored in the previous file are not moved.
+     * @return Name of the database file the crate is stored in
+     */
+    protected String getDatabaseName()
+    {
+        return DATABASE_NAME;
+    }
+
+    /**
+     * Write-ahead logging lets reads run on their own connections while another thread writes, each read seeing the
+     * database as it was when the read started. Override to use a rollback journal instead, where reads wait for
+     * writes to commit. Applies to the whole database file, so crates sharing a file should agree.
+     * @return True to open the crate's database with write-ahead logging
+     */
+    protected boolean isWriteAheadLoggingEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * Override to change how large the write-ahead log grows before commits copy it back into the database.
+     * Larger logs make frequent small writes cheaper, but slow reads down and use more disk space.
+     * @return Log size in pages that triggers a checkpoint, or 0 to keep the platform default
+     */
+    protected int getWalAutoCheckpointPages()
+    {
+        return 0;
+    }
+
+    /**
+     * Override to store the crate in append-only log files beside its database file, instead of an SQLite table.
+     * Writes only append to the log, so sustained bursts of writes are much cheaper, and every id and tag is indexed
+     * in memory, so reads cost at most one file read per item. The log is compacted in the background once it is
+     * mostly overwritten or removed items. Items can not be found with {@link #query()}, and items already stored
+     * in the table are not moved.
+     * @return True to store the crate in a log
+     */
+    protected boolean isLogStructured()
+    {
+        return false;
+    }
+
+    /**
+     * Override to deflate large items before they are stored. Compressed and uncompressed items can be read from the
+     * same crate, so the threshold can be changed at any time. See {@link #getCompressionStats()} to judge whether
+     * compression pays off for a crate.
+     * @return Minimum encoded size in bytes of items to compress, or 0 to disable compression
+     */
+    protected int getCompressionThreshold()
+    {
+        return 0;
+    }
+
+    /**
+     * Override to keep recently read items in memory, so repeated calls to {@link #withId(String)} skip the
+     * database and deserialization. Cached items are shared between callers and should not be modified.
+     * @return Maximum number of items to cache, or 0 to disable caching
+     */
+    protected int getCacheSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Called before any item is stored in the crate. Useful for tasks such as nulling password fields.
+     * @param item The item to be stored in the crate
+     */
+    protected void beforeSave(T item)
+    {
+    }
+
+    /**
+     * @param itemId Id of item to retrieve
+     * @return Item if exists, otherwise null
+     */
+    public final T withId(String itemId)
+    {
+        throwIfNull("itemId",itemId);
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            T item = memory.get(itemId);
+            report(operationListener, CrateOperation.WITH_ID, startNanos, 0, 0, 0, 0, 0);
+            return item;
+        }
+
+        if(writeBuffer != null)
+        {
+            WriteBuffer.PendingWrite pendingWrite = writeBuffer.get(itemId);
+            if(pendingWrite != null)
+            {
+                T bufferedItem = fromPendingWrite(pendingWrite);
+                report(operationListener, CrateOperation.WITH_ID, startNanos, 0, 0, 0, 0, 0);
+                return bufferedItem;
+            }
+        }
+
+        long cacheGeneration = 0;
+        if(itemCache != null)
+        {
+            T cachedItem = itemCache.get(itemId);
+            if(cachedItem != null)
+            {
+                log("Retrieved cached item ",cachedItem);
+                report(operationListener, CrateOperation.WITH_ID, startNanos, 0, 0, 0, 0, 1);
+                return cachedItem;
+            }
+            cacheGeneration = itemCache.generation();
+        }
+
+        T item = null;
+        int rowsRead = 0;
+        long bytesRead = 0;
+
+        StoredRows rows = getEngine().readWithId(itemId);
+        try
+        {
+            if(rows.moveToNext())
+            {
+                byte[] payload = rows.getPayload();
+                rowsRead = 1;
+                bytesRead = payload.length;
+                item = fromStore(payload, rows.getFormat());
+                log("Retrieved item ",item);
+            }
+            else
+            {
+                if(isLoggable())
+                {
+                    log("No item in crate with id " + itemId,null);
+                }
+            }
+        }
+        catch(ItemCodecException e)
+        {
+            error("Failed to read item with id " + itemId, null);
+            e.printStackTrace();
+        }
+        finally
+        {
+            rows.close();
+        }
+
+        if(item != null && itemCache != null)
+        {
+            itemCache.put(itemId, item, cacheGeneration);
+        }
+
+        report(operationListener, CrateOperation.WITH_ID, startNanos, rowsRead, 0, bytesRead, 0, 0);
+        return item;
+    }
+
+    /**
+     * Reads many items with a query per {@value #MAX_QUERY_PARAMETERS} ids, instead of one per id.
+     * @param itemIds Ids of items to retrieve
+     * @return Items that exist, keyed by id in the order the ids were given
+     */
+    public final Map<String,T> withIds(Collection<String> itemIds)
+    {
+        throwIfNull("itemIds",itemIds);
+
+        LinkedHashSet<String> uniqueItemIds = new LinkedHashSet<String>();
+        for(String itemId : itemIds)
+        {
+            throwIfNull("itemId",itemId);
+            uniqueItemIds.add(itemId);
+        }
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        int rowsRead = 0;
+        long bytesRead = 0;
+        int cacheHits = 0;
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            Map<String,T> items = new LinkedHashMap<String, T>();
+            for(String itemId : uniqueItemIds)
+            {
+                T item = memory.get(itemId);
+                if(item != null)
+                {
+                    items.put(itemId, item);
+                }
+            }
+            report(operationListener, CrateOperation.WITH_IDS, startNanos, 0, 0, 0, 0, 0);
+            return items;
+        }
+
+        HashMap<String,T> foundItems = new HashMap<String, T>();
+        List<String> unreadItemIds = new ArrayList<String>();
+        for(String itemId : uniqueItemIds)
+        {
+            WriteBuffer.PendingWrite pendingWrite = writeBuffer == null ? null : writeBuffer.get(itemId);
+            T cachedItem = pendingWrite == null && itemCache != null ? itemCache.get(itemId) : null;
+            if(pendingWrite != null)
+            {
+                T bufferedItem = fromPendingWrite(pendingWrite);
+                if(bufferedItem != null)
+                {
+                    foundItems.put(itemId, bufferedItem);
+                }
+            }
+            else if(cachedItem != null)
+            {
+                foundItems.put(itemId, cachedItem);
+                cacheHits++;
+            }
+            else
+            {
+                unreadItemIds.add(itemId);
+            }
+        }
+
+        long cacheGeneration = itemCache == null ? 0 : itemCache.generation();
+        StoredRows rows = getEngine().readWithIds(unreadItemIds);
+        try
+        {
+            while(rows.moveToNext())
+            {
+                String itemId = rows.getId();
+                byte[] payload = rows.getPayload();
+                rowsRead++;
+                bytesRead += payload.length;
+                try
+                {
+                    foundItems.put(itemId, fromStore(payload, rows.getFormat()));
+                }
+                catch(ItemCodecException e)
+                {
+                    error("Failed to read item with id " + itemId, null);
+                    e.printStackTrace();
+                }
+            }
+        }
+        finally
+        {
+            rows.close();
+        }
+
+        Map<String,T> items = new LinkedHashMap<String, T>();
+        for(String itemId : uniqueItemIds)
+        {
+            T item = foundItems.get(itemId);
+            if(item != null)
+            {
+                items.put(itemId, item);
+            }
+        }
+        if(itemCache != null)
+        {
+            for(String itemId : unreadItemIds)
+            {
+                T item = items.get(itemId);
+                if(item != null)
+                {
+                    itemCache.put(itemId, item, cacheGeneration);
+                }
+            }
+        }
+        if(isLoggable())
+        {
+            log("Retrieved " + items.size() + " of " + uniqueItemIds.size() + " items by id",null);
+        }
+
+        report(operationListener, CrateOperation.WITH_IDS, startNanos, rowsRead, 0, bytesRead, 0, cacheHits);
+        return items;
+    }
+
+    private T fromPendingWrite(WriteBuffer.PendingWrite pendingWrite)
+    {
+        if(pendingWrite.isRemove())
+        {
+            if(isLoggable())
+            {
+                log("No item in crate with id " + pendingWrite.itemId,null);
+            }
+            return null;
+        }
+
+        try
+        {
+            T item = fromStore(pendingWrite.storedItem.payload, pendingWrite.storedItem.format);
+            log("Retrieved buffered item ",item);
+            return item;
+        }
+        catch(ItemCodecException e)
+        {
+            error("Failed to read item with id " + pendingWrite.itemId, null);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param itemId Id of item
+     * @return True if item exists in the crate
+     */
+    public final boolean exists(String itemId)
+    {
+        throwIfNull("itemId",itemId);
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            report(operationListener, CrateOperation.EXISTS, startNanos, 0, 0, 0, 0, 0);
+            return memory.contains(itemId);
+        }
+
+        if(writeBuffer != null)
+        {
+            WriteBuffer.PendingWrite pendingWrite = writeBuffer.get(itemId);
+            if(pendingWrite != null)
+            {
+                report(operationListener, CrateOperation.EXISTS, startNanos, 0, 0, 0, 0, 0);
+                return !pendingWrite.isRemove();
+            }
+        }
+
+        boolean isInDatabase = getEngine().exists(itemId);
+
+        if(isLoggable())
+        {
+            if(isInDatabase)
+            {
+                log("Item in crate with id " + itemId,null);
+            }
+            else
+            {
+                log("No item in crate with id " + itemId,null);
+            }
+        }
+
+        report(operationListener, CrateOperation.EXISTS, startNanos, 0, 0, 0, 0, 0);
+        return isInDatabase;
+    }
+
+    /**
+     * @param itemTag Tag of items
+     * @return All tagged items or empty list
+     */
+    public final List<T> withTag(String itemTag)
+    {
+        throwIfNull("itemTag",itemTag);
+
+        List<T> items = new ArrayList<T>();
+        for(T item : iterateWithTag(itemTag))
+        {
+            items.add(item);
+        }
+
+        if(isLoggable())
+        {
+            if(items.isEmpty())
+            {
+                log("No items in crate, with tag " + itemTag, null);
+            }
+            else
+            {
+                log("Retrieved " + items.size() + " items with tag " + itemTag,null);
+            }
+        }
+
+        return items;
+    }
+
+    /**
+     * Reads a page of tagged items in id order. Pages are found by seeking past the last id of the previous page,
+     * so later pages cost the same to read as the first.
+     * @param itemTag Tag of items
+     * @param afterId Id of the last item on the previous page, or null for the first page
+     * @param limit Maximum number of items to return
+     * @return Tagged items with ids after afterId, or empty list
+     */
+    public final List<T> withTag(String itemTag, String afterId, int limit)
+    {
+        throwIfNull("itemTag",itemTag);
+        throwIfNotPositive("limit",limit);
+
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        long startNanos = memory != null ? startTiming(operationListener) : startRead(operationListener);
+        CrateIterator<T> iterator = memory != null ?
+                new CrateIterator<T>(this, memory.page(itemTag, afterId, limit), operationListener, startNanos) :
+                new CrateIterator<T>(this, getEngine().readWithTag(itemTag, afterId, limit), operationListener, startNanos);
+
+        List<T> items = new ArrayList<T>();
+        for(T item : iterator)
+        {
+            items.add(item);
+        }
+        if(isLoggable())
+        {
+            log("Retrieved " + items.size() + " items with tag " + itemTag + " after id " + afterId,null);
+        }
+
+        return items;
+    }
+
+    /**
+     * Reads tagged items one at a time instead of loading them all into memory.
+     * The iterator must be closed if it is not iterated to the end.
+     * @param itemTag Tag of items
+     * @return Iterator over all tagged items
+     */
+    public final CrateIterator<T> iterateWithTag(String itemTag)
+    {
+        throwIfNull("itemTag",itemTag);
+
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            return new CrateIterator<T>(this, memory.withTag(itemTag), operationListener, startTiming(operationListener));
+        }
+        long startNanos = startRead(operationListener);
+        return new CrateIterator<T>(this, getEngine().readWithTag(itemTag), operationListener, startNanos);
+    }
+
+    /**
+     * @param itemTags Tags items must all have
+     * @return Items with every one of the tags, in id order, or empty list
+     */
+    public final List<T> withAllTags(Collection<String> itemTags)
+    {
+        List<String> uniqueTags = uniqueTags(itemTags);
+
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        long startNanos = memory != null ? startTiming(operationListener) : startRead(operationListener);
+        CrateIterator<T> iterator = memory != null ?
+                new CrateIterator<T>(this, memory.withAllTags(uniqueTags), operationListener, startNanos) :
+                new CrateIterator<T>(this, getEngine().readWithAllTags(uniqueTags), operationListener, startNanos);
+        List<T> items = new ArrayList<T>();
+        for(T item : iterator)
+        {
+            items.add(item);
+        }
+        if(isLoggable())
+        {
+            log("Retrieved " + items.size() + " items with all tags " + uniqueTags,null);
+        }
+
+        return items;
+    }
+
+    /**
+     * @param itemTags Tags items must have at least one of
+     * @return Items with any of the tags, in id order, or empty list
+     */
+    public final List<T> withAnyTag(Collection<String> itemTags)
+    {
+        List<String> uniqueTags = uniqueTags(itemTags);
+
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        long startNanos = memory != null ? startTiming(operationListener) : startRead(operationListener);
+        CrateIterator<T> iterator = memory != null ?
+                new CrateIterator<T>(this, memory.withAnyTag(uniqueTags), operationListener, startNanos) :
+                new CrateIterator<T>(this, getEngine().readWithAnyTag(uniqueTags), operationListener, startNanos);
+        List<T> items = new ArrayList<T>();
+        for(T item : iterator)
+        {
+            items.add(item);
+        }
+        if(isLoggable())
+        {
+            log("Retrieved " + items.size() + " items with any tag in " + uniqueTags,null);
+        }
+
+        return items;
+    }
+
+    private List<String> uniqueTags(Collection<String> itemTags)
+    {
+        throwIfNull("itemTags",itemTags);
+        if(itemTags.isEmpty() || itemTags.size() > MAX_QUERY_PARAMETERS)
+        {
+            throw new IllegalArgumentException("itemTags must contain between 1 and " + MAX_QUERY_PARAMETERS + " tags");
+        }
+
+        List<String> uniqueTags = new ArrayList<String>();
+        for(String itemTag : new LinkedHashSet<String>(itemTags))
+        {
+            throwIfNull("itemTag",itemTag);
+            uniqueTags.add(itemTag);
+        }
+        return uniqueTags;
+    }
+
+    /**
+     * Adds a tag to a stored item, keeping any tags it already has
+     * @param itemId Id of item to tag
+     * @param itemTag Tag to add
+     */
+    public final void addTag(String itemId, String itemTag)
+    {
+        throwIfNull("itemId",itemId);
+        throwIfNull("itemTag",itemTag);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            memory.addTag(itemId, itemTag);
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.TAG, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        flush();
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        boolean tagAdded = storeTag(itemTag, itemId);
+        report(operationListener, CrateOperation.TAG, startNanos, 0, tagAdded ? 1 : 0, 0, 0, 0);
+        if(isLoggable())
+        {
+            if(tagAdded)
+            {
+                log("Added tag " + itemTag + " to item with id " + itemId,null);
+            }
+            else
+            {
+                log("No item to tag with id " + itemId + " or already tagged " + itemTag,null);
+            }
+        }
+    }
+
+    /**
+     * Removes a tag from an item. The item itself is kept.
+     * @param itemId Id of tagged item
+     * @param itemTag Tag to remove
+     */
+    public final void removeTag(String itemId, String itemTag)
+    {
+        throwIfNull("itemId",itemId);
+        throwIfNull("itemTag",itemTag);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            memory.removeTag(itemId, itemTag);
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.TAG, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        flush();
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        StorageEngine engine = getEngine();
+        int tagsRemoved = engine.removeTag(itemTag, itemId);
+        report(operationListener, CrateOperation.TAG, startNanos, 0, tagsRemoved, 0, 0, 0);
+        if(isLoggable())
+        {
+            log(tagsRemoved == 1 ? "Removed tag " + itemTag + " from item with id " + itemId : "No item with id " + itemId + " tagged " + itemTag,null);
+        }
+    }
+
+    /**
+     * @return Condition on the item table's id matching items with the tag bound to its single parameter
+     */
+    String getTagCondition()
+    {
+        return SQLiteStorageEngine.tagCondition(tagsTableName);
+    }
+
+    /**
+     * Visits tagged items one at a time instead of loading them all into memory.
+     * @param itemTag Tag of items
+     * @param visitor Visitor called with each tagged item
+     */
+    public final void forEachWithTag(String itemTag, ItemVisitor<T> visitor)
+    {
+        throwIfNull("itemTag",itemTag);
+        throwIfNull("visitor",visitor);
+
+        CrateIterator<T> iterator = iterateWithTag(itemTag);
+        try
+        {
+            for(T item : iterator)
+            {
+                visitor.visit(item);
+            }
+        }
+        finally
+        {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Replaces all items with the given tag with new items with the same tag, in one transaction so readers never see
+     * the tag part replaced. Only rows that are new, changed or no longer in the tag are written.
+     * The new items are stored with exactly this tag, so are moved from any other tag. Items no longer in the tag are
+     * removed, unless they have other tags.
+     * @param itemTag Tag to replace
+     * @param items Replacement items to store in the crate
+     */
+    public final void replace(String itemTag, Collection<T> items)
+    {
+        throwIfNull("itemTag",itemTag);
+        throwIfNull("items",items);
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            List<String> itemIds = new ArrayList<String>();
+            List<T> replacementItems = new ArrayList<T>();
+            for(T item : items)
+            {
+                prepare(item);
+                itemIds.add(item.getId());
+                replacementItems.add(item);
+            }
+            memory.replace(itemTag, itemIds, replacementItems);
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.REPLACE, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        int rowsRead = 0;
+        long bytesRead = 0;
+        long bytesWritten = 0;
+
+        LinkedHashMap<String,StoredItem> replacementItems = new LinkedHashMap<String, StoredItem>();
+        for(T item : items)
+        {
+            StoredItem storedItem = encode(item, itemTag);
+            replacementItems.put(storedItem.id, storedItem);
+            bytesWritten += storedItem.payload.length;
+        }
+
+        flush();
+        StorageEngine engine = getEngine();
+        List<String> changedItemIds = new ArrayList<String>();
+        int itemsRemoved = 0;
+        engine.beginTransaction();
+        try
+        {
+            List<String> removedItemIds = new ArrayList<String>();
+            List<String> unchangedItemIds = new ArrayList<String>();
+            StoredRows rows = engine.readWithTag(itemTag);
+            try
+            {
+                while(rows.moveToNext())
+                {
+                    String itemId = rows.getId();
+                    byte[] payload = rows.getPayload();
+                    rowsRead++;
+                    bytesRead += payload.length;
+                    StoredItem replacementItem = replacementItems.get(itemId);
+                    if(replacementItem == null)
+                    {
+                        removedItemIds.add(itemId);
+                    }
+                    else if(replacementItem.format == rows.getFormat() && Arrays.equals(replacementItem.payload, payload))
+                    {
+                        replacementItems.remove(itemId);
+                        unchangedItemIds.add(itemId);
+                    }
+                }
+            }
+            finally
+            {
+                rows.close();
+            }
+
+            itemsRemoved = engine.removeTagAndDeleteUntagged(itemTag, removedItemIds);
+            for(String itemId : unchangedItemIds)
+            {
+                engine.removeOtherTags(itemId, itemTag);
+            }
+            for(StoredItem replacementItem : replacementItems.values())
+            {
+                storeItem(engine, replacementItem);
+            }
+            engine.setTransactionSuccessful();
+            changedItemIds.addAll(removedItemIds);
+            changedItemIds.addAll(replacementItems.keySet());
+        }
+        finally
+        {
+            engine.endTransaction();
+            // only once committed, so a concurrent read can not cache an item as it was before the transaction
+            for(String itemId : changedItemIds)
+            {
+                invalidateCache(itemId);
+            }
+        }
+        if(isLoggable())
+        {
+            log("Replaced items with tag " + itemTag + ", removed " + itemsRemoved + " and stored " + replacementItems.size()
+                    + " of " + items.size(),null);
+        }
+        report(operationListener, CrateOperation.REPLACE, startNanos, rowsRead, itemsRemoved + replacementItems.size(),
+                bytesRead, bytesWritten, 0);
+    }
+
+    /**
+     * Replaces all items with the given tag with a new item with the same tag
+     * @param itemTag Tag to replace
+     * @param item Replacement item to store in the crate
+     */
+    public final void replace(String itemTag, T item)
+    {
+        throwIfNull("itemTag", itemTag);
+        throwIfNull("item",item);
+
+        replace(itemTag, Collections.singletonList(item));
+    }
+
+    /**
+     * @param itemId Id of item to remove
+     */
+    public final void removeWithId(String itemId)
+    {
+        throwIfNull("itemId",itemId);
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            memory.remove(Collections.singletonList(itemId));
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.REMOVE, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        if(writeBuffer != null)
+        {
+            int pendingWriteCount = writeBuffer.remove(itemId);
+            invalidateCache(itemId);
+            if(isLoggable())
+            {
+                log("Buffered removal of item with id " + itemId,null);
+            }
+            report(operationListener, CrateOperation.REMOVE, startNanos, 0, 0, 0, 0, 0);
+            flushIfNeeded(pendingWriteCount);
+            return;
+        }
+
+        StorageEngine engine = getEngine();
+        int itemsRemoved = engine.deleteWithIds(Collections.singletonList(itemId));
+        invalidateCache(itemId);
+        report(operationListener, CrateOperation.REMOVE, startNanos, 0, itemsRemoved, 0, 0, 0);
+        if(isLoggable())
+        {
+            if(itemsRemoved == 1)
+            {
+                log("Removed item with id " + itemId,null);
+            }
+            else
+            {
+                log("No item to remove with id " + itemId,null);
+            }
+        }
+    }
+
+    /**
+     * Removes many items in one transaction, with a statement per {@value #MAX_QUERY_PARAMETERS} ids.
+     * @param itemIds Ids of items to remove
+     */
+    public final void removeWithIds(Collection<String> itemIds)
+    {
+        throwIfNull("itemIds",itemIds);
+
+        List<String> uniqueItemIds = new ArrayList<String>();
+        for(String itemId : new LinkedHashSet<String>(itemIds))
+        {
+            throwIfNull("itemId",itemId);
+            uniqueItemIds.add(itemId);
+        }
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            memory.remove(uniqueItemIds);
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.REMOVE, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        flush();
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        StorageEngine engine = getEngine();
+        int itemsRemoved = 0;
+        engine.beginTransaction();
+        try
+        {
+            itemsRemoved = engine.deleteWithIds(uniqueItemIds);
+            engine.setTransactionSuccessful();
+        }
+        finally
+        {
+            engine.endTransaction();
+            for(String itemId : uniqueItemIds)
+            {
+                invalidateCache(itemId);
+            }
+        }
+        if(isLoggable())
+        {
+            log("Removed " + itemsRemoved + " of " + uniqueItemIds.size() + " items by id",null);
+        }
+        report(operationListener, CrateOperation.REMOVE, startNanos, 0, itemsRemoved, 0, 0, 0);
+    }
+
+    /**
+     * Removes items with the tag, along with any other tags they have
+     * @param itemTag Tag of items to remove
+     */
+    public final void removeWithTag(String itemTag)
+    {
+        throwIfNull("itemTag", itemTag);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            memory.removeWithTag(itemTag);
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.REMOVE, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        flush();
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        StorageEngine engine = getEngine();
+        int itemsRemoved = engine.deleteWithTag(itemTag);
+        invalidateCache();
+        report(operationListener, CrateOperation.REMOVE, startNanos, 0, itemsRemoved, 0, 0, 0);
+        if(isLoggable())
+        {
+            log("Removed " + itemsRemoved + " items with tag " + itemTag,null);
+        }
+    }
+
+    /**
+     * Removes all items from crate
+     */
+    public final void removeAll()
+    {
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            memory.removeAll();
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.REMOVE, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        flush();
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        StorageEngine engine = getEngine();
+        int itemsRemoved = engine.deleteAll();
+        invalidateCache();
+        report(operationListener, CrateOperation.REMOVE, startNanos, 0, itemsRemoved, 0, 0, 0);
+        if(isLoggable())
+        {
+            log("Removed " + itemsRemoved + " items",null);
+        }
+    }
+
+    /**
+     * Counts items without reading them
+     * @return Number of items in crate
+     */
+    public final long count()
+    {
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory == null)
+        {
+            flush();
+        }
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        long itemCount = memory != null ? memory.count(null) : getEngine().count(null);
+        report(operationListener, CrateOperation.COUNT, startNanos, 0, 0, 0, 0, 0);
+        if(isLoggable())
+        {
+            log("Counted " + itemCount + " items",null);
+        }
+        return itemCount;
+    }
+
+    /**
+     * Counts tagged items from the tag index, without reading them
+     * @param itemTag Tag of items
+     * @return Number of items with the tag
+     */
+    public final long count(String itemTag)
+    {
+        throwIfNull("itemTag",itemTag);
+
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory == null)
+        {
+            flush();
+        }
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        long itemCount = memory != null ? memory.count(itemTag) : getEngine().count(itemTag);
+        report(operationListener, CrateOperation.COUNT, startNanos, 0, 0, 0, 0, 0);
+        if(isLoggable())
+        {
+            log("Counted " + itemCount + " items with tag " + itemTag,null);
+        }
+        return itemCount;
+    }
+
+    /**
+     * Reads only the ids of items, so no item is deserialized
+     * @return Ids of all items in crate, in id order
+     */
+    public final List<String> ids()
+    {
+        return queryIds(null);
+    }
+
+    /**
+     * Reads only the ids of tagged items from the tag index, so no item is deserialized
+     * @param itemTag Tag of items
+     * @return Ids of all tagged items, in id order
+     */
+    public final List<String> ids(String itemTag)
+    {
+        throwIfNull("itemTag",itemTag);
+
+        return queryIds(itemTag);
+    }
+
+    /**
+     * @param itemTag Tag of items, or null for all items
+     */
+    private List<String> queryIds(String itemTag)
+    {
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        long startNanos = memory != null ? startTiming(operationListener) : startRead(operationListener);
+        List<String> itemIds = memory != null ? memory.ids(itemTag) : getEngine().ids(itemTag);
+        report(operationListener, CrateOperation.IDS, startNanos, itemIds.size(), 0, 0, 0, 0);
+        if(isLoggable())
+        {
+            log("Retrieved " + itemIds.size() + " ids",null);
+        }
+        return itemIds;
+    }
+
+    /**
+     * @return All items in crate
+     */
+    public final List<T> all()
+    {
+        List<T> items = new ArrayList<T>();
+        for(T item : iterateAll())
+        {
+            items.add(item);
+        }
+
+        if(isLoggable())
+        {
+            if(items.isEmpty())
+            {
+                log("No items in crate",null);
+            }
+            else
+            {
+                log("Retrieved " + items.size() + " items", null);
+            }
+        }
+
+        return items;
+    }
+
+    /**
+     * Reads a page of items in id order. Pages are found by seeking past the last id of the previous page,
+     * so later pages cost the same to read as the first.
+     * @param afterId Id of the last item on the previous page, or null for the first page
+     * @param limit Maximum number of items to return
+     * @return Items with ids after afterId, or empty list
+     */
+    public final List<T> all(String afterId, int limit)
+    {
+        throwIfNotPositive("limit",limit);
+
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        long startNanos = memory != null ? startTiming(operationListener) : startRead(operationListener);
+        CrateIterator<T> iterator = memory != null ?
+                new CrateIterator<T>(this, memory.page(null, afterId, limit), operationListener, startNanos) :
+                new CrateIterator<T>(this, getEngine().readPage(afterId, limit), operationListener, startNanos);
+
+        List<T> items = new ArrayList<T>();
+        for(T item : iterator)
+        {
+            items.add(item);
+        }
+        if(isLoggable())
+        {
+            log("Retrieved " + items.size() + " items after id " + afterId,null);
+        }
+
+        return items;
+    }
+
+    /**
+     * Reads items one at a time instead of loading the whole crate into memory.
+     * The iterator must be closed if it is not iterated to the end.
+     * @return Iterator over all items in crate
+     */
+    public final CrateIterator<T> iterateAll()
+    {
+        CrateListener operationListener = listener;
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            return new CrateIterator<T>(this, memory.all(), operationListener, startTiming(operationListener));
+        }
+        long startNanos = startRead(operationListener);
+        return new CrateIterator<T>(this, getEngine().readAll(), operationListener, startNanos);
+    }
+
+    /**
+     * Visits items one at a time instead of loading the whole crate into memory.
+     * @param visitor Visitor called with each item in crate
+     */
+    public final void forEach(ItemVisitor<T> visitor)
+    {
+        throwIfNull("visitor",visitor);
+
+        CrateIterator<T> iterator = iterateAll();
+        try
+        {
+            for(T item : iterator)
+            {
+                visitor.visit(item);
+            }
+        }
+        finally
+        {
+            iterator.close();
+        }
+    }
+
+    /**
+     * @param item Item to store in crate
+     */
+    public final void put(T item)
+    {
+        put(item,null,true);
+    }
+
+    /**
+     * Stores an item with exactly this tag, so an item put again with another tag is moved to it. Use
+     * {@link #addTag(String, String)} to give an item more than one tag.
+     * @param item Item to store in crate
+     * @param tag Tag for item
+     */
+    public final void put(T item, String tag)
+    {
+        put(item, tag, true);
+    }
+
+    private void put(T item, String tag, boolean log)
+    {
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            prepare(item);
+            memory.put(item.getId(), item, tag);
+            scheduleSnapshot();
+            // counted as rows written when the snapshot is stored
+            report(operationListener, CrateOperation.PUT, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        StoredItem storedItem = encode(item, tag);
+        int pendingWriteCount = 0;
+        if(writeBuffer != null)
+        {
+            pendingWriteCount = writeBuffer.put(storedItem);
+        }
+        else if(tag == null)
+        {
+            storeItem(getEngine(), storedItem);
+        }
+        else
+        {
+            StorageEngine engine = getEngine();
+            engine.beginTransaction();
+            try
+            {
+                storeItem(engine, storedItem);
+                engine.setTransactionSuccessful();
+            }
+            finally
+            {
+                engine.endTransaction();
+            }
+        }
+        invalidateCache(item.getId());
+        // buffered items are counted as rows written when flushed
+        report(operationListener, CrateOperation.PUT, startNanos, 0, writeBuffer != null ? 0 : 1, 0, storedItem.payload.length, 0);
+
+        if(log && isLoggable())
+        {
+            if(tag == null)
+            {
+                log(writeBuffer != null ? "Buffered item" : "Stored item",item);
+            }
+            else
+            {
+                log((writeBuffer != null ? "Buffered item with tag " : "Stored item with tag ") + tag,item);
+            }
+        }
+
+        if(writeBuffer != null)
+        {
+            flushIfNeeded(pendingWriteCount);
+        }
+    }
+
+    /**
+     *
+     * @param items Items to store in crate
+     */
+    public final void put(Collection<T> items)
+    {
+        throwIfNull("items", items);
+        putAll(items, null);
+        if(isLoggable())
+        {
+            log("Stored " + items.size() + " items", null);
+        }
+    }
+
+    /**
+     * Stores items with exactly this tag, see {@link #put(HasId, String)}
+     * @param items Items to store in crate
+     * @param tag Tag for items
+     */
+    public final void put(Collection<T> items, String tag)
+    {
+        throwIfNull("items", items);
+        throwIfNull("tag", tag);
+        putAll(items, tag);
+        if(isLoggable())
+        {
+            log("Stored " + items.size() + " items with tag " + tag, null);
+        }
+    }
+
+    private void putAll(Collection<T> items, String tag)
+    {
+        MemoryTable<T> memory = getMemoryTable();
+        if(memory != null)
+        {
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            List<String> itemIds = new ArrayList<String>();
+            List<T> newItems = new ArrayList<T>();
+            for(T currentItem : items)
+            {
+                prepare(currentItem);
+                itemIds.add(currentItem.getId());
+                newItems.add(currentItem);
+            }
+            memory.putAll(itemIds, newItems, tag);
+            scheduleSnapshot();
+            report(operationListener, CrateOperation.PUT_ALL, startNanos, 0, 0, 0, 0, 0);
+            return;
+        }
+
+        flush();
+        CrateListener operationListener = listener;
+        long startNanos = startTiming(operationListener);
+        long bytesWritten = 0;
+        StorageEngine engine = getEngine();
+        engine.beginTransaction();
+        try
+        {
+            for(T currentItem : items)
+            {
+                StoredItem storedItem = encode(currentItem, tag);
+                storeItem(engine, storedItem);
+                bytesWritten += storedItem.payload.length;
+            }
+            engine.setTransactionSuccessful();
+        }
+        finally
+        {
+            engine.endTransaction();
+            // only once committed, so a concurrent read can not cache the item as it was before the transaction
+            for(T currentItem : items)
+            {
+                if(currentItem != null)
+                {
+                    invalidateCache(currentItem.getId());
+                }
+            }
+        }
+        report(operationListener, CrateOperation.PUT_ALL, startNanos, 0, items.size(), 0, bytesWritten, 0);
+    }
+
+    private StoredItem encode(T item, String tag)
+    {
+        prepare(item);
+        return toStore(item, tag);
+    }
+
+    private void prepare(T item)
+    {
+        throwIfNull("item",item);
+        beforeSave(item);
+    }
+
+    private StoredItem toStore(T item, String tag)
+    {
+        byte[] payload = itemCodec.encode(item);
+        int format = FORMAT_PLAIN;
+        if(compressionThreshold > 0 && payload.length >= compressionThreshold)
+        {
+            long startNanos = System.nanoTime();
+            byte[] compressedPayload = PayloadCompression.compress(payload);
+            if(compressedPayload == null)
+            {
+                compressionStats.recordUncompressed(System.nanoTime() - startNanos);
+            }
+            else
+            {
+                compressionStats.recordCompressed(payload.length, compressedPayload.length, System.nanoTime() - startNanos);
+                payload = compressedPayload;
+                format = FORMAT_DEFLATE;
+            }
+        }
+
+        format |= itemVersion << FORMAT_VERSION_SHIFT;
+        return new StoredItem(item.getId(), payload, format, tag, readIndexedValues(item));
+    }
+
+    private Object[] readIndexedValues(T item)
+    {
+        Object[] indexedValues = new Object[indexedFields.size()];
+        for(int i = 0; i < indexedValues.length; i++)
+        {
+            indexedValues[i] = indexedFields.get(i).read(item);
+        }
+        return indexedValues;
+    }
+
+    /**
+     * Stores the item with exactly its tag, or keeping the tags it has if it is untagged. Callers must hold a
+     * transaction if the item is tagged.
+     */
+    private void storeItem(StorageEngine engine, StoredItem storedItem)
+    {
+        engine.store(storedItem);
+        if(storedItem.tag != null)
+        {
+            engine.removeOtherTags(storedItem.id, storedItem.tag);
+            engine.addTag(storedItem.tag, storedItem.id);
+        }
+    }
+
+    /**
+     * @return True if the tag was added, false if the item already had it or does not exist
+     */
+    private boolean storeTag(String itemTag, String itemId)
+    {
+        return getEngine().addTag(itemTag, itemId);
+    }
+
+    /**
+     * Flushes a full buffer straight away, or schedules a flush for the first write into an empty buffer
+     */
+    private void flushIfNeeded(int pendingWriteCount)
+    {
+        if(pendingWriteCount >= writeBuffer.getMaxSize())
+        {
+            flush();
+        }
+        else if(pendingWriteCount == 1)
+        {
+            scheduleFlush(writeBuffer.getDelayMillis());
+        }
+    }
+
+    private void scheduleFlush(long delayMillis)
+    {
+        crateExecutor.submitWriteLater(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                flushScheduled();
+                return null;
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Flushes through the table's shared engine, as the instance that scheduled the flush may have been closed since.
+     * Does nothing if every instance has been closed, as the last to close flushed the table.
+     */
+    private void flushScheduled()
+    {
+        StorageEngine engine = StorageEngineRegistry.acquireIfOpen(tableName);
+        if(engine == null)
+        {
+            return;
+        }
+        try
+        {
+            flush(engine);
+        }
+        finally
+        {
+            releaseEngine(engine);
+        }
+    }
+
+    /**
+     * Stores buffered writes, or the changes to items held in memory, in one transaction. Call at points where writes
+     * must survive the process dying. Does nothing if writes are stored immediately, see {@link #getWriteBufferSize()}
+     * and {@link #isHeldInMemory()}.
+     */
+    public final void flush()
+    {
+        flush(null);
+    }
+
+    /**
+     * @param engine Engine to store the writes with, or null to use this instance's
+     */
+    private void flush(StorageEngine engine)
+    {
+        if(memoryTable != null)
+        {
+            storeSnapshot(engine);
+            return;
+        }
+        if(writeBuffer == null)
+        {
+            return;
+        }
+
+        synchronized(writeBuffer.getFlushLock())
+        {
+            List<WriteBuffer.PendingWrite> pendingWrites = writeBuffer.getPendingWrites();
+            if(pendingWrites.isEmpty())
+            {
+                return;
+            }
+
+            CrateListener operationListener = listener;
+            long startNanos = startTiming(operationListener);
+            if(engine == null)
+            {
+                engine = getEngine();
+            }
+            engine.beginTransaction();
+            try
+            {
+                for(WriteBuffer.PendingWrite pendingWrite : pendingWrites)
+                {
+                    if(pendingWrite.isRemove())
+                    {
+                        engine.deleteWithIds(Collections.singletonList(pendingWrite.itemId));
+                    }
+                    else
+                    {
+                        engine.store(pendingWrite.storedItem);
+                        if(pendingWrite.replacesStoredTags)
+                        {
+                            engine.removeOtherTags(pendingWrite.itemId, null);
+                        }
+                        for(String tag : pendingWrite.tags)
+                        {
+                            engine.addTag(tag, pendingWrite.itemId);
+                        }
+                    }
+                }
+                engine.setTransactionSuccessful();
+            }
+            finally
+            {
+                engine.endTransaction();
+            }
+
+            // only once committed, so a read between the two can not miss the writes
+            for(WriteBuffer.PendingWrite pendingWrite : pendingWrites)
+            {
+                invalidateCache(pendingWrite.itemId);
+            }
+            int remainingWriteCount = writeBuffer.removeFlushed(pendingWrites);
+            // payloads were counted as bytes written when they were buffered
+            report(operationListener, CrateOperation.FLUSH, startNanos, 0, pendingWrites.size(), 0, 0, 0);
+            if(isLoggable())
+            {
+                log("Flushed " + pendingWrites.size() + " buffered writes",null);
+            }
 
-    private CrateSQLiteOpenHelper crateSQLiteOpenHelper;
-    private Gson gson;
-    private String tableName;
+            if(remainingWriteCount > 0)
+            {
+                scheduleFlush(writeBuffer.getDelayMillis());
+            }
+        }
+    }
 
-    protected Crate(Context context)
+    private void invalidateCache(String itemId)
     {
-        tableName = this.getClass().getName();
-        tableName = tableName.replace(".","");
-        crateSQLiteOpenHelper = tableSQLiteHelperMap.get(tableName);
-        if(crateSQLiteOpenHelper == null)
+        if(itemCache != null)
         {
-            crateSQLiteOpenHelper = new CrateSQLiteOpenHelper(context, tableName);
-            tableSQLiteHelperMap.put(tableName,crateSQLiteOpenHelper);
+            itemCache.invalidate(itemId);
         }
-        gson = new Gson();
     }
 
+    private void invalidateCache()
+    {
+        if(itemCache != null)
+        {
+            itemCache.invalidateAll();
+        }
+    }
 
     /**
-     * Called before any item is stored in the crate. Useful for tasks such as nulling password fields.
-     * @param item The item to be stored in the crate
+     * @return Number of {@link #withId(String)} calls answered from the cache, shared by all instances of this crate
      */
-    protected void beforeSave(T item)
+    public final long getCacheHitCount()
     {
+        return itemCache == null ? 0 : itemCache.getHitCount();
     }
 
     /**
-     * @param itemId Id of item to retrieve
-     * @return Item if exists, otherwise null
+     * @return Number of {@link #withId(String)} calls that had to read from the database while caching was enabled
      */
-    public final T withId(String itemId)
+    public final long getCacheMissCount()
     {
-        throwIfNull("itemId",itemId);
-
-        SQLiteDatabase database = crateSQLiteOpenHelper.getReadableDatabase();
-        T item = null;
+        return itemCache == null ? 0 : itemCache.getMissCount();
+    }
 
-        Cursor cursor = database.rawQuery("SELECT * FROM " + tableName + " WHERE " + ID + " =?", new String[]{itemId});
-        if(cursor != null && cursor.moveToFirst())
+    /**
+     * Stores an item on the crate's writer thread. Asynchronous writes are applied in the order they are made.
+     * @param item Item to store in crate
+     * @return Future completed once the item is stored
+     */
+    public final Future<Void> putAsync(final T item)
+    {
+        throwIfNull("item",item);
+        return crateExecutor.submitWrite(new Callable<Void>()
         {
-            try
+            @Override
+            public Void call()
             {
-                item = gson.fromJson(cursor.getString(cursor.getColumnIndex(ITEM)), getStoreType());
-                log("Retrieved item ",item);
-            }
-            catch(JsonSyntaxException e)
-            {
-                error("Failed to read item with id " + itemId, null);
-                e.printStackTrace();
-            }
-            finally
-            {
-                cursor.close();
+                put(item);
+                return null;
             }
-        }
-        else
-        {
-            log("No item in crate with id " + itemId,null);
-        }
-
-        return item;
+        });
     }
 
     /**
-     * @param itemId Id of item
-     * @return True if item exists in the crate
+     * Stores a tagged item on the crate's writer thread. Asynchronous writes are applied in the order they are made.
+     * @param item Item to store in crate
+     * @param tag Tag for item
+     * @return Future completed once the item is stored
      */
-    public final boolean exists(String itemId)
+    public final Future<Void> putAsync(final T item, final String tag)
     {
-        throwIfNull("itemId",itemId);
-        return exists(itemId,true,null);
+        throwIfNull("item",item);
+        return crateExecutor.submitWrite(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                put(item, tag);
+                return null;
+            }
+        });
     }
 
-    private boolean exists(String itemId,boolean log,SQLiteDatabase pDatabase)
+    /**
+     * Stores items on the crate's writer thread. Asynchronous writes are applied in the order they are made.
+     * @param items Items to store in crate
+     * @return Future completed once the items are stored
+     */
+    public final Future<Void> putAsync(final Collection<T> items)
     {
-        SQLiteDatabase database = pDatabase;
-        if(pDatabase == null)
+        throwIfNull("items",items);
+        return crateExecutor.submitWrite(new Callable<Void>()
         {
-            database = crateSQLiteOpenHelper.getReadableDatabase();
-        }
-
-        boolean isInDatabase = DatabaseUtils.queryNumEntries(database, tableName, ID + "=?", new String[]{itemId}) > 0;
+            @Override
+            public Void call()
+            {
+                put(items);
+                return null;
+            }
+        });
+    }
 
-        if(pDatabase == null)
+    /**
+     * Stores tagged items on the crate's writer thread. Asynchronous writes are applied in the order they are made.
+     * @param items Items to store in crate
+     * @param tag Tag for items
+     * @return Future completed once the items are stored
+     */
+    public final Future<Void> putAsync(final Collection<T> items, final String tag)
+    {
+        throwIfNull("items",items);
+        throwIfNull("tag",tag);
+        return crateExecutor.submitWrite(new Callable<Void>()
         {
-            database.close();
-        }
+            @Override
+            public Void call()
+            {
+                put(items, tag);
+                return null;
+            }
+        });
+    }
 
-        if(log)
+    /**
+     * Removes an item on the crate's writer thread. Asynchronous writes are applied in the order they are made.
+     * @param itemId Id of item to remove
+     * @return Future completed once the item is removed
+     */
+    public final Future<Void> removeAsync(final String itemId)
+    {
+        throwIfNull("itemId",itemId);
+        return crateExecutor.submitWrite(new Callable<Void>()
         {
-            if(isInDatabase)
+            @Override
+            public Void call()
             {
-                log("No item in crate with id " + itemId,null);
+                removeWithId(itemId);
+                return null;
             }
-            else
+        });
+    }
+
+    /**
+     * Reads an item on a background thread, after any asynchronous writes made before this call have been applied.
+     * @param itemId Id of item to retrieve
+     * @return Future of the item if exists, otherwise of null
+     */
+    public final Future<T> withIdAsync(final String itemId)
+    {
+        throwIfNull("itemId",itemId);
+        return crateExecutor.submitRead(new Callable<T>()
+        {
+            @Override
+            public T call()
             {
-                log("Item in crate with id " + itemId,null);
+                return withId(itemId);
             }
-        }
-
-        return isInDatabase;
+        });
     }
 
     /**
+     * Reads tagged items on a background thread, after any asynchronous writes made before this call have been applied.
      * @param itemTag Tag of items
-     * @return All tagged items or empty list
+     * @return Future of all tagged items or empty list
      */
-    public final List<T> withTag(String itemTag)
+    public final Future<List<T>> withTagAsync(final String itemTag)
     {
         throwIfNull("itemTag",itemTag);
-
-        SQLiteDatabase database = crateSQLiteOpenHelper.getReadableDatabase();
-
-        List<T> items = new ArrayList<T>();
-
-        Cursor cursor = database.rawQuery("SELECT * FROM " + tableName + " WHERE " + TAG + " =?", new String[]{itemTag});
-        if(cursor != null && cursor.moveToFirst())
+        return crateExecutor.submitRead(new Callable<List<T>>()
         {
-            do
+            @Override
+            public List<T> call()
             {
-                T newItem = gson.fromJson(cursor.getString(cursor.getColumnIndex(ITEM)), getStoreType());
-                items.add(newItem);
+                return withTag(itemTag);
             }
-            while(cursor.moveToNext());
-            cursor.close();
-            log("Retrieved " + items.size() + " items with tag " + itemTag,null);
-        }
-        else
-        {
-            log("No items in crate, with tag " + itemTag, null);
-        }
-
-        return items;
+        });
     }
 
     /**
-     * Replaces all items with the given tag with new items with the same tag
-     * @param itemTag Tag to replace
-     * @param items Replacement items to store in the crate
+     * Starts a query on the item fields marked {@link Indexed}. Queries run in SQL, so only matching items are read.
+     * @return Query matching all items until conditions are added
+     * @throws UnsupportedOperationException If the crate is stored in a log, see {@link #isLogStructured()}
      */
-    public final void replace(String itemTag, Collection<T> items)
+    public final CrateQuery<T> query()
     {
-        throwIfNull("itemTag",itemTag);
-        throwIfNull("items",items);
+        if(isLogStructured())
+        {
+            throw new UnsupportedOperationException("Crates stored in a log can not be queried");
+        }
+        return new CrateQuery<T>(this);
+    }
 
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        int itemsRemoved = database.delete(tableName, TAG + "=?", new String[]{itemTag});
-        log("Removed " + itemsRemoved + " items with tag " + itemTag,null);
-        database.close();
-        put(items, itemTag);
+    CrateIterator<T> queryItems(String clauses, String... selectionArgs)
+    {
+        CrateListener operationListener = listener;
+        long startNanos = startRead(operationListener);
+        return new CrateIterator<T>(this, getEngine().readWhere(clauses, selectionArgs), operationListener, startNanos);
     }
 
     /**
-     * Replaces all items with the given tag with a new item with the same tag
-     * @param itemTag Tag to replace
-     * @param item Replacement item to store in the crate
+     * Stores buffered writes, so the read sees them
+     * @return Start time of the read, see {@link #startTiming(CrateListener)}
      */
-    public final void replace(String itemTag, T item)
+    private long startRead(CrateListener operationListener)
     {
-        throwIfNull("itemTag", itemTag);
-        throwIfNull("item",item);
-
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        int itemsRemoved = database.delete(tableName, TAG + "=?", new String[]{itemTag});
-        log("Removed " + itemsRemoved + " items with tag " + itemTag,null);
-        put(item, itemTag,true,database);
-        database.close();
+        flush();
+        return startTiming(operationListener);
     }
 
-    /**
-     * @param itemId Id of item to remove
-     */
-    public final void removeWithId(String itemId)
+    T fromStore(byte[] payload, int format)
     {
-        throwIfNull("itemId",itemId);
+        int compression = format & FORMAT_COMPRESSION_MASK;
+        if(compression == FORMAT_DEFLATE)
+        {
+            long startNanos = System.nanoTime();
+            payload = PayloadCompression.decompress(payload);
+            compressionStats.recordDecompressed(System.nanoTime() - startNanos);
+        }
+        else if(compression != FORMAT_PLAIN)
+        {
+            throw new ItemCodecException("Unknown stored item format " + format);
+        }
 
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        int itemsRemoved = database.delete(tableName, ID + "=?", new String[]{itemId});
-        database.close();
-        if(itemsRemoved == 1)
+        int storedVersion = format >>> FORMAT_VERSION_SHIFT;
+        if(storedVersion > itemVersion)
         {
-            log("Removed item with id " + itemId,null);
+            throw new ItemCodecException("Item stored with version " + storedVersion + " is newer than version " + itemVersion);
         }
-        else
+        // older items are upgraded one version at a time, and stored in the current version when next put
+        for(int version = storedVersion; version < itemVersion; version++)
         {
-            log("No item to remove with id " + itemId,null);
+            payload = upcast(payload, version);
+            if(payload == null)
+            {
+                throw new ItemCodecException("Upcast from item version " + version + " returned null");
+            }
         }
+        return itemCodec.decode(payload);
     }
 
     /**
-     * @param itemTag Tag of items to remove
+     * @return Compression totals for items stored and read through this crate instance
      */
-    public final void removeWithTag(String itemTag)
+    public final CompressionStats getCompressionStats()
     {
-        throwIfNull("itemTag", itemTag);
-
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        int itemsRemoved = database.delete(tableName, TAG + "=?", new String[]{itemTag});
-        database.close();
-        log("Removed " + itemsRemoved + "items with tag " + itemTag,null);
+        return compressionStats;
     }
 
     /**
-     * Removes all items from crate
+     * @throws IllegalArgumentException If the item has no field of this name marked {@link Indexed}
      */
-    public final void removeAll()
+    IndexedField getIndexedField(String fieldName)
     {
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        int itemsRemoved = database.delete(tableName, null, null);
-        database.close();
-        log("Removed " + itemsRemoved + " items",null);
+        for(IndexedField indexedField : indexedFields)
+        {
+            if(indexedField.getName().equals(fieldName))
+            {
+                return indexedField;
+            }
+        }
+        throw new IllegalArgumentException(fieldName + " is not an indexed field");
     }
 
     /**
-     * @return All items in crate
+     * Override to store items in a format other than JSON, for example with a {@link BinaryItemCodec}.
+     * Called once per crate class. Items already stored with a different codec will no longer be readable.
+     * @param itemType Type of item stored in the crate
+     * @return Codec used to store and read items
      */
-    public final List<T> all()
+    protected ItemCodec<T> createItemCodec(Type itemType)
     {
-        SQLiteDatabase database = crateSQLiteOpenHelper.getReadableDatabase();
-
-        List<T> items = new ArrayList<T>();
-
-        Cursor cursor = database.rawQuery("SELECT * FROM " + tableName, new String[]{});
-        if(cursor != null && cursor.moveToFirst())
-        {
-            do
-            {
-                T newItem = gson.fromJson(cursor.getString(cursor.getColumnIndex(ITEM)), getStoreType());
-                items.add(newItem);
-            }
-            while(cursor.moveToNext());
-            cursor.close();
-            log("Retrieved " + items.size() + " items", null);
-        }
-        else
-        {
-            log("No items in crate",null);
-        }
+        return new GsonItemCodec<T>(itemType);
+    }
 
-        return items;
+    /**
+     * Override when the stored form of items changes in a way the codec can not read, such as a renamed field, and
+     * implement {@link #upcast(byte[], int)}. Items are stored with the version current when they were put, and
+     * items of earlier versions are upcast as they are read, so existing items are kept without rewriting them all.
+     * @return Version of the stored item format, starting at 0
+     */
+    protected int getItemVersion()
+    {
+        return 0;
     }
 
     /**
-     * @param item Item to store in crate
+     * Converts an encoded item of an earlier version to the next version, see {@link #getItemVersion()}.
+     * @param payload Item encoded by the crate's codec in the stored version
+     * @param storedVersion Version the payload was stored with
+     * @return Item encoded in version storedVersion + 1
+     * @throws ItemCodecException If the item can not be converted
      */
-    public final void put(T item)
+    protected byte[] upcast(byte[] payload, int storedVersion)
     {
-        put(item,null,true,null);
+        throw new ItemCodecException("No upcast from item version " + storedVersion);
     }
 
     /**
-     *
-     * @param item Item to store in crate
-     * @param tag Tag for item
+     * Resolves the item type and creates its codec once per crate class, instead of on every read and write.
      */
-    public final void put(T item, String tag)
+    @SuppressWarnings("unchecked")
+    private ItemCodec<T> getItemCodec()
     {
-        put(item, tag, true,null);
+        synchronized(crateItemCodecMap)
+        {
+            ItemCodec<T> itemCodec = (ItemCodec<T>) crateItemCodecMap.get(getClass());
+            if(itemCodec == null)
+            {
+                itemCodec = createItemCodec(getStoreType(getClass()));
+                throwIfNull("itemCodec", itemCodec);
+                crateItemCodecMap.put(getClass(), itemCodec);
+            }
+            return itemCodec;
+        }
     }
 
-    private void put(T item, String tag, boolean log,SQLiteDatabase pDatabase)
+    private List<IndexedField> getIndexedFields()
     {
-        throwIfNull("item",item);
-        beforeSave(item);
-        ContentValues values = new ContentValues();
-        values.put(ID,item.getId());
-        values.put(ITEM,gson.toJson(item));
-        if(tag != null)
+        synchronized(crateIndexedFieldsMap)
         {
-            values.put(TAG,tag);
+            List<IndexedField> indexedFields = crateIndexedFieldsMap.get(getClass());
+            if(indexedFields == null)
+            {
+                Type storeType = getStoreType(getClass());
+                Class<?> itemClass = (Class<?>) (storeType instanceof ParameterizedType ? ((ParameterizedType) storeType).getRawType() : storeType);
+                indexedFields = IndexedField.forClass(itemClass);
+                crateIndexedFieldsMap.put(getClass(), indexedFields);
+            }
+            return indexedFields;
         }
-        SQLiteDatabase database = pDatabase;
-        if(pDatabase == null)
+    }
+
+    private static Type getStoreType(Class<?> crateClass)
+    {
+        Class<?> currentClass = crateClass;
+        while(currentClass.getSuperclass() != Crate.class)
         {
-            database = crateSQLiteOpenHelper.getWritableDatabase();
+            currentClass = currentClass.getSuperclass();
         }
+        ParameterizedType parameterizedType = (ParameterizedType) currentClass.getGenericSuperclass();
+        return parameterizedType.getActualTypeArguments()[0];
+    }
 
-        if(exists(item.getId(),false,database))
+    /**
+     * Closes the crate's database connection, once pending asynchronous and buffered writes have been applied.
+     * The connection is shared by all open instances of the crate, so is only closed once they are all closed.
+     * It is kept open between operations until then, and reopened if a closed crate is used again.
+     */
+    public final void close()
+    {
+        try
         {
-            database.update(tableName, values, "ID=?", new String[]{item.getId()});
+            crateExecutor.awaitWrites();
         }
-        else
+        catch(InterruptedException e)
         {
-            database.insert(tableName, null, values);
+            Thread.currentThread().interrupt();
         }
-
-        if(pDatabase == null)
+        flush();
+        StorageEngine engine;
+        synchronized(this)
         {
-            database.close();
+            engine = storageEngine;
+            storageEngine = null;
         }
-
-        if(log)
+        if(engine != null)
         {
-            if(tag == null)
-            {
-                log("Stored item",item);
-            }
-            else
-            {
-                log("Stored item with tag " + tag,item);
-            }
+            releaseEngine(engine);
         }
     }
 
     /**
-     *
-     * @param items Items to store in crate
+     * Forgets the table's cached and in-memory items once the last reference to its engine is released
      */
-    public final void put(Collection<T> items)
+    private void releaseEngine(StorageEngine engine)
     {
-        throwIfNull("items", items);
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        database.beginTransaction();
-        for(T currentItem : items)
+        if(StorageEngineRegistry.release(tableName, engine))
         {
-            put(currentItem, null, false,database);
+            invalidateCache();
+            if(memoryTable != null)
+            {
+                memoryTable.unload();
+            }
+            log("Closed crate",null);
         }
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        database.close();
-        log("Stored " + items.size() + " items", null);
     }
 
-    /**
-     *
-     * @param items Items to store in crate
-     * @param tag Tag for items
-     */
-    public final void put(Collection<T> items, String tag)
+    private void throwIfNull(String paramName,Object object)
     {
-        throwIfNull("items", items);
-        throwIfNull("tag", tag);
+        if(object == null)
+        {
+            throw new IllegalArgumentException(paramName + " can not be null");
+        }
+    }
 
-        SQLiteDatabase database = crateSQLiteOpenHelper.getWritableDatabase();
-        database.beginTransaction();
-        for(T currentItem : items)
+    private static <V> V notNull(String paramName, V value)
+    {
+        if(value == null)
         {
-            put(currentItem, tag, false,database);
+            throw new IllegalArgumentException(paramName + " can not be null");
         }
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        database.close();
-        log("Stored " + items.size() + " items with tag " + tag, null);
+        return value;
     }
 
-    private Type getStoreType()
+    private void throwIfNotPositive(String paramName,int value)
     {
-        ParameterizedType parameterizedType = (ParameterizedType) getClass().getGenericSuperclass();
-        return parameterizedType.getActualTypeArguments()[0];
+        if(value <= 0)
+        {
+            throw new IllegalArgumentException(paramName + " must be greater than zero");
+        }
     }
 
-    public final void close()
+    /**
+     * @return Start time of an operation, or 0 without reading the clock if there is no listener
+     */
+    static long startTiming(CrateListener operationListener)
     {
-        tableSQLiteHelperMap.remove(this.tableName);
-        this.crateSQLiteOpenHelper.close();
-        log("Closed crate",null);
+        return operationListener == null ? 0 : System.nanoTime();
     }
 
-    private void throwIfNull(String paramName,Object object)
+    void report(CrateListener operationListener, CrateOperation operation, long startNanos, int rowsRead, int rowsWritten,
+                long bytesRead, long bytesWritten, int cacheHits)
     {
-        if(object == null)
+        if(operationListener != null)
         {
-            throw new IllegalArgumentException(paramName + " can not be null");
+            operationListener.onOperation(this, operation, System.nanoTime() - startNanos, rowsRead, rowsWritten,
+                    bytesRead, bytesWritten, cacheHits);
         }
     }
 
@@ -420,57 +2353,62 @@ public abstract class Crate<T extends HasId>
         return logStringBuilder.toString();
     }
 
-    private void log(String message,T item)
+    /**
+     * Checked before building a debug message, so no message is built unless it will be logged
+     */
+    private static boolean isLoggable()
     {
-        if(LOGGING_ENABLED)
+        if(!LOGGING_ENABLED)
         {
-            Log.d(LOG_TAG,buildLogMessage(message,item));
+            return false;
         }
+        return ANDROID_LOG_AVAILABLE ? Log.isLoggable(LOG_TAG, Log.DEBUG) : JVM_LOGGER.isLoggable(Level.FINE);
     }
 
-    private void error(String message,T item)
+    private void log(String message,T item)
     {
-        Log.e(LOG_TAG,buildLogMessage(message,item));
+        if(isLoggable())
+        {
+            if(ANDROID_LOG_AVAILABLE)
+            {
+                Log.d(LOG_TAG,buildLogMessage(message,item));
+            }
+            else
+            {
+                JVM_LOGGER.fine(buildLogMessage(message,item));
+            }
+        }
     }
 
-
-    private static class CrateSQLiteOpenHelper extends SQLiteOpenHelper
+    private void error(String message,T item)
     {
-        private String tableName;
-
-        public CrateSQLiteOpenHelper(Context context,String tableName)
+        if(ANDROID_LOG_AVAILABLE)
         {
-            super(context,DATABASE_NAME,null,STORE_VERSION);
-            this.tableName = tableName;
+            Log.e(LOG_TAG,buildLogMessage(message,item));
         }
-
-        @Override
-        public final void onCreate(SQLiteDatabase db) {
-
+        else
+        {
+            JVM_LOGGER.log(Level.SEVERE, buildLogMessage(message,item));
         }
+    }
 
-        @Override
-        public final void onOpen(SQLiteDatabase db) {
-            super.onOpen(db);
-            String createStatement = "CREATE TABLE IF NOT EXISTS " + tableName + "(" +
-                    ID + " TEXT PRIMARY KEY," + ITEM + " TEXT," + TAG + " TEXT)";
-            db.execSQL(createStatement);
+    /**
+     * @return False on the JVM, where Android's classes are missing or are stubs that throw
+     */
+    private static boolean isAndroidLogAvailable()
+    {
+        try
+        {
+            Log.isLoggable(LOG_TAG, Log.DEBUG);
+            return true;
         }
-
-        @Override
-        public final void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'", null);
-
-            if(cursor.moveToFirst())
-            {
-                do
-                {
-                    String currentTableName = cursor.getString(0);
-                    db.execSQL("DROP TABLE IF EXISTS " + currentTableName);
-                }
-                while (cursor.moveToNext());
-            }
-            cursor.close();
+        catch(RuntimeException e)
+        {
+            return false;
+        }
+        catch(LinkageError e)
+        {
+            return false;
         }
     }
 
@@ -0,0 +1,126 @@
+package uk.co.alexpringle.crate;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs asynchronous operations for one crate table. Writes run one at a time, in submission order, on the table's
+ * writer thread. Reads run on a small pool shared by all crates, after every write submitted before them has finished,
+ * so an asynchronous read always sees earlier asynchronous writes.
+ */
+class CrateExecutor
+{
+    private static final int READER_THREADS = 2;
+    private static final long IDLE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor readerPool = createExecutor(READER_THREADS, "Crate reader");
+    private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, createThreadFactory("Crate scheduler"));
+
+    private final ThreadPoolExecutor writer;
+    private Future<?> lastWrite;
+
+    CrateExecutor(String tableName)
+    {
+        writer = createExecutor(1, "Crate writer " + tableName);
+    }
+
+    synchronized <R> Future<R> submitWrite(Callable<R> write)
+    {
+        Future<R> future = writer.submit(write);
+        lastWrite = future;
+        return future;
+    }
+
+    /**
+     * Submits a write once the delay has passed
+     */
+    void submitWriteLater(final Callable<?> write, long delayMillis)
+    {
+        scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                submitWrite(write);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    <R> Future<R> submitRead(final Callable<R> read)
+    {
+        final Future<?> precedingWrite;
+        synchronized(this)
+        {
+            precedingWrite = lastWrite;
+        }
+
+        return readerPool.submit(new Callable<R>()
+        {
+            @Override
+            public R call() throws Exception
+            {
+                awaitWrite(precedingWrite);
+                return read.call();
+            }
+        });
+    }
+
+    /**
+     * Blocks until every write submitted so far has finished
+     */
+    void awaitWrites() throws InterruptedException
+    {
+        Future<?> precedingWrite;
+        synchronized(this)
+        {
+            precedingWrite = lastWrite;
+        }
+        awaitWrite(precedingWrite);
+    }
+
+    private static void awaitWrite(Future<?> write) throws InterruptedException
+    {
+        if(write != null)
+        {
+            try
+            {
+                write.get();
+            }
+            catch(ExecutionException e)
+            {
+                // a failed write is reported through its own future
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, final String threadName)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory(threadName));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static ThreadFactory createThreadFactory(final String threadName)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, threadName + " " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
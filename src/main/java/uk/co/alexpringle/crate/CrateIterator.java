@@ -0,0 +1,152 @@
+package uk.co.alexpringle.crate;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily reads items from a crate, deserializing one row at a time. The underlying query is closed once the last
+ * item has been read, or when {@link #close()} is called if iteration stops early. Crates held in memory iterate over
+ * their items as they were when iteration started.
+ * This iterator can only be iterated once and should not be shared between threads.
+ * @param <T> Type of item stored in the crate
+ */
+public final class CrateIterator<T extends HasId> implements Iterator<T>, Iterable<T>, Closeable
+{
+    private final Crate<T> crate;
+    /**
+     * Null if iterating over items held in memory
+     */
+    private final StoredRows rows;
+    private final Iterator<T> items;
+    private boolean closed;
+    private final CrateListener listener;
+    private final long startNanos;
+    private boolean hasNext;
+    private int rowsRead;
+    private long bytesRead;
+
+    /**
+     * @param listener Listener told about the iteration once the rows are closed, or null
+     * @param startNanos Time the query started, if there is a listener
+     */
+    CrateIterator(Crate<T> crate, StoredRows rows, CrateListener listener, long startNanos)
+    {
+        this.crate = crate;
+        this.rows = rows;
+        this.items = null;
+        this.listener = listener;
+        this.startNanos = startNanos;
+        this.hasNext = rows.moveToNext();
+        if(!hasNext)
+        {
+            closeRows();
+        }
+    }
+
+    /**
+     * @param items Items held in memory, which are not read again
+     */
+    CrateIterator(Crate<T> crate, List<T> items, CrateListener listener, long startNanos)
+    {
+        this.crate = crate;
+        this.rows = null;
+        this.items = items.iterator();
+        this.listener = listener;
+        this.startNanos = startNanos;
+        this.hasNext = this.items.hasNext();
+        if(!hasNext)
+        {
+            closeRows();
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return hasNext;
+    }
+
+    @Override
+    public T next()
+    {
+        if(!hasNext)
+        {
+            throw new NoSuchElementException();
+        }
+
+        T item;
+        if(items != null)
+        {
+            item = items.next();
+            hasNext = items.hasNext();
+            if(!hasNext)
+            {
+                closeRows();
+            }
+            return item;
+        }
+
+        try
+        {
+            byte[] payload = rows.getPayload();
+            rowsRead++;
+            bytesRead += payload.length;
+            item = crate.fromStore(payload, rows.getFormat());
+        }
+        catch(RuntimeException e)
+        {
+            // not reported, as the iteration failed
+            hasNext = false;
+            closed = true;
+            rows.close();
+            throw e;
+        }
+
+        hasNext = rows.moveToNext();
+        if(!hasNext)
+        {
+            closeRows();
+        }
+        return item;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Items can not be removed while iterating a crate");
+    }
+
+    /**
+     * @return This iterator, so it can be used in a for-each loop
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        return this;
+    }
+
+    /**
+     * Closes the underlying query. Only needed when iteration stops before the last item.
+     */
+    @Override
+    public void close()
+    {
+        hasNext = false;
+        if(!closed)
+        {
+            closeRows();
+        }
+    }
+
+    private void closeRows()
+    {
+        closed = true;
+        if(rows != null)
+        {
+            rows.close();
+        }
+        crate.report(listener, CrateOperation.ITERATE, startNanos, rowsRead, 0, bytesRead, 0, 0);
+    }
+}
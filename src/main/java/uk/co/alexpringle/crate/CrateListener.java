@@ -0,0 +1,23 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * Receives the cost of every completed crate operation, for metrics or tracing. Register with
+ * {@link Crate#setListener(CrateListener)}. Measurements are passed as primitives so reporting does not allocate.
+ */
+public interface CrateListener
+{
+    /**
+     * Called on the thread that ran the operation, once it has completed. Operations that throw are not reported.
+     * Must be thread safe and quick, as it delays the caller.
+     * @param crate Crate the operation ran on
+     * @param operation Kind of operation
+     * @param durationNanos Time the operation took
+     * @param rowsRead Number of stored items read from the database
+     * @param rowsWritten Number of stored items written to or removed from the database
+     * @param bytesRead Size of stored payloads read and deserialized
+     * @param bytesWritten Size of payloads serialized to be stored
+     * @param cacheHits Number of items answered from the item cache
+     */
+    void onOperation(Crate<?> crate, CrateOperation operation, long durationNanos, int rowsRead, int rowsWritten,
+                     long bytesRead, long bytesWritten, int cacheHits);
+}
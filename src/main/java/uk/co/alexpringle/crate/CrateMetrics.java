@@ -0,0 +1,171 @@
+package uk.co.alexpringle.crate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Listener collecting counts, totals and a latency histogram per crate class and operation. Recording is lock free
+ * and only allocates the first time a crate class is seen.
+ * <pre>
+ * CrateMetrics metrics = new CrateMetrics();
+ * Crate.setListener(metrics);
+ * long p99 = metrics.getStats(CakeCrate.class, CrateOperation.WITH_ID).getLatencyPercentileNanos(99);
+ * </pre>
+ */
+public class CrateMetrics implements CrateListener
+{
+    /**
+     * Totals for one operation on one crate class. Latencies are kept in power of two buckets, so percentiles are
+     * accurate to within a factor of two.
+     */
+    public static final class OperationStats
+    {
+        private static final int BUCKET_COUNT = 64;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong rowsRead = new AtomicLong();
+        private final AtomicLong rowsWritten = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        /**
+         * Bucket i counts latencies below 2^i nanoseconds and at least 2^(i-1)
+         */
+        private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        private OperationStats()
+        {
+        }
+
+        void record(long durationNanos, int rowsRead, int rowsWritten, long bytesRead, long bytesWritten, int cacheHits)
+        {
+            count.incrementAndGet();
+            totalNanos.addAndGet(durationNanos);
+            this.rowsRead.addAndGet(rowsRead);
+            this.rowsWritten.addAndGet(rowsWritten);
+            this.bytesRead.addAndGet(bytesRead);
+            this.bytesWritten.addAndGet(bytesWritten);
+            this.cacheHits.addAndGet(cacheHits);
+            int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(Math.max(durationNanos, 0)));
+            latencyBuckets.incrementAndGet(bucket);
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos.get();
+        }
+
+        public long getRowsRead()
+        {
+            return rowsRead.get();
+        }
+
+        public long getRowsWritten()
+        {
+            return rowsWritten.get();
+        }
+
+        public long getBytesRead()
+        {
+            return bytesRead.get();
+        }
+
+        public long getBytesWritten()
+        {
+            return bytesWritten.get();
+        }
+
+        public long getCacheHits()
+        {
+            return cacheHits.get();
+        }
+
+        /**
+         * @param percentile Percentile between 0 and 100, such as 50 for the median
+         * @return Upper bound of the latency below which this percentage of operations completed, or 0 if none have
+         */
+        public long getLatencyPercentileNanos(double percentile)
+        {
+            if(percentile < 0 || percentile > 100)
+            {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+
+            long[] buckets = new long[BUCKET_COUNT];
+            long total = 0;
+            for(int i = 0; i < BUCKET_COUNT; i++)
+            {
+                buckets[i] = latencyBuckets.get(i);
+                total += buckets[i];
+            }
+            if(total == 0)
+            {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for(int i = 0; i < BUCKET_COUNT; i++)
+            {
+                seen += buckets[i];
+                if(seen >= rank && seen > 0)
+                {
+                    return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private final ConcurrentHashMap<Class<?>,OperationStats[]> crateStats = new ConcurrentHashMap<Class<?>, OperationStats[]>();
+
+    @Override
+    public void onOperation(Crate<?> crate, CrateOperation operation, long durationNanos, int rowsRead, int rowsWritten,
+                            long bytesRead, long bytesWritten, int cacheHits)
+    {
+        getOperationStats(crate.getClass())[operation.ordinal()].record(durationNanos, rowsRead, rowsWritten, bytesRead,
+                bytesWritten, cacheHits);
+    }
+
+    /**
+     * @return Totals for the operation on all instances of the crate class
+     */
+    public OperationStats getStats(Class<? extends Crate<?>> crateClass, CrateOperation operation)
+    {
+        return getOperationStats(crateClass)[operation.ordinal()];
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public void reset()
+    {
+        crateStats.clear();
+    }
+
+    private OperationStats[] getOperationStats(Class<?> crateClass)
+    {
+        OperationStats[] operationStats = crateStats.get(crateClass);
+        if(operationStats == null)
+        {
+            operationStats = new OperationStats[CrateOperation.values().length];
+            for(int i = 0; i < operationStats.length; i++)
+            {
+                operationStats[i] = new OperationStats();
+            }
+            OperationStats[] existingStats = crateStats.putIfAbsent(crateClass, operationStats);
+            if(existingStats != null)
+            {
+                operationStats = existingStats;
+            }
+        }
+        return operationStats;
+    }
+}
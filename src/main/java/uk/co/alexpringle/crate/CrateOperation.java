@@ -0,0 +1,56 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * Kinds of crate operation reported to a {@link CrateListener}
+ */
+public enum CrateOperation
+{
+    /**
+     * {@link Crate#withId(String)}
+     */
+    WITH_ID,
+    /**
+     * {@link Crate#withIds(java.util.Collection)}
+     */
+    WITH_IDS,
+    /**
+     * {@link Crate#exists(String)}
+     */
+    EXISTS,
+    /**
+     * Any read of items by tag, page or query. Reported once iteration has finished or the iterator is closed.
+     */
+    ITERATE,
+    /**
+     * {@link Crate#count()} and {@link Crate#count(String)}
+     */
+    COUNT,
+    /**
+     * {@link Crate#ids()} and {@link Crate#ids(String)}
+     */
+    IDS,
+    /**
+     * Single item put, stored or buffered
+     */
+    PUT,
+    /**
+     * Collection put
+     */
+    PUT_ALL,
+    /**
+     * {@link Crate#replace(String, java.util.Collection)}
+     */
+    REPLACE,
+    /**
+     * Any removal of items
+     */
+    REMOVE,
+    /**
+     * {@link Crate#addTag(String, String)} and {@link Crate#removeTag(String, String)}
+     */
+    TAG,
+    /**
+     * Storing buffered writes, see {@link Crate#flush()}
+     */
+    FLUSH
+}
@@ -0,0 +1,164 @@
+package uk.co.alexpringle.crate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds items by their {@link Indexed} fields. Conditions are combined with AND and run as a single SQL query,
+ * so only the matching items are read and deserialized. Created with {@link Crate#query()}.
+ * <pre>
+ * List&lt;Cake&gt; cakes = cakeCrate.query().equalTo("colour", "red").greaterThan("layers", 2)
+ *         .orderByDescending("layers").limit(10).list();
+ * </pre>
+ * @param <T> Type of item stored in the crate
+ */
+public final class CrateQuery<T extends HasId>
+{
+    private final Crate<T> crate;
+    private final StringBuilder whereClause = new StringBuilder();
+    private final StringBuilder orderByClause = new StringBuilder();
+    private final List<String> selectionArgs = new ArrayList<String>();
+    private int limit;
+
+    CrateQuery(Crate<T> crate)
+    {
+        this.crate = crate;
+    }
+
+    /**
+     * @param fieldName Name of an indexed field
+     * @param value Value to match, or null to match items where the field is null
+     */
+    public CrateQuery<T> equalTo(String fieldName, Object value)
+    {
+        IndexedField indexedField = crate.getIndexedField(fieldName);
+        if(value == null)
+        {
+            appendCondition(indexedField.getColumnName() + " IS NULL");
+            return this;
+        }
+        return compare(indexedField, "=", value);
+    }
+
+    public CrateQuery<T> greaterThan(String fieldName, Object value)
+    {
+        return compare(crate.getIndexedField(fieldName), ">", value);
+    }
+
+    public CrateQuery<T> greaterThanOrEqualTo(String fieldName, Object value)
+    {
+        return compare(crate.getIndexedField(fieldName), ">=", value);
+    }
+
+    public CrateQuery<T> lessThan(String fieldName, Object value)
+    {
+        return compare(crate.getIndexedField(fieldName), "<", value);
+    }
+
+    public CrateQuery<T> lessThanOrEqualTo(String fieldName, Object value)
+    {
+        return compare(crate.getIndexedField(fieldName), "<=", value);
+    }
+
+    /**
+     * @param tag Tag items must have
+     */
+    public CrateQuery<T> withTag(String tag)
+    {
+        throwIfNull("tag", tag);
+        appendCondition(crate.getTagCondition());
+        selectionArgs.add(tag);
+        return this;
+    }
+
+    /**
+     * Orders items by a field, lowest first. Items with equal values are ordered by id.
+     * @param fieldName Name of an indexed field
+     */
+    public CrateQuery<T> orderBy(String fieldName)
+    {
+        appendOrder(crate.getIndexedField(fieldName).getColumnName());
+        return this;
+    }
+
+    /**
+     * Orders items by a field, highest first. Items with equal values are ordered by id.
+     * @param fieldName Name of an indexed field
+     */
+    public CrateQuery<T> orderByDescending(String fieldName)
+    {
+        appendOrder(crate.getIndexedField(fieldName).getColumnName() + " DESC");
+        return this;
+    }
+
+    /**
+     * @param limit Maximum number of items to return
+     */
+    public CrateQuery<T> limit(int limit)
+    {
+        if(limit <= 0)
+        {
+            throw new IllegalArgumentException("limit must be greater than zero");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @return Matching items or empty list
+     */
+    public List<T> list()
+    {
+        List<T> items = new ArrayList<T>();
+        for(T item : iterate())
+        {
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Reads matching items one at a time. The iterator must be closed if it is not iterated to the end.
+     * @return Iterator over matching items
+     */
+    public CrateIterator<T> iterate()
+    {
+        StringBuilder clauses = new StringBuilder(whereClause);
+        if(orderByClause.length() > 0)
+        {
+            clauses.append(orderByClause).append(",").append(Crate.ID);
+        }
+        if(limit > 0)
+        {
+            clauses.append(" LIMIT ").append(limit);
+        }
+        return crate.queryItems(clauses.toString(), selectionArgs.toArray(new String[selectionArgs.size()]));
+    }
+
+    private CrateQuery<T> compare(IndexedField indexedField, String operator, Object value)
+    {
+        throwIfNull("value", value);
+        appendCondition(indexedField.getColumnName() + " " + operator + "?");
+        // bound as text, which SQLite converts to the column's numeric type before comparing
+        selectionArgs.add(IndexedField.toColumnValue(value).toString());
+        return this;
+    }
+
+    private void appendCondition(String condition)
+    {
+        whereClause.append(whereClause.length() == 0 ? " WHERE " : " AND ").append(condition);
+    }
+
+    private void appendOrder(String order)
+    {
+        orderByClause.append(orderByClause.length() == 0 ? " ORDER BY " : ",").append(order);
+    }
+
+    private static void throwIfNull(String paramName, Object object)
+    {
+        if(object == null)
+        {
+            throw new IllegalArgumentException(paramName + " can not be null");
+        }
+    }
+}
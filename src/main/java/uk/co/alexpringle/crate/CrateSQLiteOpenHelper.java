@@ -0,0 +1,55 @@
+package uk.co.alexpringle.crate;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import static uk.co.alexpringle.crate.Crate.*;
+
+/**
+ * Owns the connection for a single crate table. The database is opened on first use and kept open,
+ * along with its page cache, until the crate is closed. Tables are created by {@link AndroidStorageEngine}.
+ */
+class CrateSQLiteOpenHelper extends SQLiteOpenHelper
+{
+    private SQLiteDatabase database;
+
+    CrateSQLiteOpenHelper(Context context,String databaseName,boolean writeAheadLogging)
+    {
+        super(context,databaseName,null,STORE_VERSION);
+        // queries outside a transaction then run on a pool of read connections, so are not blocked by writes
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+    }
+
+    /**
+     * @return The open database for this table, opening it if this is the first use since the helper was closed
+     */
+    synchronized SQLiteDatabase getDatabase()
+    {
+        if(database == null || !database.isOpen())
+        {
+            database = getWritableDatabase();
+        }
+        return database;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        database = null;
+        super.close();
+    }
+
+    @Override
+    public final void onCreate(SQLiteDatabase db) {
+
+    }
+
+    /**
+     * Keeps every table. Each crate's tables are migrated when it is opened, see {@link SQLiteStorageEngine#createTables()}.
+     */
+    @Override
+    public final void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+    }
+}
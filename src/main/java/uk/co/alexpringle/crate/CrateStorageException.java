@@ -0,0 +1,20 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * Thrown when a crate's storage can not be opened, read or written, other than by the platform's own SQLite
+ * exceptions.
+ */
+public class CrateStorageException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public CrateStorageException(String message)
+    {
+        super(message);
+    }
+
+    public CrateStorageException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,55 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * State shared by every crate instance using the same table, so writes through one instance are seen by all of them.
+ * @param <T> Type of item stored in the table
+ */
+class CrateTable<T>
+{
+    private final ItemCache<T> itemCache;
+    private final CrateExecutor crateExecutor;
+    private final WriteBuffer writeBuffer;
+    private final MemoryTable<T> memoryTable;
+
+    /**
+     * @param snapshotIntervalMillis Longest time changes to items held in memory wait to be stored, or -1 if items
+     *                               are not held in memory. Items held in memory are neither cached nor buffered.
+     */
+    CrateTable(String tableName, int cacheSize, int writeBufferSize, long writeBufferDelayMillis, long snapshotIntervalMillis)
+    {
+        boolean heldInMemory = snapshotIntervalMillis >= 0;
+        itemCache = cacheSize > 0 && !heldInMemory ? new ItemCache<T>(cacheSize) : null;
+        crateExecutor = new CrateExecutor(tableName);
+        writeBuffer = writeBufferSize > 0 && !heldInMemory ? new WriteBuffer(writeBufferSize, writeBufferDelayMillis) : null;
+        memoryTable = heldInMemory ? new MemoryTable<T>(snapshotIntervalMillis) : null;
+    }
+
+    /**
+     * @return Cache of recently read items, or null if caching is disabled
+     */
+    ItemCache<T> getItemCache()
+    {
+        return itemCache;
+    }
+
+    CrateExecutor getCrateExecutor()
+    {
+        return crateExecutor;
+    }
+
+    /**
+     * @return Buffer of writes not yet stored, or null if writes are stored immediately
+     */
+    WriteBuffer getWriteBuffer()
+    {
+        return writeBuffer;
+    }
+
+    /**
+     * @return Every item of the table, or null if items are read from storage
+     */
+    MemoryTable<T> getMemoryTable()
+    {
+        return memoryTable;
+    }
+}
@@ -0,0 +1,74 @@
+package uk.co.alexpringle.crate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+
+/**
+ * Stores items as UTF-8 JSON text. This is the default codec, and the format used by earlier versions of Crate.
+ * @param <T> Type of item stored in the crate
+ */
+public class GsonItemCodec<T> implements ItemCodec<T>
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Gson defaultGson = new Gson();
+
+    private final TypeAdapter<T> typeAdapter;
+
+    /**
+     * @param itemType Type of item stored in the crate
+     */
+    public GsonItemCodec(Type itemType)
+    {
+        this(defaultGson, itemType);
+    }
+
+    /**
+     * @param gson Gson instance configured with any custom type adapters needed for the item
+     * @param itemType Type of item stored in the crate
+     */
+    @SuppressWarnings("unchecked")
+    public GsonItemCodec(Gson gson, Type itemType)
+    {
+        typeAdapter = (TypeAdapter<T>) gson.getAdapter(TypeToken.get(itemType));
+    }
+
+    @Override
+    public byte[] encode(T item)
+    {
+        try
+        {
+            return typeAdapter.toJson(item).getBytes(UTF_8);
+        }
+        catch(IOException e)
+        {
+            throw new ItemCodecException("Failed to write item as JSON", e);
+        }
+        catch(JsonParseException e)
+        {
+            throw new ItemCodecException("Failed to write item as JSON", e);
+        }
+    }
+
+    @Override
+    public T decode(byte[] bytes)
+    {
+        try
+        {
+            return typeAdapter.fromJson(new String(bytes, UTF_8));
+        }
+        catch(IOException e)
+        {
+            throw new ItemCodecException("Failed to read item from JSON", e);
+        }
+        catch(JsonParseException e)
+        {
+            throw new ItemCodecException("Failed to read item from JSON", e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package uk.co.alexpringle.crate;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a stored item to be copied into its own indexed column when the item is put, so it can be used
+ * in a {@link CrateQuery}. Supported types are primitives and their wrappers, strings and enums.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed
+{
+}
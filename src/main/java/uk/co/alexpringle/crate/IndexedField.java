@@ -0,0 +1,134 @@
+package uk.co.alexpringle.crate;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An {@link Indexed} item field and the column its values are stored in.
+ */
+class IndexedField
+{
+    static final String COLUMN_PREFIX = "FIELD_";
+
+    private final Field field;
+    private final String columnName;
+    private final String columnType;
+
+    private IndexedField(Field field)
+    {
+        this.field = field;
+        this.columnName = COLUMN_PREFIX + field.getName();
+        this.columnType = getColumnType(field);
+        field.setAccessible(true);
+    }
+
+    String getName()
+    {
+        return field.getName();
+    }
+
+    String getColumnName()
+    {
+        return columnName;
+    }
+
+    String getColumnType()
+    {
+        return columnType;
+    }
+
+    /**
+     * @return Value of the field converted to how it is stored, a Long, Double, String or null
+     */
+    Object read(Object item)
+    {
+        try
+        {
+            return toColumnValue(field.get(item));
+        }
+        catch(IllegalAccessException e)
+        {
+            throw new IllegalStateException("Could not read indexed field " + field.getName(), e);
+        }
+    }
+
+    static Object toColumnValue(Object value)
+    {
+        if(value == null || value instanceof String || value instanceof Long || value instanceof Double)
+        {
+            return value;
+        }
+        if(value instanceof Boolean)
+        {
+            return (Boolean) value ? 1L : 0L;
+        }
+        if(value instanceof Float)
+        {
+            return ((Float) value).doubleValue();
+        }
+        if(value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+        if(value instanceof Enum)
+        {
+            return ((Enum<?>) value).name();
+        }
+        if(value instanceof Character)
+        {
+            return value.toString();
+        }
+        throw new IllegalArgumentException(value.getClass().getName() + " values can not be indexed");
+    }
+
+    /**
+     * @return Indexed fields of the item class and its superclasses, ordered by name
+     */
+    static List<IndexedField> forClass(Class<?> itemClass)
+    {
+        List<IndexedField> indexedFields = new ArrayList<IndexedField>();
+        for(Class<?> currentClass = itemClass; currentClass != null && currentClass != Object.class; currentClass = currentClass.getSuperclass())
+        {
+            for(Field field : currentClass.getDeclaredFields())
+            {
+                if(field.isAnnotationPresent(Indexed.class) && !Modifier.isStatic(field.getModifiers()))
+                {
+                    indexedFields.add(new IndexedField(field));
+                }
+            }
+        }
+        Collections.sort(indexedFields, new Comparator<IndexedField>()
+        {
+            @Override
+            public int compare(IndexedField first, IndexedField second)
+            {
+                return first.getName().compareTo(second.getName());
+            }
+        });
+        return indexedFields;
+    }
+
+    private static String getColumnType(Field field)
+    {
+        Class<?> type = field.getType();
+        if(type == boolean.class || type == Boolean.class || type == byte.class || type == Byte.class
+                || type == short.class || type == Short.class || type == int.class || type == Integer.class
+                || type == long.class || type == Long.class)
+        {
+            return "INTEGER";
+        }
+        if(type == float.class || type == Float.class || type == double.class || type == Double.class)
+        {
+            return "REAL";
+        }
+        if(type == String.class || type == char.class || type == Character.class || type.isEnum())
+        {
+            return "TEXT";
+        }
+        throw new IllegalArgumentException("Field " + field.getName() + " of type " + type.getName() + " can not be indexed");
+    }
+}
@@ -0,0 +1,85 @@
+package uk.co.alexpringle.crate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least recently used cache of deserialized items, shared by every crate instance using the same table.
+ * Every invalidation moves the cache to a new generation so a read that raced with a write can not cache a stale item.
+ */
+class ItemCache<T>
+{
+    private final LinkedHashMap<String,T> items;
+    private long generation;
+    private long hitCount;
+    private long missCount;
+
+    ItemCache(final int maxSize)
+    {
+        items = new LinkedHashMap<String, T>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, T> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized T get(String itemId)
+    {
+        T item = items.get(itemId);
+        if(item == null)
+        {
+            missCount++;
+        }
+        else
+        {
+            hitCount++;
+        }
+        return item;
+    }
+
+    /**
+     * @return Generation to pass to {@link #put(String, Object, long)} once the item has been read from storage
+     */
+    synchronized long generation()
+    {
+        return generation;
+    }
+
+    /**
+     * Caches an item read from storage, unless the cache has been invalidated since the read started.
+     */
+    synchronized void put(String itemId, T item, long readGeneration)
+    {
+        if(readGeneration == generation)
+        {
+            items.put(itemId, item);
+        }
+    }
+
+    synchronized void invalidate(String itemId)
+    {
+        generation++;
+        items.remove(itemId);
+    }
+
+    synchronized void invalidateAll()
+    {
+        generation++;
+        items.clear();
+    }
+
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+}
@@ -0,0 +1,23 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * Converts items to and from the bytes stored in a crate. Override {@link Crate#createItemCodec(java.lang.reflect.Type)}
+ * to store a crate's items in a different format. Implementations must be thread safe.
+ * @param <T> Type of item stored in the crate
+ */
+public interface ItemCodec<T>
+{
+    /**
+     * @param item Item to encode
+     * @return Stored representation of the item
+     * @throws ItemCodecException If the item can not be encoded
+     */
+    byte[] encode(T item);
+
+    /**
+     * @param bytes Stored representation of an item
+     * @return Decoded item
+     * @throws ItemCodecException If the bytes can not be decoded
+     */
+    T decode(byte[] bytes);
+}
@@ -0,0 +1,19 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * Thrown by an {@link ItemCodec} when an item can not be encoded or decoded.
+ */
+public class ItemCodecException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public ItemCodecException(String message)
+    {
+        super(message);
+    }
+
+    public ItemCodecException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,10 @@
+package uk.co.alexpringle.crate;
+
+public interface ItemVisitor<T extends HasId>
+{
+    /**
+     * Called once for each item read from the crate.
+     * @param item Item read from the crate
+     */
+    void visit(T item);
+}
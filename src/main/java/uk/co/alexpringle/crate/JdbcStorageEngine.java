@@ -0,0 +1,512 @@
+package uk.co.alexpringle.crate;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores a crate in an SQLite file through JDBC, so crates run on the JVM. Needs the sqlite-jdbc driver on the
+ * classpath. Writes and transactions use one connection, one thread at a time. Reads outside a transaction borrow a
+ * connection from a small pool until their rows are closed, so with write-ahead logging they see the last commit
+ * instead of waiting for writes.
+ */
+class JdbcStorageEngine extends SQLiteStorageEngine
+{
+    private static final String DRIVER_CLASS = "org.sqlite.JDBC";
+    private static final int BUSY_TIMEOUT_MILLIS = 10000;
+    /**
+     * Most read connections kept open while no read is using them
+     */
+    private static final int MAX_IDLE_READ_CONNECTIONS = 4;
+
+    private final String url;
+    private final Connection writeConnection;
+    /**
+     * Held around each write, and from the start to the end of a transaction
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // engineClosed is guarded by idleReadConnections
+    private final ArrayDeque<Connection> idleReadConnections = new ArrayDeque<Connection>();
+    private boolean engineClosed;
+    // only used by the thread holding the write lock
+    private int transactionDepth;
+    private boolean transactionSuccessful;
+    private boolean transactionFailed;
+
+    JdbcStorageEngine(File databaseFile,String tableName,List<IndexedField> indexedFields,
+                      boolean writeAheadLogging,int walAutoCheckpointPages)
+    {
+        super(tableName, indexedFields);
+        try
+        {
+            Class.forName(DRIVER_CLASS);
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new CrateStorageException("Crates need the sqlite-jdbc driver to run without an Android context", e);
+        }
+
+        File directory = databaseFile.getAbsoluteFile().getParentFile();
+        if(directory != null && !directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new CrateStorageException("Failed to create directory " + directory);
+        }
+        url = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+        writeConnection = connect();
+        try
+        {
+            execute("PRAGMA journal_mode=" + (writeAheadLogging ? "WAL" : "DELETE"));
+            if(writeAheadLogging && walAutoCheckpointPages > 0)
+            {
+                execute("PRAGMA wal_autocheckpoint=" + walAutoCheckpointPages);
+            }
+            beginTransaction();
+            try
+            {
+                createTables();
+                setTransactionSuccessful();
+            }
+            finally
+            {
+                endTransaction();
+            }
+        }
+        catch(RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    private Connection connect()
+    {
+        try
+        {
+            Connection connection = DriverManager.getConnection(url);
+            java.sql.Statement statement = connection.createStatement();
+            try
+            {
+                statement.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MILLIS);
+            }
+            finally
+            {
+                statement.close();
+            }
+            return connection;
+        }
+        catch(SQLException e)
+        {
+            throw new CrateStorageException("Failed to open " + url, e);
+        }
+    }
+
+    private Connection borrowReadConnection()
+    {
+        synchronized(idleReadConnections)
+        {
+            Connection connection = idleReadConnections.poll();
+            if(connection != null)
+            {
+                return connection;
+            }
+        }
+        return connect();
+    }
+
+    /**
+     * Keeps the connection for the next read, or closes it if enough are idle or the engine is closed
+     */
+    private void returnReadConnection(Connection connection)
+    {
+        synchronized(idleReadConnections)
+        {
+            if(!engineClosed && idleReadConnections.size() < MAX_IDLE_READ_CONNECTIONS)
+            {
+                idleReadConnections.push(connection);
+                return;
+            }
+        }
+        closeConnection(connection);
+    }
+
+    private void closeConnection(Connection connection)
+    {
+        try
+        {
+            connection.close();
+        }
+        catch(SQLException e)
+        {
+            throw new CrateStorageException("Failed to close " + url, e);
+        }
+    }
+
+    @Override
+    public void beginTransaction()
+    {
+        writeLock.lock();
+        try
+        {
+            if(transactionDepth == 0)
+            {
+                // immediate, so another engine on the same file can't commit between our first read and first write
+                executeOnWriteConnection("BEGIN IMMEDIATE");
+                transactionFailed = false;
+            }
+        }
+        catch(SQLException e)
+        {
+            writeLock.unlock();
+            throw new CrateStorageException("Failed to begin transaction", e);
+        }
+        transactionDepth++;
+        transactionSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful()
+    {
+        if(!writeLock.isHeldByCurrentThread() || transactionDepth == 0)
+        {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        transactionSuccessful = true;
+    }
+
+    /**
+     * Commits once the outermost transaction ends, if it and every nested transaction were successful
+     */
+    @Override
+    public void endTransaction()
+    {
+        if(!writeLock.isHeldByCurrentThread() || transactionDepth == 0)
+        {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        try
+        {
+            transactionFailed |= !transactionSuccessful;
+            transactionSuccessful = false;
+            transactionDepth--;
+            if(transactionDepth == 0)
+            {
+                executeOnWriteConnection(transactionFailed ? "ROLLBACK" : "COMMIT");
+            }
+        }
+        catch(SQLException e)
+        {
+            rollbackQuietly();
+            throw new CrateStorageException("Failed to end transaction", e);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Leaves the write connection out of a transaction after a failed commit, so the next one can begin
+     */
+    private void rollbackQuietly()
+    {
+        try
+        {
+            executeOnWriteConnection("ROLLBACK");
+        }
+        catch(SQLException ignored)
+        {
+            // no transaction was left open
+        }
+    }
+
+    private void executeOnWriteConnection(String sql) throws SQLException
+    {
+        java.sql.Statement statement = writeConnection.createStatement();
+        try
+        {
+            statement.execute(sql);
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    @Override
+    Rows query(String sql, String... selectionArgs)
+    {
+        // a thread inside a transaction reads its own uncommitted writes
+        Connection readConnection = writeLock.isHeldByCurrentThread() ? null : borrowReadConnection();
+        Connection connection = readConnection != null ? readConnection : writeConnection;
+        try
+        {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try
+            {
+                for(int i = 0; i < selectionArgs.length; i++)
+                {
+                    statement.setString(i + 1, selectionArgs[i]);
+                }
+                return new JdbcRows(statement, statement.executeQuery(), readConnection);
+            }
+            catch(SQLException e)
+            {
+                statement.close();
+                throw e;
+            }
+        }
+        catch(SQLException e)
+        {
+            if(readConnection != null)
+            {
+                returnReadConnection(readConnection);
+            }
+            throw new CrateStorageException("Failed to query " + sql, e);
+        }
+    }
+
+    @Override
+    Statement prepare(String sql)
+    {
+        return new JdbcStatement(sql);
+    }
+
+    @Override
+    void execute(String sql)
+    {
+        writeLock.lock();
+        try
+        {
+            java.sql.Statement statement = writeConnection.createStatement();
+            try
+            {
+                statement.execute(sql);
+            }
+            finally
+            {
+                statement.close();
+            }
+        }
+        catch(SQLException e)
+        {
+            throw new CrateStorageException("Failed to execute " + sql, e);
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        super.close();
+        List<Connection> connections = new ArrayList<Connection>();
+        synchronized(idleReadConnections)
+        {
+            // connections still lent to reads are closed when they are returned
+            engineClosed = true;
+            connections.addAll(idleReadConnections);
+            idleReadConnections.clear();
+        }
+        connections.add(writeConnection);
+        for(Connection connection : connections)
+        {
+            closeConnection(connection);
+        }
+    }
+
+    private final class JdbcRows implements Rows
+    {
+        private final PreparedStatement statement;
+        private final ResultSet resultSet;
+        /**
+         * Returned to the pool once the rows are closed, or null if the rows were read on the write connection
+         */
+        private final Connection readConnection;
+        private boolean closed;
+
+        JdbcRows(PreparedStatement statement, ResultSet resultSet, Connection readConnection)
+        {
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.readConnection = readConnection;
+        }
+
+        @Override
+        public boolean moveToNext()
+        {
+            try
+            {
+                return !closed && resultSet.next();
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to read row", e);
+            }
+        }
+
+        @Override
+        public String getString(int column)
+        {
+            try
+            {
+                return resultSet.getString(column + 1);
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to read column " + column, e);
+            }
+        }
+
+        @Override
+        public byte[] getBlob(int column)
+        {
+            try
+            {
+                return resultSet.getBytes(column + 1);
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to read column " + column, e);
+            }
+        }
+
+        @Override
+        public long getLong(int column)
+        {
+            try
+            {
+                return resultSet.getLong(column + 1);
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to read column " + column, e);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                resultSet.close();
+                statement.close();
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to close rows", e);
+            }
+            finally
+            {
+                if(readConnection != null)
+                {
+                    returnReadConnection(readConnection);
+                }
+            }
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+    }
+
+    /**
+     * Prepared on the write connection on first use. Runs with the write lock held, so is never used by two
+     * threads at once.
+     */
+    private final class JdbcStatement implements Statement
+    {
+        private final String sql;
+        private PreparedStatement statement;
+
+        JdbcStatement(String sql)
+        {
+            this.sql = sql;
+        }
+
+        @Override
+        public int execute(Object... bindArgs)
+        {
+            writeLock.lock();
+            try
+            {
+                if(statement == null)
+                {
+                    statement = writeConnection.prepareStatement(sql);
+                }
+                statement.clearParameters();
+                for(int i = 0; i < bindArgs.length; i++)
+                {
+                    Object bindArg = bindArgs[i];
+                    if(bindArg == null)
+                    {
+                        statement.setNull(i + 1, Types.NULL);
+                    }
+                    else if(bindArg instanceof byte[])
+                    {
+                        statement.setBytes(i + 1, (byte[]) bindArg);
+                    }
+                    else if(bindArg instanceof Long || bindArg instanceof Integer)
+                    {
+                        statement.setLong(i + 1, ((Number) bindArg).longValue());
+                    }
+                    else if(bindArg instanceof Double)
+                    {
+                        statement.setDouble(i + 1, (Double) bindArg);
+                    }
+                    else
+                    {
+                        statement.setString(i + 1, bindArg.toString());
+                    }
+                }
+                return statement.executeUpdate();
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to execute " + sql, e);
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            writeLock.lock();
+            try
+            {
+                if(statement != null)
+                {
+                    statement.close();
+                    statement = null;
+                }
+            }
+            catch(SQLException e)
+            {
+                throw new CrateStorageException("Failed to close " + sql, e);
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+    }
+}
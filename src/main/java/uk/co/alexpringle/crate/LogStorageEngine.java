@@ -0,0 +1,1729 @@
+package uk.co.alexpringle.crate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores a crate in append-only log segments instead of an SQLite table, for crates that take sustained bursts of
+ * writes. Each transaction appends its records to the active segment in one write, ending with a commit record.
+ * Every id and tag is indexed in memory, so reads cost at most one positioned read per item.
+ * <p>
+ * Once at least half of the log is dead records, it is compacted in the background into a snapshot segment holding
+ * only live items, along with a hint file that rebuilds the index on open without reading any payloads.
+ * Commits survive the process dying, but are only synced to disk when the crate is closed or compacted.
+ * Reads wait for transactions open on other threads. Items can not be queried by indexed fields.
+ */
+final class LogStorageEngine implements StorageEngine
+{
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * Size the active segment grows to before writes move on to a new one
+     */
+    private static final long MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+    /**
+     * Smallest log worth compacting
+     */
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+    private static final int COPY_BUFFER_BYTES = 1024 * 1024;
+    /**
+     * Length and checksum of the record body
+     */
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int HINT_VERSION = 1;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_TAG = 3;
+    private static final byte RECORD_UNTAG = 4;
+    private static final byte RECORD_CLEAR = 5;
+    private static final byte RECORD_COMMIT = 6;
+    /**
+     * First record of a segment written by compaction. The segment holds every live item, so replaces all earlier ones.
+     */
+    private static final byte RECORD_SNAPSHOT = 7;
+
+    private static final ExecutorService compactionExecutor =
+            Executors.newSingleThreadExecutor(CrateExecutor.createThreadFactory("Crate compaction"));
+
+    private final File directory;
+    private final String tableName;
+    /**
+     * Write lock held from the start to the end of a transaction, read lock while reads look up the index
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private final HashMap<String,Entry> entries = new HashMap<String, Entry>();
+    private final TreeSet<String> sortedIds = new TreeSet<String>();
+    private final HashMap<String,TreeSet<String>> tagIds = new HashMap<String, TreeSet<String>>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment activeSegment;
+    /**
+     * Size of the records needed to rebuild the index, compared with the size of the log to decide when to compact
+     */
+    private long liveBytes;
+    private boolean compacting;
+    private boolean closed;
+    // only used by the thread holding the write lock
+    private RecordBuffer transactionRecords = new RecordBuffer();
+    /**
+     * Entries as they were before the transaction changed them, or null for ids that were not stored
+     */
+    private final HashMap<String,Entry> transactionUndo = new HashMap<String, Entry>();
+    private int transactionDepth;
+    private boolean transactionSuccessful;
+    private boolean transactionFailed;
+
+    /**
+     * @param directory Directory of the crate's log files, shared with other crates
+     */
+    LogStorageEngine(File directory, String tableName)
+    {
+        this.directory = directory;
+        this.tableName = tableName;
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new CrateStorageException("Failed to create directory " + directory);
+        }
+        try
+        {
+            open();
+        }
+        catch(IOException e)
+        {
+            close();
+            throw new CrateStorageException("Failed to open log of " + tableName + " in " + directory, e);
+        }
+    }
+
+    /**
+     * Loads the index from the latest snapshot and the segments written after it, dropping any records a crash
+     * left without a commit
+     */
+    private void open() throws IOException
+    {
+        List<Long> segmentNumbers = listSegmentNumbers();
+        List<Segment> openedSegments = new ArrayList<Segment>();
+        int snapshotIndex = 0;
+        for(int i = 0; i < segmentNumbers.size(); i++)
+        {
+            Segment segment = new Segment(segmentNumbers.get(i), segmentFile(segmentNumbers.get(i)));
+            openedSegments.add(segment);
+            if(segment.isSnapshot())
+            {
+                snapshotIndex = i;
+            }
+        }
+
+        for(int i = 0; i < openedSegments.size(); i++)
+        {
+            Segment segment = openedSegments.get(i);
+            if(i < snapshotIndex)
+            {
+                // left behind by a compaction that did not finish deleting them
+                segment.retire();
+                deleteFile(hintFile(segment.number));
+                continue;
+            }
+            segments.add(segment);
+            if(i > snapshotIndex || !loadHint(segment))
+            {
+                replay(segment);
+            }
+        }
+
+        if(segments.isEmpty())
+        {
+            activeSegment = openSegment(1);
+            segments.add(activeSegment);
+        }
+        else
+        {
+            activeSegment = segments.get(segments.size() - 1);
+            rollSegmentIfFull();
+        }
+    }
+
+    /**
+     * Deletes temporary files and hints of segments that no longer exist
+     * @return Numbers of the table's segments, oldest first
+     */
+    private List<Long> listSegmentNumbers()
+    {
+        List<Long> segmentNumbers = new ArrayList<Long>();
+        List<Long> hintNumbers = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        String prefix = tableName + ".";
+        for(File file : files == null ? new File[0] : files)
+        {
+            String name = file.getName();
+            if(!name.startsWith(prefix))
+            {
+                continue;
+            }
+            if(name.endsWith(TEMP_SUFFIX))
+            {
+                deleteFile(file);
+            }
+            else if(name.endsWith(SEGMENT_SUFFIX))
+            {
+                addFileNumber(segmentNumbers, name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()));
+            }
+            else if(name.endsWith(HINT_SUFFIX))
+            {
+                addFileNumber(hintNumbers, name.substring(prefix.length(), name.length() - HINT_SUFFIX.length()));
+            }
+        }
+        hintNumbers.removeAll(segmentNumbers);
+        for(Long hintNumber : hintNumbers)
+        {
+            deleteFile(hintFile(hintNumber));
+        }
+        Collections.sort(segmentNumbers);
+        return segmentNumbers;
+    }
+
+    private static void addFileNumber(List<Long> numbers, String number)
+    {
+        try
+        {
+            numbers.add(Long.parseLong(number));
+        }
+        catch(NumberFormatException e)
+        {
+            // not one of this table's files
+        }
+    }
+
+    private File segmentFile(long number)
+    {
+        return new File(directory, tableName + "." + number + SEGMENT_SUFFIX);
+    }
+
+    private File hintFile(long number)
+    {
+        return new File(directory, tableName + "." + number + HINT_SUFFIX);
+    }
+
+    private static File tempFile(File file)
+    {
+        return new File(file.getPath() + TEMP_SUFFIX);
+    }
+
+    private static void deleteFile(File file)
+    {
+        if(file.exists() && !file.delete())
+        {
+            throw new CrateStorageException("Failed to delete " + file);
+        }
+    }
+
+    private Segment openSegment(long number)
+    {
+        File file = segmentFile(number);
+        try
+        {
+            return new Segment(number, file);
+        }
+        catch(IOException e)
+        {
+            throw new CrateStorageException("Failed to open " + file, e);
+        }
+    }
+
+    /**
+     * Applies each committed batch of records in the segment to the index, and truncates anything after the last commit
+     */
+    private void replay(Segment segment) throws IOException
+    {
+        List<Record> batch = new ArrayList<Record>();
+        long position = 0;
+        long committedPosition = 0;
+        CRC32 crc = new CRC32();
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+        try
+        {
+            while(position + RECORD_HEADER_BYTES <= segment.size)
+            {
+                int bodyLength = input.readInt();
+                int checksum = input.readInt();
+                if(bodyLength <= 0 || bodyLength > segment.size - position - RECORD_HEADER_BYTES)
+                {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                input.readFully(body);
+                crc.reset();
+                crc.update(body, 0, bodyLength);
+                if((int) crc.getValue() != checksum)
+                {
+                    break;
+                }
+
+                Record record = Record.parse(body, position + RECORD_HEADER_BYTES);
+                position += RECORD_HEADER_BYTES + bodyLength;
+                if(record.type == RECORD_COMMIT)
+                {
+                    for(Record batchRecord : batch)
+                    {
+                        apply(segment, batchRecord);
+                    }
+                    batch.clear();
+                    committedPosition = position;
+                }
+                else
+                {
+                    batch.add(record);
+                }
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+
+        if(committedPosition < segment.size)
+        {
+            segment.truncate(committedPosition);
+        }
+    }
+
+    /**
+     * @return False if the segment has no hint, or the hint does not match it
+     */
+    private boolean loadHint(Segment segment)
+    {
+        File file = hintFile(segment.number);
+        if(!file.exists())
+        {
+            return false;
+        }
+
+        List<String> hintIds = new ArrayList<String>();
+        List<Entry> hintEntries = new ArrayList<Entry>();
+        try
+        {
+            CheckedInputStream checkedInput = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), new CRC32());
+            DataInputStream input = new DataInputStream(checkedInput);
+            try
+            {
+                if(input.readInt() != HINT_VERSION || input.readLong() != segment.size)
+                {
+                    return false;
+                }
+                int entryCount = input.readInt();
+                for(int i = 0; i < entryCount; i++)
+                {
+                    hintIds.add(readString(input));
+                    long offset = input.readLong();
+                    int length = input.readInt();
+                    int format = input.readInt();
+                    int recordBytes = input.readInt();
+                    int tagCount = input.readInt();
+                    Set<String> tags = new HashSet<String>();
+                    for(int j = 0; j < tagCount; j++)
+                    {
+                        tags.add(readString(input));
+                    }
+                    hintEntries.add(new Entry(segment, offset, length, format, recordBytes, tags));
+                }
+                long checksum = checkedInput.getChecksum().getValue();
+                if(input.readLong() != checksum)
+                {
+                    return false;
+                }
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+
+        for(int i = 0; i < hintIds.size(); i++)
+        {
+            addEntry(hintIds.get(i), hintEntries.get(i));
+        }
+        return true;
+    }
+
+    private static String readString(DataInputStream input) throws IOException
+    {
+        int length = input.readInt();
+        if(length < 0)
+        {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @Override
+    public void beginTransaction()
+    {
+        lock.writeLock().lock();
+        if(transactionDepth == 0)
+        {
+            if(closed)
+            {
+                lock.writeLock().unlock();
+                throw new IllegalStateException("Log of " + tableName + " is closed");
+            }
+            transactionFailed = false;
+        }
+        transactionDepth++;
+        transactionSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful()
+    {
+        if(!lock.isWriteLockedByCurrentThread() || transactionDepth == 0)
+        {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        transactionSuccessful = true;
+    }
+
+    /**
+     * Appends the transaction's records once the outermost transaction ends, if it and every nested transaction were
+     * successful. Otherwise the index is put back as it was.
+     */
+    @Override
+    public void endTransaction()
+    {
+        if(!lock.isWriteLockedByCurrentThread() || transactionDepth == 0)
+        {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        try
+        {
+            transactionFailed |= !transactionSuccessful;
+            transactionSuccessful = false;
+            transactionDepth--;
+            if(transactionDepth == 0)
+            {
+                if(transactionFailed)
+                {
+                    rollback();
+                }
+                else
+                {
+                    commit();
+                }
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void commit()
+    {
+        if(transactionRecords.size() == 0)
+        {
+            return;
+        }
+
+        transactionRecords.write(new Record(RECORD_COMMIT, null, null, 0, 0), null);
+        try
+        {
+            activeSegment.append(transactionRecords.array(), transactionRecords.size());
+        }
+        catch(IOException e)
+        {
+            rollback();
+            throw new CrateStorageException("Failed to write " + activeSegment.file, e);
+        }
+        transactionUndo.clear();
+        resetTransactionRecords();
+
+        rollSegmentIfFull();
+        compactIfWorthwhile();
+    }
+
+    private void rollback()
+    {
+        for(Map.Entry<String,Entry> undo : transactionUndo.entrySet())
+        {
+            removeEntry(undo.getKey());
+            if(undo.getValue() != null)
+            {
+                addEntry(undo.getKey(), undo.getValue());
+            }
+        }
+        transactionUndo.clear();
+        resetTransactionRecords();
+    }
+
+    private void resetTransactionRecords()
+    {
+        // a large transaction's buffer is not kept around
+        if(transactionRecords.capacity() > COPY_BUFFER_BYTES)
+        {
+            transactionRecords = new RecordBuffer();
+        }
+        else
+        {
+            transactionRecords.reset();
+        }
+    }
+
+    private void rollSegmentIfFull()
+    {
+        if(activeSegment.size >= MAX_SEGMENT_BYTES)
+        {
+            activeSegment = openSegment(activeSegment.number + 1);
+            segments.add(activeSegment);
+        }
+    }
+
+    /**
+     * Appends a record to the open transaction and applies it to the index
+     */
+    private void write(Record record, byte[] payload)
+    {
+        if(record.id != null)
+        {
+            saveUndo(record.id);
+        }
+        transactionRecords.write(record, payload);
+        // records are appended after everything committed to the active segment
+        record.offset += activeSegment.size;
+        apply(activeSegment, record);
+    }
+
+    private void saveUndo(String itemId)
+    {
+        if(!transactionUndo.containsKey(itemId))
+        {
+            Entry entry = entries.get(itemId);
+            transactionUndo.put(itemId, entry == null ? null : entry.copy());
+        }
+    }
+
+    private void apply(Segment segment, Record record)
+    {
+        Entry entry = record.id == null ? null : entries.get(record.id);
+        switch(record.type)
+        {
+            case RECORD_PUT:
+                if(entry == null)
+                {
+                    addEntry(record.id, new Entry(segment, record.offset, record.length, record.format, record.bytes,
+                            new HashSet<String>()));
+                }
+                else
+                {
+                    entries.put(record.id, new Entry(segment, record.offset, record.length, record.format, record.bytes,
+                            entry.tags));
+                    liveBytes += record.bytes - entry.recordBytes;
+                }
+                break;
+            case RECORD_DELETE:
+                removeEntry(record.id);
+                break;
+            case RECORD_TAG:
+                if(entry != null && entry.tags.add(record.tag))
+                {
+                    getTagIds(record.tag).add(record.id);
+                    liveBytes += record.bytes;
+                }
+                break;
+            case RECORD_UNTAG:
+                if(entry != null && entry.tags.remove(record.tag))
+                {
+                    removeTagId(record.tag, record.id);
+                    liveBytes -= record.bytes;
+                }
+                break;
+            case RECORD_CLEAR:
+            case RECORD_SNAPSHOT:
+                entries.clear();
+                sortedIds.clear();
+                tagIds.clear();
+                liveBytes = 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addEntry(String itemId, Entry entry)
+    {
+        entries.put(itemId, entry);
+        sortedIds.add(itemId);
+        liveBytes += entry.recordBytes;
+        for(String tag : entry.tags)
+        {
+            getTagIds(tag).add(itemId);
+            liveBytes += Record.tagRecordBytes(itemId, tag);
+        }
+    }
+
+    private void removeEntry(String itemId)
+    {
+        Entry entry = entries.remove(itemId);
+        if(entry == null)
+        {
+            return;
+        }
+        sortedIds.remove(itemId);
+        liveBytes -= entry.recordBytes;
+        for(String tag : entry.tags)
+        {
+            removeTagId(tag, itemId);
+            liveBytes -= Record.tagRecordBytes(itemId, tag);
+        }
+    }
+
+    private TreeSet<String> getTagIds(String itemTag)
+    {
+        TreeSet<String> ids = tagIds.get(itemTag);
+        if(ids == null)
+        {
+            ids = new TreeSet<String>();
+            tagIds.put(itemTag, ids);
+        }
+        return ids;
+    }
+
+    private void removeTagId(String itemTag, String itemId)
+    {
+        TreeSet<String> ids = tagIds.get(itemTag);
+        if(ids != null && ids.remove(itemId) && ids.isEmpty())
+        {
+            tagIds.remove(itemTag);
+        }
+    }
+
+    /**
+     * @return Ids with the tag, which must not be modified
+     */
+    private NavigableSet<String> idsWithTag(String itemTag)
+    {
+        TreeSet<String> ids = tagIds.get(itemTag);
+        return ids == null ? new TreeSet<String>() : ids;
+    }
+
+    private static List<String> page(NavigableSet<String> ids, String afterId, int limit)
+    {
+        List<String> pageIds = new ArrayList<String>();
+        for(String itemId : afterId == null ? ids : ids.tailSet(afterId, false))
+        {
+            if(pageIds.size() == limit)
+            {
+                break;
+            }
+            pageIds.add(itemId);
+        }
+        return pageIds;
+    }
+
+    /**
+     * Called with the read lock held
+     */
+    private StoredRows rows(Collection<String> itemIds)
+    {
+        List<String> rowIds = new ArrayList<String>(itemIds.size());
+        List<Entry> rowEntries = new ArrayList<Entry>(itemIds.size());
+        for(String itemId : itemIds)
+        {
+            Entry entry = entries.get(itemId);
+            if(entry != null)
+            {
+                rowIds.add(itemId);
+                rowEntries.add(entry);
+            }
+        }
+        return new EntryRows(rowIds, rowEntries);
+    }
+
+    private byte[] readPayload(Entry entry)
+    {
+        byte[] payload = new byte[entry.length];
+        Segment segment = entry.segment;
+        long committedSize = segment.size;
+        if(entry.offset + entry.length > committedSize)
+        {
+            // still in the open transaction's records, which only the thread holding the write lock can see
+            if(!lock.isWriteLockedByCurrentThread() || transactionDepth == 0 || segment != activeSegment)
+            {
+                throw new CrateStorageException("Item was rolled back before it was read");
+            }
+            System.arraycopy(transactionRecords.array(), (int) (entry.offset - committedSize), payload, 0, entry.length);
+            return payload;
+        }
+
+        try
+        {
+            segment.read(entry.offset, payload);
+        }
+        catch(IOException e)
+        {
+            throw new CrateStorageException("Failed to read " + segment.file, e);
+        }
+        return payload;
+    }
+
+    @Override
+    public StoredRows readWithId(String itemId)
+    {
+        return readWithIds(Collections.singletonList(itemId));
+    }
+
+    @Override
+    public StoredRows readWithIds(List<String> itemIds)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return rows(itemIds);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String itemId)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return entries.containsKey(itemId);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readAll()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return rows(sortedIds);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readPage(String afterId, int limit)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return rows(page(sortedIds, afterId, limit));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readWithTag(String itemTag)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return rows(idsWithTag(itemTag));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readWithTag(String itemTag, String afterId, int limit)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return rows(page(idsWithTag(itemTag), afterId, limit));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readWithAllTags(List<String> itemTags)
+    {
+        lock.readLock().lock();
+        try
+        {
+            List<NavigableSet<String>> taggedIds = new ArrayList<NavigableSet<String>>();
+            NavigableSet<String> fewestIds = null;
+            for(String itemTag : itemTags)
+            {
+                NavigableSet<String> ids = idsWithTag(itemTag);
+                taggedIds.add(ids);
+                if(fewestIds == null || ids.size() < fewestIds.size())
+                {
+                    fewestIds = ids;
+                }
+            }
+
+            List<String> matchingIds = new ArrayList<String>();
+            for(String itemId : fewestIds == null ? new TreeSet<String>() : fewestIds)
+            {
+                boolean hasAllTags = true;
+                for(NavigableSet<String> ids : taggedIds)
+                {
+                    hasAllTags &= ids.contains(itemId);
+                }
+                if(hasAllTags)
+                {
+                    matchingIds.add(itemId);
+                }
+            }
+            return rows(matchingIds);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readWithAnyTag(List<String> itemTags)
+    {
+        lock.readLock().lock();
+        try
+        {
+            TreeSet<String> matchingIds = new TreeSet<String>();
+            for(String itemTag : itemTags)
+            {
+                matchingIds.addAll(idsWithTag(itemTag));
+            }
+            return rows(matchingIds);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredRows readWhere(String clauses, String... selectionArgs)
+    {
+        throw new UnsupportedOperationException("Log structured crates can not be queried by indexed fields");
+    }
+
+    @Override
+    public List<String> ids(String itemTag)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<String>(itemTag == null ? sortedIds : idsWithTag(itemTag));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long count(String itemTag)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return itemTag == null ? entries.size() : idsWithTag(itemTag).size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> tags()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<String>(tagIds.keySet());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void store(StoredItem storedItem)
+    {
+        beginTransaction();
+        try
+        {
+            write(new Record(RECORD_PUT, storedItem.id, null, storedItem.format, storedItem.payload.length),
+                    storedItem.payload);
+            setTransactionSuccessful();
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public boolean addTag(String itemTag, String itemId)
+    {
+        beginTransaction();
+        try
+        {
+            Entry entry = entries.get(itemId);
+            boolean tagAdded = entry != null && !entry.tags.contains(itemTag);
+            if(tagAdded)
+            {
+                write(new Record(RECORD_TAG, itemId, itemTag, 0, 0), null);
+            }
+            setTransactionSuccessful();
+            return tagAdded;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public int removeTag(String itemTag, String itemId)
+    {
+        beginTransaction();
+        try
+        {
+            Entry entry = entries.get(itemId);
+            boolean tagRemoved = entry != null && entry.tags.contains(itemTag);
+            if(tagRemoved)
+            {
+                write(new Record(RECORD_UNTAG, itemId, itemTag, 0, 0), null);
+            }
+            setTransactionSuccessful();
+            return tagRemoved ? 1 : 0;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public int removeOtherTags(String itemId, String keptTag)
+    {
+        beginTransaction();
+        try
+        {
+            Entry entry = entries.get(itemId);
+            int tagsRemoved = 0;
+            if(entry != null)
+            {
+                for(String itemTag : new ArrayList<String>(entry.tags))
+                {
+                    if(!itemTag.equals(keptTag))
+                    {
+                        write(new Record(RECORD_UNTAG, itemId, itemTag, 0, 0), null);
+                        tagsRemoved++;
+                    }
+                }
+            }
+            setTransactionSuccessful();
+            return tagsRemoved;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public int deleteWithIds(List<String> itemIds)
+    {
+        beginTransaction();
+        try
+        {
+            int itemsDeleted = 0;
+            for(String itemId : itemIds)
+            {
+                if(entries.containsKey(itemId))
+                {
+                    write(new Record(RECORD_DELETE, itemId, null, 0, 0), null);
+                    itemsDeleted++;
+                }
+            }
+            setTransactionSuccessful();
+            return itemsDeleted;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public int deleteWithTag(String itemTag)
+    {
+        beginTransaction();
+        try
+        {
+            int itemsDeleted = deleteWithIds(new ArrayList<String>(idsWithTag(itemTag)));
+            setTransactionSuccessful();
+            return itemsDeleted;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public int deleteAll()
+    {
+        beginTransaction();
+        try
+        {
+            int itemsDeleted = entries.size();
+            if(itemsDeleted > 0)
+            {
+                for(String itemId : entries.keySet())
+                {
+                    saveUndo(itemId);
+                }
+                write(new Record(RECORD_CLEAR, null, null, 0, 0), null);
+            }
+            setTransactionSuccessful();
+            return itemsDeleted;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    @Override
+    public int removeTagAndDeleteUntagged(String itemTag, List<String> itemIds)
+    {
+        beginTransaction();
+        try
+        {
+            int itemsDeleted = 0;
+            for(String itemId : itemIds)
+            {
+                removeTag(itemTag, itemId);
+                Entry entry = entries.get(itemId);
+                if(entry != null && entry.tags.isEmpty())
+                {
+                    write(new Record(RECORD_DELETE, itemId, null, 0, 0), null);
+                    itemsDeleted++;
+                }
+            }
+            setTransactionSuccessful();
+            return itemsDeleted;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Indexed field values are not stored, as they can not be queried
+     */
+    @Override
+    public boolean addIndexedFields()
+    {
+        return false;
+    }
+
+    @Override
+    public void updateIndexedValues(String itemId, Object[] indexedValues)
+    {
+    }
+
+    /**
+     * Called with the write lock held, after a commit
+     */
+    private void compactIfWorthwhile()
+    {
+        long logBytes = 0;
+        for(Segment segment : segments)
+        {
+            logBytes += segment.size;
+        }
+        if(compacting || closed || logBytes < MIN_COMPACTION_BYTES || logBytes - liveBytes < liveBytes)
+        {
+            return;
+        }
+
+        compacting = true;
+        compactionExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    compact();
+                }
+                catch(Exception e)
+                {
+                    // the log is left as it was, and compacted after a later commit
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    lock.writeLock().lock();
+                    compacting = false;
+                    lock.writeLock().unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves writes on to a new segment, then copies the live items in every earlier segment into a snapshot segment
+     * that replaces them. Reads and writes carry on while the snapshot is written.
+     */
+    private void compact() throws IOException
+    {
+        List<Segment> compactedSegments;
+        List<String> liveIds;
+        List<Entry> liveEntries;
+        long snapshotNumber;
+        lock.writeLock().lock();
+        try
+        {
+            if(closed)
+            {
+                return;
+            }
+            compactedSegments = new ArrayList<Segment>(segments);
+            snapshotNumber = activeSegment.number + 1;
+            activeSegment = openSegment(snapshotNumber + 1);
+            segments.add(activeSegment);
+
+            liveIds = new ArrayList<String>(entries.size());
+            liveEntries = new ArrayList<Entry>(entries.size());
+            for(Map.Entry<String,Entry> entry : entries.entrySet())
+            {
+                liveIds.add(entry.getKey());
+                liveEntries.add(entry.getValue().copy());
+            }
+            for(Segment segment : compactedSegments)
+            {
+                segment.retain();
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        File logFile = segmentFile(snapshotNumber);
+        File hintFile = hintFile(snapshotNumber);
+        File tempLogFile = tempFile(logFile);
+        File tempHintFile = tempFile(hintFile);
+        try
+        {
+            long[] offsets = writeSnapshot(tempLogFile, liveIds, liveEntries);
+            writeHint(tempHintFile, tempLogFile.length(), liveIds, liveEntries, offsets);
+
+            lock.writeLock().lock();
+            try
+            {
+                if(closed)
+                {
+                    return;
+                }
+                if(!tempHintFile.renameTo(hintFile) || !tempLogFile.renameTo(logFile))
+                {
+                    throw new IOException("Failed to rename " + tempLogFile);
+                }
+                Segment snapshot = openSegment(snapshotNumber);
+                segments.removeAll(compactedSegments);
+                segments.add(0, snapshot);
+                for(int i = 0; i < liveIds.size(); i++)
+                {
+                    // items written since the snapshot started stay where they are
+                    Entry entry = entries.get(liveIds.get(i));
+                    Entry compactedEntry = liveEntries.get(i);
+                    if(entry != null && entry.segment == compactedEntry.segment && entry.offset == compactedEntry.offset)
+                    {
+                        entries.put(liveIds.get(i), entry.movedTo(snapshot, offsets[i]));
+                    }
+                }
+                for(Segment segment : compactedSegments)
+                {
+                    segment.retire();
+                    deleteFile(hintFile(segment.number));
+                }
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+        finally
+        {
+            for(Segment segment : compactedSegments)
+            {
+                segment.release();
+            }
+            deleteFile(tempLogFile);
+            deleteFile(tempHintFile);
+        }
+    }
+
+    /**
+     * @return Offsets of the items' payloads in the snapshot
+     */
+    private static long[] writeSnapshot(File file, List<String> liveIds, List<Entry> liveEntries) throws IOException
+    {
+        long[] offsets = new long[liveIds.size()];
+        FileOutputStream output = new FileOutputStream(file);
+        try
+        {
+            RecordBuffer buffer = new RecordBuffer();
+            long bytesWritten = 0;
+            buffer.write(new Record(RECORD_SNAPSHOT, null, null, 0, 0), null);
+            for(int i = 0; i < liveIds.size(); i++)
+            {
+                String itemId = liveIds.get(i);
+                Entry entry = liveEntries.get(i);
+                byte[] payload = new byte[entry.length];
+                entry.segment.read(entry.offset, payload);
+                Record record = new Record(RECORD_PUT, itemId, null, entry.format, entry.length);
+                buffer.write(record, payload);
+                offsets[i] = bytesWritten + record.offset;
+                for(String tag : entry.tags)
+                {
+                    buffer.write(new Record(RECORD_TAG, itemId, tag, 0, 0), null);
+                }
+
+                if(buffer.size() >= COPY_BUFFER_BYTES)
+                {
+                    output.write(buffer.array(), 0, buffer.size());
+                    bytesWritten += buffer.size();
+                    buffer.reset();
+                }
+            }
+            buffer.write(new Record(RECORD_COMMIT, null, null, 0, 0), null);
+            output.write(buffer.array(), 0, buffer.size());
+            output.getFD().sync();
+        }
+        finally
+        {
+            output.close();
+        }
+        return offsets;
+    }
+
+    private static void writeHint(File file, long segmentSize, List<String> liveIds, List<Entry> liveEntries,
+                                  long[] offsets) throws IOException
+    {
+        FileOutputStream fileOutput = new FileOutputStream(file);
+        CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(fileOutput), new CRC32());
+        DataOutputStream output = new DataOutputStream(checkedOutput);
+        try
+        {
+            output.writeInt(HINT_VERSION);
+            output.writeLong(segmentSize);
+            output.writeInt(liveIds.size());
+            for(int i = 0; i < liveIds.size(); i++)
+            {
+                Entry entry = liveEntries.get(i);
+                writeString(output, liveIds.get(i));
+                output.writeLong(offsets[i]);
+                output.writeInt(entry.length);
+                output.writeInt(entry.format);
+                output.writeInt(entry.recordBytes);
+                output.writeInt(entry.tags.size());
+                for(String tag : entry.tags)
+                {
+                    writeString(output, tag);
+                }
+            }
+            output.flush();
+            output.writeLong(checkedOutput.getChecksum().getValue());
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Syncs the active segment to disk. Reads still open keep the segments they read from until they are closed.
+     */
+    @Override
+    public void close()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                if(activeSegment != null)
+                {
+                    activeSegment.sync();
+                }
+            }
+            catch(IOException e)
+            {
+                throw new CrateStorageException("Failed to sync " + activeSegment.file, e);
+            }
+            finally
+            {
+                for(Segment segment : segments)
+                {
+                    segment.release();
+                }
+                segments.clear();
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Where an item's latest payload is stored, and the item's tags
+     */
+    private static final class Entry
+    {
+        final Segment segment;
+        /**
+         * Position of the payload in the segment
+         */
+        final long offset;
+        final int length;
+        final int format;
+        /**
+         * Size of the record the payload was written in
+         */
+        final int recordBytes;
+        /**
+         * Only modified with the write lock held
+         */
+        final Set<String> tags;
+
+        Entry(Segment segment, long offset, int length, int format, int recordBytes, Set<String> tags)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.format = format;
+            this.recordBytes = recordBytes;
+            this.tags = tags;
+        }
+
+        Entry copy()
+        {
+            return new Entry(segment, offset, length, format, recordBytes, new HashSet<String>(tags));
+        }
+
+        Entry movedTo(Segment newSegment, long newOffset)
+        {
+            return new Entry(newSegment, newOffset, length, format, recordBytes, tags);
+        }
+    }
+
+    /**
+     * One change to the log. Stored as the length and CRC32 of the body, then the body: the type, then the item id,
+     * format, payload length and payload of puts, and the item id and tag of tag changes.
+     */
+    private static final class Record
+    {
+        final byte type;
+        final String id;
+        final String tag;
+        final int format;
+        final int length;
+        /**
+         * Position of the payload, once written or read
+         */
+        long offset;
+        /**
+         * Size of the whole record, once written or read
+         */
+        int bytes;
+
+        Record(byte type, String id, String tag, int format, int length)
+        {
+            this.type = type;
+            this.id = id;
+            this.tag = tag;
+            this.format = format;
+            this.length = length;
+        }
+
+        static int tagRecordBytes(String itemId, String itemTag)
+        {
+            return RECORD_HEADER_BYTES + 1 + 4 + itemId.getBytes(UTF_8).length + 4 + itemTag.getBytes(UTF_8).length;
+        }
+
+        /**
+         * @param bodyOffset Position of the body in its segment
+         */
+        static Record parse(byte[] body, long bodyOffset)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            byte type = buffer.get();
+            String id = null;
+            String tag = null;
+            int format = 0;
+            int length = 0;
+            if(type == RECORD_PUT || type == RECORD_DELETE || type == RECORD_TAG || type == RECORD_UNTAG)
+            {
+                id = getString(buffer);
+            }
+            if(type == RECORD_PUT)
+            {
+                format = buffer.getInt();
+                length = buffer.getInt();
+            }
+            if(type == RECORD_TAG || type == RECORD_UNTAG)
+            {
+                tag = getString(buffer);
+            }
+            Record record = new Record(type, id, tag, format, length);
+            record.offset = bodyOffset + buffer.position();
+            record.bytes = RECORD_HEADER_BYTES + body.length;
+            return record;
+        }
+
+        private static String getString(ByteBuffer buffer)
+        {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+
+    /**
+     * Records waiting to be appended to a segment
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream
+    {
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Sets the record's offset to the position of its payload in this buffer
+         */
+        void write(Record record, byte[] payload)
+        {
+            int start = count;
+            writeInt(0);
+            writeInt(0);
+            write(record.type);
+            if(record.id != null)
+            {
+                writeString(record.id);
+            }
+            if(record.type == RECORD_PUT)
+            {
+                writeInt(record.format);
+                writeInt(record.length);
+                record.offset = count;
+                write(payload, 0, payload.length);
+            }
+            if(record.tag != null)
+            {
+                writeString(record.tag);
+            }
+
+            int bodyStart = start + RECORD_HEADER_BYTES;
+            crc.reset();
+            crc.update(buf, bodyStart, count - bodyStart);
+            putInt(start, count - bodyStart);
+            putInt(start + 4, (int) crc.getValue());
+            record.bytes = count - start;
+        }
+
+        private void writeString(String string)
+        {
+            byte[] bytes = string.getBytes(UTF_8);
+            writeInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        private void writeInt(int value)
+        {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        private void putInt(int position, int value)
+        {
+            buf[position] = (byte) (value >>> 24);
+            buf[position + 1] = (byte) (value >>> 16);
+            buf[position + 2] = (byte) (value >>> 8);
+            buf[position + 3] = (byte) value;
+        }
+
+        byte[] array()
+        {
+            return buf;
+        }
+
+        int capacity()
+        {
+            return buf.length;
+        }
+    }
+
+    /**
+     * One log file. Closed and, once retired by compaction, deleted when the last read using it is closed.
+     */
+    private static final class Segment
+    {
+        final long number;
+        final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        /**
+         * Bytes of committed records. Only grows with the write lock held, and is set before the lock is released.
+         */
+        volatile long size;
+        private int references = 1;
+        private boolean retired;
+
+        Segment(long number, File file) throws IOException
+        {
+            this.number = number;
+            this.file = file;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            size = channel.size();
+        }
+
+        boolean isSnapshot() throws IOException
+        {
+            if(size <= RECORD_HEADER_BYTES)
+            {
+                return false;
+            }
+            byte[] type = new byte[1];
+            read(RECORD_HEADER_BYTES, type);
+            return type[0] == RECORD_SNAPSHOT;
+        }
+
+        /**
+         * Truncated back to its committed size if the write fails
+         */
+        void append(byte[] bytes, int length) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            long position = size;
+            try
+            {
+                while(buffer.hasRemaining())
+                {
+                    position += channel.write(buffer, position);
+                }
+            }
+            catch(IOException e)
+            {
+                channel.truncate(size);
+                throw e;
+            }
+            size = position;
+        }
+
+        void read(long position, byte[] bytes) throws IOException
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while(buffer.hasRemaining())
+            {
+                if(channel.read(buffer, position + buffer.position()) < 0)
+                {
+                    throw new EOFException("Unexpected end of " + file);
+                }
+            }
+        }
+
+        void truncate(long newSize) throws IOException
+        {
+            channel.truncate(newSize);
+            size = newSize;
+        }
+
+        void sync() throws IOException
+        {
+            channel.force(false);
+        }
+
+        synchronized void retain()
+        {
+            references++;
+        }
+
+        synchronized void release()
+        {
+            references--;
+            if(references > 0)
+            {
+                return;
+            }
+            try
+            {
+                randomAccessFile.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+            if(retired)
+            {
+                deleteFile(file);
+            }
+        }
+
+        /**
+         * Deletes the segment once nothing is reading it
+         */
+        synchronized void retire()
+        {
+            retired = true;
+            release();
+        }
+    }
+
+    private final class EntryRows implements StoredRows
+    {
+        private final List<String> rowIds;
+        private final List<Entry> rowEntries;
+        private final Set<Segment> retainedSegments = new HashSet<Segment>();
+        private int position = -1;
+        private boolean closed;
+
+        /**
+         * Called with the read lock held, so the segments can not be retired before they are retained
+         */
+        EntryRows(List<String> rowIds, List<Entry> rowEntries)
+        {
+            this.rowIds = rowIds;
+            this.rowEntries = rowEntries;
+            for(Entry entry : rowEntries)
+            {
+                if(retainedSegments.add(entry.segment))
+                {
+                    entry.segment.retain();
+                }
+            }
+        }
+
+        @Override
+        public boolean moveToNext()
+        {
+            if(closed || position >= rowIds.size())
+            {
+                return false;
+            }
+            position++;
+            return position < rowIds.size();
+        }
+
+        @Override
+        public String getId()
+        {
+            return rowIds.get(position);
+        }
+
+        @Override
+        public byte[] getPayload()
+        {
+            return readPayload(rowEntries.get(position));
+        }
+
+        @Override
+        public int getFormat()
+        {
+            return rowEntries.get(position).format;
+        }
+
+        @Override
+        public void close()
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            for(Segment segment : retainedSegments)
+            {
+                segment.release();
+            }
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,639 @@
+package uk.co.alexpringle.crate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Every item of a crate table, deserialized, along with an index of their tags. Shared by every crate instance using
+ * the same table. Changes are only stored in the table when a snapshot is taken, so the memory table keeps track of
+ * which items changed since the last one.
+ * @param <T> Type of item stored in the table
+ */
+class MemoryTable<T>
+{
+    /**
+     * Items and tags of a snapshot, as they were when it was taken
+     */
+    static final class Changes<T>
+    {
+        /**
+         * True if every stored item must be removed before the changed items are stored
+         */
+        final boolean cleared;
+        final List<String> itemIds = new ArrayList<String>();
+        /**
+         * Item to store for each id, or null if the item was removed
+         */
+        final List<T> items = new ArrayList<T>();
+        final List<List<String>> itemTags = new ArrayList<List<String>>();
+
+        Changes(boolean cleared)
+        {
+            this.cleared = cleared;
+        }
+
+        boolean isEmpty()
+        {
+            return !cleared && itemIds.isEmpty();
+        }
+    }
+
+    private final long snapshotIntervalMillis;
+    /**
+     * Read without the lock, so reads by id never wait for writes
+     */
+    private final ConcurrentHashMap<String,T> items = new ConcurrentHashMap<String, T>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private final TreeSet<String> sortedIds = new TreeSet<String>();
+    private final HashMap<String,Set<String>> itemTags = new HashMap<String, Set<String>>();
+    private final HashMap<String,TreeSet<String>> tagIds = new HashMap<String, TreeSet<String>>();
+    private final LinkedHashSet<String> changedIds = new LinkedHashSet<String>();
+    private boolean cleared;
+    private boolean snapshotScheduled;
+    private volatile boolean loaded;
+    private final Object snapshotLock = new Object();
+
+    MemoryTable(long snapshotIntervalMillis)
+    {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    long getSnapshotIntervalMillis()
+    {
+        return snapshotIntervalMillis;
+    }
+
+    /**
+     * Held while loading or taking a snapshot, so snapshots of the same table never overlap
+     */
+    Object getSnapshotLock()
+    {
+        return snapshotLock;
+    }
+
+    boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * @param storedItems Items read from the table
+     * @param storedTagIds Ids of the items with each tag
+     */
+    void load(Map<String,T> storedItems, Map<String,List<String>> storedTagIds)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            clear();
+            changedIds.clear();
+            cleared = false;
+            items.putAll(storedItems);
+            sortedIds.addAll(storedItems.keySet());
+            for(Map.Entry<String,List<String>> tagEntry : storedTagIds.entrySet())
+            {
+                for(String itemId : tagEntry.getValue())
+                {
+                    if(items.containsKey(itemId))
+                    {
+                        addTagToIndex(itemId, tagEntry.getKey());
+                    }
+                }
+            }
+            loaded = true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets every item, so they are loaded from the table again on next use
+     */
+    void unload()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            loaded = false;
+            clear();
+            changedIds.clear();
+            cleared = false;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    T get(String itemId)
+    {
+        return items.get(itemId);
+    }
+
+    boolean contains(String itemId)
+    {
+        return items.containsKey(itemId);
+    }
+
+    List<T> withTag(String itemTag)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return itemsWithIds(idsWithTag(itemTag));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param itemTag Tag of items, or null for all items
+     * @param afterId Id to read items after, or null to read from the first item
+     * @return Up to limit items in id order
+     */
+    List<T> page(String itemTag, String afterId, int limit)
+    {
+        lock.readLock().lock();
+        try
+        {
+            NavigableSet<String> ids = itemTag == null ? sortedIds : idsWithTag(itemTag);
+            List<T> pageItems = new ArrayList<T>();
+            for(String itemId : afterId == null ? ids : ids.tailSet(afterId, false))
+            {
+                if(pageItems.size() == limit)
+                {
+                    break;
+                }
+                pageItems.add(items.get(itemId));
+            }
+            return pageItems;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<T> all()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return itemsWithIds(sortedIds);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<T> withAllTags(List<String> itemTags)
+    {
+        lock.readLock().lock();
+        try
+        {
+            NavigableSet<String> fewestIds = null;
+            for(String itemTag : itemTags)
+            {
+                NavigableSet<String> ids = idsWithTag(itemTag);
+                if(fewestIds == null || ids.size() < fewestIds.size())
+                {
+                    fewestIds = ids;
+                }
+            }
+
+            List<T> matchingItems = new ArrayList<T>();
+            for(String itemId : fewestIds == null ? new TreeSet<String>() : fewestIds)
+            {
+                if(getTags(itemId).containsAll(itemTags))
+                {
+                    matchingItems.add(items.get(itemId));
+                }
+            }
+            return matchingItems;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<T> withAnyTag(List<String> itemTags)
+    {
+        lock.readLock().lock();
+        try
+        {
+            TreeSet<String> matchingIds = new TreeSet<String>();
+            for(String itemTag : itemTags)
+            {
+                matchingIds.addAll(idsWithTag(itemTag));
+            }
+            return itemsWithIds(matchingIds);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param itemTag Tag of items, or null for all items
+     * @return Ids in id order
+     */
+    List<String> ids(String itemTag)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<String>(itemTag == null ? sortedIds : idsWithTag(itemTag));
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param itemTag Tag of items, or null for all items
+     */
+    long count(String itemTag)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return itemTag == null ? sortedIds.size() : idsWithTag(itemTag).size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the item with exactly the tag, or keeping any tags it has if the tag is null
+     */
+    void put(String itemId, T item, String tag)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            putItem(itemId, item, tag);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param itemIds Ids of the items, in the same order
+     */
+    void putAll(List<String> itemIds, List<T> newItems, String tag)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            for(int i = 0; i < itemIds.size(); i++)
+            {
+                putItem(itemIds.get(i), newItems.get(i), tag);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores new items with the tag, and removes the tag from every other item that has it. Those left with no tags
+     * are removed.
+     * @return Number of items removed
+     */
+    int replace(String itemTag, List<String> itemIds, List<T> newItems)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Set<String> replacementIds = new HashSet<String>(itemIds);
+            int itemsRemoved = 0;
+            for(String itemId : new ArrayList<String>(idsWithTag(itemTag)))
+            {
+                if(!replacementIds.contains(itemId))
+                {
+                    removeTagFromIndex(itemId, itemTag);
+                    if(getTags(itemId).isEmpty())
+                    {
+                        removeItem(itemId);
+                        itemsRemoved++;
+                    }
+                    changedIds.add(itemId);
+                }
+            }
+            for(int i = 0; i < itemIds.size(); i++)
+            {
+                putItem(itemIds.get(i), newItems.get(i), itemTag);
+            }
+            return itemsRemoved;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return True if the tag was added, false if the item already had it or does not exist
+     */
+    boolean addTag(String itemId, String itemTag)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(!items.containsKey(itemId) || getTags(itemId).contains(itemTag))
+            {
+                return false;
+            }
+            addTagToIndex(itemId, itemTag);
+            changedIds.add(itemId);
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return True if the item had the tag
+     */
+    boolean removeTag(String itemId, String itemTag)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(!removeTagFromIndex(itemId, itemTag))
+            {
+                return false;
+            }
+            changedIds.add(itemId);
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of items removed
+     */
+    int remove(Collection<String> itemIds)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int itemsRemoved = 0;
+            for(String itemId : itemIds)
+            {
+                if(removeItem(itemId))
+                {
+                    changedIds.add(itemId);
+                    itemsRemoved++;
+                }
+            }
+            return itemsRemoved;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes items with the tag, along with any other tags they have
+     * @return Number of items removed
+     */
+    int removeWithTag(String itemTag)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            return remove(new ArrayList<String>(idsWithTag(itemTag)));
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of items removed
+     */
+    int removeAll()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int itemsRemoved = items.size();
+            clear();
+            // the snapshot removes every stored item, so earlier changes no longer need storing
+            changedIds.clear();
+            cleared = true;
+            return itemsRemoved;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return True if there are changes to store and no snapshot has been scheduled to store them yet
+     */
+    boolean scheduleSnapshot()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if(snapshotScheduled || (!cleared && changedIds.isEmpty()))
+            {
+                return false;
+            }
+            snapshotScheduled = true;
+            return true;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the changes made since the last snapshot, so later changes are stored by the next one
+     */
+    Changes<T> takeChanges()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Changes<T> changes = new Changes<T>(cleared);
+            for(String itemId : changedIds)
+            {
+                changes.itemIds.add(itemId);
+                changes.items.add(items.get(itemId));
+                changes.itemTags.add(new ArrayList<String>(getTags(itemId)));
+            }
+            changedIds.clear();
+            cleared = false;
+            snapshotScheduled = false;
+            return changes;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks changes as not stored again, after their snapshot failed
+     */
+    void restoreChanges(Changes<T> changes)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            cleared |= changes.cleared;
+            changedIds.addAll(changes.itemIds);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void putItem(String itemId, T item, String tag)
+    {
+        items.put(itemId, item);
+        sortedIds.add(itemId);
+        if(tag != null)
+        {
+            // the item is stored with exactly this tag
+            for(String otherTag : new ArrayList<String>(getTags(itemId)))
+            {
+                removeTagFromIndex(itemId, otherTag);
+            }
+            addTagToIndex(itemId, tag);
+        }
+        changedIds.add(itemId);
+    }
+
+    private boolean removeItem(String itemId)
+    {
+        if(items.remove(itemId) == null)
+        {
+            return false;
+        }
+        sortedIds.remove(itemId);
+        Set<String> tags = itemTags.remove(itemId);
+        if(tags != null)
+        {
+            for(String tag : tags)
+            {
+                removeTagId(tag, itemId);
+            }
+        }
+        return true;
+    }
+
+    private void clear()
+    {
+        items.clear();
+        sortedIds.clear();
+        itemTags.clear();
+        tagIds.clear();
+    }
+
+    private Set<String> getTags(String itemId)
+    {
+        Set<String> tags = itemTags.get(itemId);
+        return tags == null ? Collections.<String>emptySet() : tags;
+    }
+
+    private void addTagToIndex(String itemId, String itemTag)
+    {
+        Set<String> tags = itemTags.get(itemId);
+        if(tags == null)
+        {
+            tags = new HashSet<String>();
+            itemTags.put(itemId, tags);
+        }
+        tags.add(itemTag);
+
+        TreeSet<String> ids = tagIds.get(itemTag);
+        if(ids == null)
+        {
+            ids = new TreeSet<String>();
+            tagIds.put(itemTag, ids);
+        }
+        ids.add(itemId);
+    }
+
+    /**
+     * @return True if the item had the tag
+     */
+    private boolean removeTagFromIndex(String itemId, String itemTag)
+    {
+        Set<String> tags = itemTags.get(itemId);
+        if(tags == null || !tags.remove(itemTag))
+        {
+            return false;
+        }
+        if(tags.isEmpty())
+        {
+            itemTags.remove(itemId);
+        }
+        removeTagId(itemTag, itemId);
+        return true;
+    }
+
+    private void removeTagId(String itemTag, String itemId)
+    {
+        TreeSet<String> ids = tagIds.get(itemTag);
+        if(ids != null && ids.remove(itemId) && ids.isEmpty())
+        {
+            tagIds.remove(itemTag);
+        }
+    }
+
+    private NavigableSet<String> idsWithTag(String itemTag)
+    {
+        TreeSet<String> ids = tagIds.get(itemTag);
+        return ids == null ? new TreeSet<String>() : ids;
+    }
+
+    private List<T> itemsWithIds(Collection<String> itemIds)
+    {
+        List<T> idItems = new ArrayList<T>(itemIds.size());
+        for(String itemId : itemIds)
+        {
+            idItems.add(items.get(itemId));
+        }
+        return idItems;
+    }
+}
@@ -0,0 +1,98 @@
+package uk.co.alexpringle.crate;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of stored payloads. Compressed payloads start with their uncompressed length so they can be
+ * inflated into an exactly sized array.
+ */
+class PayloadCompression
+{
+    private static final int LENGTH_BYTES = 4;
+
+    private PayloadCompression()
+    {
+    }
+
+    /**
+     * @return Compressed payload, or null if compressing would not make the payload smaller
+     */
+    static byte[] compress(byte[] payload)
+    {
+        Deflater deflater = new Deflater();
+        try
+        {
+            deflater.setInput(payload);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(payload.length / 2 + LENGTH_BYTES);
+            output.write(payload.length >>> 24);
+            output.write(payload.length >>> 16);
+            output.write(payload.length >>> 8);
+            output.write(payload.length);
+
+            byte[] buffer = new byte[Math.min(payload.length, 8192) + 64];
+            while(!deflater.finished())
+            {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+                if(output.size() >= payload.length)
+                {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    static byte[] decompress(byte[] compressedPayload)
+    {
+        if(compressedPayload.length < LENGTH_BYTES)
+        {
+            throw new ItemCodecException("Compressed item is truncated");
+        }
+        int length = ((compressedPayload[0] & 0xFF) << 24) | ((compressedPayload[1] & 0xFF) << 16) |
+                ((compressedPayload[2] & 0xFF) << 8) | (compressedPayload[3] & 0xFF);
+        if(length < 0)
+        {
+            throw new ItemCodecException("Compressed item is corrupt");
+        }
+
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(compressedPayload, LENGTH_BYTES, compressedPayload.length - LENGTH_BYTES);
+            byte[] payload = new byte[length];
+            int offset = 0;
+            while(offset < length && !inflater.finished())
+            {
+                int inflated = inflater.inflate(payload, offset, length - offset);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                offset += inflated;
+            }
+            if(offset != length)
+            {
+                throw new ItemCodecException("Compressed item is truncated");
+            }
+            return payload;
+        }
+        catch(DataFormatException e)
+        {
+            throw new ItemCodecException("Compressed item is corrupt", e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
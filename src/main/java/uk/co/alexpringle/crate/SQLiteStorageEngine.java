@@ -0,0 +1,704 @@
+package uk.co.alexpringle.crate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static uk.co.alexpringle.crate.Crate.*;
+
+/**
+ * Stores a crate in an SQLite table, with its tags in a second table indexed on (tag, id). Subclasses connect to
+ * SQLite, so the same tables and queries are used on Android and the JVM.
+ */
+abstract class SQLiteStorageEngine implements StorageEngine
+{
+    /**
+     * Result rows of a query, with columns numbered from 0
+     */
+    interface Rows
+    {
+        boolean moveToNext();
+
+        String getString(int column);
+
+        byte[] getBlob(int column);
+
+        long getLong(int column);
+
+        void close();
+
+        boolean isClosed();
+    }
+
+    /**
+     * Compiled statement that can be executed many times. Must be thread safe.
+     */
+    interface Statement
+    {
+        /**
+         * @param bindArgs Strings, byte arrays, Longs, Integers, Doubles or nulls
+         * @return Number of rows changed
+         */
+        int execute(Object... bindArgs);
+
+        void close();
+    }
+
+    private static final String ITEM_COLUMNS = ID + "," + ITEM + "," + FORMAT;
+    /**
+     * Records the layout version of each crate table in the database
+     */
+    static final String LAYOUT_TABLE = "CRATE_LAYOUT";
+    static final String TABLE_NAME = "TABLE_NAME";
+    static final String VERSION = "VERSION";
+    /**
+     * Add a step to {@link #migrate(int)} and increase this to change the layout of existing tables
+     */
+    static final int LAYOUT_VERSION = 2;
+
+    final String tableName;
+    final String tagsTableName;
+    private final List<IndexedField> indexedFields;
+    private Statement updateItemStatement;
+    private Statement insertItemStatement;
+    private Statement addTagStatement;
+    private Statement removeOtherTagsStatement;
+    private Statement updateIndexedValuesStatement;
+
+    SQLiteStorageEngine(String tableName, List<IndexedField> indexedFields)
+    {
+        this.tableName = tableName;
+        this.tagsTableName = tableName + TAGS_TABLE_SUFFIX;
+        this.indexedFields = indexedFields;
+    }
+
+    abstract Rows query(String sql, String... selectionArgs);
+
+    abstract Statement prepare(String sql);
+
+    /**
+     * Runs a statement that returns no rows, such as a table definition
+     */
+    abstract void execute(String sql);
+
+    /**
+     * @return Condition on the item table's id matching items with the tag bound to its single parameter
+     */
+    static String tagCondition(String tagsTableName)
+    {
+        return ID + " IN (SELECT " + ID + " FROM " + tagsTableName + " WHERE " + TAG + " =?)";
+    }
+
+    /**
+     * Creates the tables the first time the crate is opened, or migrates tables of an earlier layout version so their
+     * rows are kept. Subclasses call this in a transaction once connected.
+     * @throws CrateStorageException If the tables were written by a later layout version
+     */
+    final void createTables()
+    {
+        execute("CREATE TABLE IF NOT EXISTS " + LAYOUT_TABLE + "(" + TABLE_NAME + " TEXT PRIMARY KEY," + VERSION + " INTEGER NOT NULL)");
+        // tables of releases before versions were recorded are at version 0, and every step below copes with them
+        int layoutVersion = hasTable(tableName) ?
+                (int) queryLong("SELECT " + VERSION + " FROM " + LAYOUT_TABLE + " WHERE " + TABLE_NAME + "=?", tableName) : 0;
+        if(layoutVersion > LAYOUT_VERSION)
+        {
+            throw new CrateStorageException("Table " + tableName + " has layout version " + layoutVersion +
+                    ", which is newer than version " + LAYOUT_VERSION);
+        }
+        if(layoutVersion == LAYOUT_VERSION)
+        {
+            return;
+        }
+
+        for(int version = layoutVersion + 1; version <= LAYOUT_VERSION; version++)
+        {
+            migrate(version);
+        }
+        update("INSERT OR REPLACE INTO " + LAYOUT_TABLE + " (" + TABLE_NAME + "," + VERSION + ") VALUES (?,?)",
+                tableName, LAYOUT_VERSION);
+    }
+
+    /**
+     * Moves the tables from the previous layout version to this one. Steps only add to the tables, so must also
+     * cope with tables that already have their changes.
+     */
+    private void migrate(int version)
+    {
+        switch(version)
+        {
+            case 1:
+                execute("CREATE TABLE IF NOT EXISTS " + tableName + "(" + ID + " TEXT PRIMARY KEY," + ITEM + " BLOB," + FORMAT + " INTEGER)");
+                addColumnIfMissing(FORMAT, "INTEGER");
+                break;
+            case 2:
+                if(!hasTable(tagsTableName))
+                {
+                    createTagsTable();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("No migration to layout version " + version);
+        }
+    }
+
+    private boolean hasTable(String name)
+    {
+        return queryLong("SELECT COUNT(*) FROM sqlite_master WHERE type='table' AND name=?", name) > 0;
+    }
+
+    /**
+     * Tags are kept in their own table indexed on (tag, id), so an item can have any number of tags and tagged
+     * items are found and paged in id order without scanning or sorting. Tags of earlier single tag tables are moved
+     * into it, and removed along with their item by a trigger. With recursive triggers on, INSERT OR REPLACE would
+     * fire it too, so {@link #store(StoredItem)} updates stored rows rather than replacing them.
+     */
+    private void createTagsTable()
+    {
+        execute("CREATE TABLE " + tagsTableName + "(" + TAG + " TEXT NOT NULL," + ID + " TEXT NOT NULL)");
+        execute("CREATE UNIQUE INDEX " + tagsTableName + TAG_INDEX_SUFFIX + " ON " + tagsTableName + "(" + TAG + "," + ID + ")");
+        execute("CREATE INDEX " + tagsTableName + "_ID_INDEX ON " + tagsTableName + "(" + ID + ")");
+        execute("CREATE TRIGGER IF NOT EXISTS " + tableName + "_DELETE_TAGS AFTER DELETE ON " + tableName +
+                " BEGIN DELETE FROM " + tagsTableName + " WHERE " + ID + "=OLD." + ID + "; END");
+        if(hasColumn(TAG))
+        {
+            execute("INSERT INTO " + tagsTableName + " (" + TAG + "," + ID + ") SELECT " + TAG + "," + ID +
+                    " FROM " + tableName + " WHERE " + TAG + " IS NOT NULL");
+            execute("DROP INDEX IF EXISTS " + tableName + "_TAG_INDEX");
+            execute("DROP INDEX IF EXISTS " + tableName + TAG_INDEX_SUFFIX);
+            execute("UPDATE " + tableName + " SET " + TAG + "=NULL WHERE " + TAG + " IS NOT NULL");
+        }
+    }
+
+    private boolean addColumnIfMissing(String columnName, String columnType)
+    {
+        if(hasColumn(columnName))
+        {
+            return false;
+        }
+        execute("ALTER TABLE " + tableName + " ADD COLUMN " + columnName + " " + columnType);
+        return true;
+    }
+
+    private boolean hasColumn(String columnName)
+    {
+        Rows rows = query("PRAGMA table_info(" + tableName + ")");
+        try
+        {
+            while(rows.moveToNext())
+            {
+                // columns are cid, name, type, ...
+                if(columnName.equals(rows.getString(1)))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            rows.close();
+        }
+    }
+
+    long queryLong(String sql, String... selectionArgs)
+    {
+        Rows rows = query(sql, selectionArgs);
+        try
+        {
+            return rows.moveToNext() ? rows.getLong(0) : 0;
+        }
+        finally
+        {
+            rows.close();
+        }
+    }
+
+    private int update(String sql, Object... bindArgs)
+    {
+        Statement statement = prepare(sql);
+        try
+        {
+            return statement.execute(bindArgs);
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private StoredRows queryItems(String clauses, String... selectionArgs)
+    {
+        return new ItemRows(query("SELECT " + ITEM_COLUMNS + " FROM " + tableName + clauses, selectionArgs));
+    }
+
+    @Override
+    public StoredRows readWithId(String itemId)
+    {
+        return queryItems(" WHERE " + ID + " =?", itemId);
+    }
+
+    @Override
+    public StoredRows readWithIds(final List<String> itemIds)
+    {
+        return new ChunkedRows(itemIds.size(), MAX_QUERY_PARAMETERS)
+        {
+            @Override
+            StoredRows readChunk(int start, int end)
+            {
+                List<String> chunk = itemIds.subList(start, end);
+                return queryItems(" WHERE " + ID + inClause(chunk.size()), chunk.toArray(new String[chunk.size()]));
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String itemId)
+    {
+        return queryLong("SELECT COUNT(*) FROM " + tableName + " WHERE " + ID + "=?", itemId) > 0;
+    }
+
+    @Override
+    public StoredRows readAll()
+    {
+        return queryItems("");
+    }
+
+    @Override
+    public StoredRows readPage(String afterId, int limit)
+    {
+        if(afterId == null)
+        {
+            return queryItems(" ORDER BY " + ID + " LIMIT " + limit);
+        }
+        return queryItems(" WHERE " + ID + " >? ORDER BY " + ID + " LIMIT " + limit, afterId);
+    }
+
+    @Override
+    public StoredRows readWithTag(String itemTag)
+    {
+        return queryItems(" WHERE " + tagCondition(tagsTableName), itemTag);
+    }
+
+    @Override
+    public StoredRows readWithTag(String itemTag, String afterId, int limit)
+    {
+        if(afterId == null)
+        {
+            return queryItems(" WHERE " + ID + " IN (SELECT " + ID + " FROM " + tagsTableName + " WHERE " + TAG + " =? ORDER BY " + ID +
+                    " LIMIT " + limit + ") ORDER BY " + ID, itemTag);
+        }
+        return queryItems(" WHERE " + ID + " IN (SELECT " + ID + " FROM " + tagsTableName + " WHERE " + TAG + " =? AND " + ID +
+                " >? ORDER BY " + ID + " LIMIT " + limit + ") ORDER BY " + ID, itemTag, afterId);
+    }
+
+    @Override
+    public StoredRows readWithAllTags(List<String> itemTags)
+    {
+        return queryItems(" WHERE " + ID + " IN (SELECT " + ID + " FROM " + tagsTableName + " WHERE " + TAG + inClause(itemTags.size()) +
+                " GROUP BY " + ID + " HAVING COUNT(*) = " + itemTags.size() + ") ORDER BY " + ID, itemTags.toArray(new String[itemTags.size()]));
+    }
+
+    @Override
+    public StoredRows readWithAnyTag(List<String> itemTags)
+    {
+        return queryItems(" WHERE " + ID + " IN (SELECT " + ID + " FROM " + tagsTableName + " WHERE " + TAG + inClause(itemTags.size()) +
+                ") ORDER BY " + ID, itemTags.toArray(new String[itemTags.size()]));
+    }
+
+    @Override
+    public StoredRows readWhere(String clauses, String... selectionArgs)
+    {
+        return queryItems(clauses, selectionArgs);
+    }
+
+    @Override
+    public List<String> ids(String itemTag)
+    {
+        Rows rows = itemTag == null ? query("SELECT " + ID + " FROM " + tableName + " ORDER BY " + ID) :
+                query("SELECT " + ID + " FROM " + tagsTableName + " WHERE " + TAG + " =? ORDER BY " + ID, itemTag);
+        List<String> itemIds = new ArrayList<String>();
+        try
+        {
+            while(rows.moveToNext())
+            {
+                itemIds.add(rows.getString(0));
+            }
+        }
+        finally
+        {
+            rows.close();
+        }
+        return itemIds;
+    }
+
+    @Override
+    public List<String> tags()
+    {
+        Rows rows = query("SELECT DISTINCT " + TAG + " FROM " + tagsTableName);
+        List<String> itemTags = new ArrayList<String>();
+        try
+        {
+            while(rows.moveToNext())
+            {
+                itemTags.add(rows.getString(0));
+            }
+        }
+        finally
+        {
+            rows.close();
+        }
+        return itemTags;
+    }
+
+    @Override
+    public long count(String itemTag)
+    {
+        if(itemTag == null)
+        {
+            return queryLong("SELECT COUNT(*) FROM " + tableName);
+        }
+        return queryLong("SELECT COUNT(*) FROM " + tagsTableName + " WHERE " + TAG + "=?", itemTag);
+    }
+
+    /**
+     * Updates the stored row in place, or inserts one if the item isn't stored. Never replaces the row, so the tags
+     * trigger doesn't fire and the item keeps its tags.
+     */
+    @Override
+    public void store(StoredItem storedItem)
+    {
+        int valueCount = 2 + storedItem.indexedValues.length;
+        Object[] updateArgs = new Object[valueCount + 1];
+        updateArgs[0] = storedItem.payload;
+        updateArgs[1] = storedItem.format;
+        System.arraycopy(storedItem.indexedValues, 0, updateArgs, 2, storedItem.indexedValues.length);
+        updateArgs[valueCount] = storedItem.id;
+
+        beginTransaction();
+        try
+        {
+            if(getUpdateItemStatement().execute(updateArgs) == 0)
+            {
+                Object[] insertArgs = new Object[valueCount + 1];
+                insertArgs[0] = storedItem.id;
+                System.arraycopy(updateArgs, 0, insertArgs, 1, valueCount);
+                getInsertItemStatement().execute(insertArgs);
+            }
+            setTransactionSuccessful();
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    private synchronized Statement getUpdateItemStatement()
+    {
+        if(updateItemStatement == null)
+        {
+            StringBuilder updateSql = new StringBuilder("UPDATE " + tableName + " SET " + ITEM + "=?," + FORMAT + "=?");
+            for(IndexedField indexedField : indexedFields)
+            {
+                updateSql.append(",").append(indexedField.getColumnName()).append("=?");
+            }
+            updateItemStatement = prepare(updateSql.append(" WHERE " + ID + "=?").toString());
+        }
+        return updateItemStatement;
+    }
+
+    private synchronized Statement getInsertItemStatement()
+    {
+        if(insertItemStatement == null)
+        {
+            StringBuilder columns = new StringBuilder(ITEM_COLUMNS);
+            StringBuilder values = new StringBuilder("?,?,?");
+            for(IndexedField indexedField : indexedFields)
+            {
+                columns.append(",").append(indexedField.getColumnName());
+                values.append(",?");
+            }
+            insertItemStatement = prepare("INSERT INTO " + tableName + " (" + columns + ") VALUES (" + values + ")");
+        }
+        return insertItemStatement;
+    }
+
+    @Override
+    public boolean addTag(String itemTag, String itemId)
+    {
+        return getAddTagStatement().execute(itemTag, itemId) > 0;
+    }
+
+    private synchronized Statement getAddTagStatement()
+    {
+        if(addTagStatement == null)
+        {
+            addTagStatement = prepare("INSERT OR IGNORE INTO " + tagsTableName + " (" + TAG + "," + ID + ") SELECT ?," + ID +
+                    " FROM " + tableName + " WHERE " + ID + "=?");
+        }
+        return addTagStatement;
+    }
+
+    @Override
+    public int removeTag(String itemTag, String itemId)
+    {
+        return update("DELETE FROM " + tagsTableName + " WHERE " + TAG + "=? AND " + ID + "=?", itemTag, itemId);
+    }
+
+    @Override
+    public int removeOtherTags(String itemId, String keptTag)
+    {
+        return getRemoveOtherTagsStatement().execute(itemId, keptTag);
+    }
+
+    private synchronized Statement getRemoveOtherTagsStatement()
+    {
+        if(removeOtherTagsStatement == null)
+        {
+            // IS NOT matches every tag when the kept tag is null
+            removeOtherTagsStatement = prepare("DELETE FROM " + tagsTableName + " WHERE " + ID + "=? AND " + TAG + " IS NOT ?");
+        }
+        return removeOtherTagsStatement;
+    }
+
+    @Override
+    public int deleteWithIds(List<String> itemIds)
+    {
+        int itemsDeleted = 0;
+        for(int start = 0; start < itemIds.size(); start += MAX_QUERY_PARAMETERS)
+        {
+            List<String> chunk = itemIds.subList(start, Math.min(start + MAX_QUERY_PARAMETERS, itemIds.size()));
+            itemsDeleted += update("DELETE FROM " + tableName + " WHERE " + ID + inClause(chunk.size()), chunk.toArray());
+        }
+        return itemsDeleted;
+    }
+
+    @Override
+    public int deleteWithTag(String itemTag)
+    {
+        return update("DELETE FROM " + tableName + " WHERE " + tagCondition(tagsTableName), itemTag);
+    }
+
+    @Override
+    public int deleteAll()
+    {
+        return update("DELETE FROM " + tableName);
+    }
+
+    @Override
+    public int removeTagAndDeleteUntagged(String itemTag, List<String> itemIds)
+    {
+        int itemsDeleted = 0;
+        for(int start = 0; start < itemIds.size(); start += MAX_QUERY_PARAMETERS - 1)
+        {
+            List<String> chunk = itemIds.subList(start, Math.min(start + MAX_QUERY_PARAMETERS - 1, itemIds.size()));
+            Object[] tagAndChunkIds = new Object[chunk.size() + 1];
+            tagAndChunkIds[0] = itemTag;
+            System.arraycopy(chunk.toArray(), 0, tagAndChunkIds, 1, chunk.size());
+            update("DELETE FROM " + tagsTableName + " WHERE " + TAG + "=? AND " + ID + inClause(chunk.size()), tagAndChunkIds);
+            itemsDeleted += update("DELETE FROM " + tableName + " WHERE " + ID + inClause(chunk.size()) + " AND " + ID +
+                    " NOT IN (SELECT " + ID + " FROM " + tagsTableName + ")", chunk.toArray());
+        }
+        return itemsDeleted;
+    }
+
+    /**
+     * Adds a column and index for each indexed field the table does not have yet
+     */
+    @Override
+    public boolean addIndexedFields()
+    {
+        boolean columnAdded = false;
+        for(IndexedField indexedField : indexedFields)
+        {
+            columnAdded |= addColumnIfMissing(indexedField.getColumnName(), indexedField.getColumnType());
+            execute("CREATE INDEX IF NOT EXISTS " + tableName + "_" + indexedField.getColumnName() + "_INDEX ON " +
+                    tableName + "(" + indexedField.getColumnName() + ")");
+        }
+        return columnAdded;
+    }
+
+    @Override
+    public void updateIndexedValues(String itemId, Object[] indexedValues)
+    {
+        Object[] bindArgs = new Object[indexedValues.length + 1];
+        System.arraycopy(indexedValues, 0, bindArgs, 0, indexedValues.length);
+        bindArgs[indexedValues.length] = itemId;
+        getUpdateIndexedValuesStatement().execute(bindArgs);
+    }
+
+    private synchronized Statement getUpdateIndexedValuesStatement()
+    {
+        if(updateIndexedValuesStatement == null)
+        {
+            StringBuilder updateSql = new StringBuilder("UPDATE " + tableName + " SET ");
+            for(int i = 0; i < indexedFields.size(); i++)
+            {
+                updateSql.append(i == 0 ? "" : ",").append(indexedFields.get(i).getColumnName()).append("=?");
+            }
+            updateIndexedValuesStatement = prepare(updateSql.append(" WHERE " + ID + "=?").toString());
+        }
+        return updateIndexedValuesStatement;
+    }
+
+    /**
+     * Closes the compiled statements. Subclasses then close their connection.
+     */
+    @Override
+    public synchronized void close()
+    {
+        for(Statement statement : new Statement[]{updateItemStatement, insertItemStatement, addTagStatement,
+                removeOtherTagsStatement, updateIndexedValuesStatement})
+        {
+            if(statement != null)
+            {
+                statement.close();
+            }
+        }
+        updateItemStatement = null;
+        insertItemStatement = null;
+        addTagStatement = null;
+        removeOtherTagsStatement = null;
+        updateIndexedValuesStatement = null;
+    }
+
+    /**
+     * @return " IN (?,?,...)" with the given number of parameters
+     */
+    static String inClause(int parameterCount)
+    {
+        StringBuilder inClause = new StringBuilder(" IN (");
+        for(int i = 0; i < parameterCount; i++)
+        {
+            inClause.append(i == 0 ? "?" : ",?");
+        }
+        return inClause.append(")").toString();
+    }
+
+    /**
+     * Rows selected as id, item then format
+     */
+    private static final class ItemRows implements StoredRows
+    {
+        private final Rows rows;
+
+        ItemRows(Rows rows)
+        {
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean moveToNext()
+        {
+            return rows.moveToNext();
+        }
+
+        @Override
+        public String getId()
+        {
+            return rows.getString(0);
+        }
+
+        @Override
+        public byte[] getPayload()
+        {
+            return rows.getBlob(1);
+        }
+
+        @Override
+        public int getFormat()
+        {
+            return (int) rows.getLong(2);
+        }
+
+        @Override
+        public void close()
+        {
+            rows.close();
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return rows.isClosed();
+        }
+    }
+
+    /**
+     * Reads rows a chunk of parameters at a time, so no query binds more parameters than SQLite allows
+     */
+    private abstract static class ChunkedRows implements StoredRows
+    {
+        private final int size;
+        private final int chunkSize;
+        private int nextStart;
+        private StoredRows chunkRows;
+        private boolean closed;
+
+        ChunkedRows(int size, int chunkSize)
+        {
+            this.size = size;
+            this.chunkSize = chunkSize;
+        }
+
+        abstract StoredRows readChunk(int start, int end);
+
+        @Override
+        public boolean moveToNext()
+        {
+            while(!closed)
+            {
+                if(chunkRows != null && chunkRows.moveToNext())
+                {
+                    return true;
+                }
+                if(chunkRows != null)
+                {
+                    chunkRows.close();
+                    chunkRows = null;
+                }
+                if(nextStart >= size)
+                {
+                    closed = true;
+                    return false;
+                }
+                chunkRows = readChunk(nextStart, Math.min(nextStart + chunkSize, size));
+                nextStart += chunkSize;
+            }
+            return false;
+        }
+
+        @Override
+        public String getId()
+        {
+            return chunkRows.getId();
+        }
+
+        @Override
+        public byte[] getPayload()
+        {
+            return chunkRows.getPayload();
+        }
+
+        @Override
+        public int getFormat()
+        {
+            return chunkRows.getFormat();
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+            if(chunkRows != null)
+            {
+                chunkRows.close();
+                chunkRows = null;
+            }
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package uk.co.alexpringle.crate;
+
+import java.util.List;
+
+/**
+ * Stores the items and tags of one crate table. Crates only talk to their table through an engine, so the same crate
+ * can run on Android's SQLite or on the JVM. Engines are shared by all open instances of a crate, so must be thread safe.
+ * Rows returned by reads must be closed, and reads by a thread inside a transaction see that transaction's writes.
+ */
+interface StorageEngine
+{
+    /**
+     * Starts a transaction on the calling thread, or joins the one it has open. Other threads' writes wait until the
+     * outermost transaction ends.
+     */
+    void beginTransaction();
+
+    /**
+     * Marks the current transaction to be committed when it ends, if every transaction it is nested in is too
+     */
+    void setTransactionSuccessful();
+
+    void endTransaction();
+
+    /**
+     * @return The stored item with the id, if there is one
+     */
+    StoredRows readWithId(String itemId);
+
+    /**
+     * @return Stored items with any of the ids, in no particular order
+     */
+    StoredRows readWithIds(List<String> itemIds);
+
+    boolean exists(String itemId);
+
+    /**
+     * @return Every stored item, in no particular order
+     */
+    StoredRows readAll();
+
+    /**
+     * @param afterId Id to read items after, or null to read from the first item
+     * @return Up to limit stored items in id order
+     */
+    StoredRows readPage(String afterId, int limit);
+
+    /**
+     * @return Items with the tag, in no particular order
+     */
+    StoredRows readWithTag(String itemTag);
+
+    /**
+     * @param afterId Id to read items after, or null to read from the first tagged item
+     * @return Up to limit items with the tag in id order
+     */
+    StoredRows readWithTag(String itemTag, String afterId, int limit);
+
+    /**
+     * @return Items with every one of the tags, in id order
+     */
+    StoredRows readWithAllTags(List<String> itemTags);
+
+    /**
+     * @return Items with any of the tags, in id order
+     */
+    StoredRows readWithAnyTag(List<String> itemTags);
+
+    /**
+     * Reads items matching SQL clauses, as built by {@link CrateQuery}
+     * @throws UnsupportedOperationException If the engine does not store items in SQL
+     */
+    StoredRows readWhere(String clauses, String... selectionArgs);
+
+    /**
+     * @param itemTag Tag of items, or null for all items
+     * @return Ids in id order
+     */
+    List<String> ids(String itemTag);
+
+    /**
+     * @param itemTag Tag of items, or null for all items
+     */
+    long count(String itemTag);
+
+    /**
+     * @return Every tag of a stored item, in no particular order
+     */
+    List<String> tags();
+
+    /**
+     * Inserts or replaces the item, keeping any tags it has. The stored item's own tag is not added.
+     */
+    void store(StoredItem storedItem);
+
+    /**
+     * @return True if the tag was added, false if the item already had it or is not stored
+     */
+    boolean addTag(String itemTag, String itemId);
+
+    /**
+     * @return Number of tags removed
+     */
+    int removeTag(String itemTag, String itemId);
+
+    /**
+     * Removes every tag of the item other than the kept tag
+     * @param keptTag Tag to keep, or null to remove them all
+     * @return Number of tags removed
+     */
+    int removeOtherTags(String itemId, String keptTag);
+
+    /**
+     * Deletes items along with all their tags
+     * @return Number of items deleted
+     */
+    int deleteWithIds(List<String> itemIds);
+
+    /**
+     * Deletes items with the tag, along with all their tags
+     * @return Number of items deleted
+     */
+    int deleteWithTag(String itemTag);
+
+    /**
+     * @return Number of items deleted
+     */
+    int deleteAll();
+
+    /**
+     * Removes the tag from the items, then deletes any of them left with no tags
+     * @return Number of items deleted
+     */
+    int removeTagAndDeleteUntagged(String itemTag, List<String> itemIds);
+
+    /**
+     * Makes room to store the values of indexed fields the table was not storing yet
+     * @return True if the values of stored items must be filled in with {@link #updateIndexedValues(String, Object[])}
+     */
+    boolean addIndexedFields();
+
+    void updateIndexedValues(String itemId, Object[] indexedValues);
+
+    void close();
+}
@@ -0,0 +1,87 @@
+package uk.co.alexpringle.crate;
+
+import java.util.HashMap;
+
+/**
+ * Shares one {@link StorageEngine} between all open crate instances using the same table. The engine is
+ * created by the first instance to open and closed when the last instance closes.
+ */
+final class StorageEngineRegistry
+{
+    interface EngineFactory
+    {
+        /**
+         * Called with the registry locked, so no other instance can use the table before the engine is ready
+         */
+        StorageEngine create();
+    }
+
+    private static final class Registration
+    {
+        final StorageEngine engine;
+        int referenceCount;
+
+        Registration(StorageEngine engine)
+        {
+            this.engine = engine;
+        }
+    }
+
+    private static final HashMap<String,Registration> registrations = new HashMap<String, Registration>();
+
+    private StorageEngineRegistry()
+    {
+    }
+
+    /**
+     * Every call must be matched by a call to {@link #release(String, StorageEngine)}
+     * @return The table's shared engine, created with the factory if no instance has it open
+     */
+    static synchronized StorageEngine acquire(String tableName, EngineFactory engineFactory)
+    {
+        Registration registration = registrations.get(tableName);
+        if(registration == null)
+        {
+            registration = new Registration(engineFactory.create());
+            registrations.put(tableName, registration);
+        }
+        registration.referenceCount++;
+        return registration.engine;
+    }
+
+    /**
+     * Every non-null result must be matched by a call to {@link #release(String, StorageEngine)}
+     * @return The table's shared engine, or null if no instance has it open
+     */
+    static synchronized StorageEngine acquireIfOpen(String tableName)
+    {
+        Registration registration = registrations.get(tableName);
+        if(registration == null)
+        {
+            return null;
+        }
+        registration.referenceCount++;
+        return registration.engine;
+    }
+
+    /**
+     * @return True if this was the last reference, and the engine has been closed
+     */
+    static synchronized boolean release(String tableName, StorageEngine engine)
+    {
+        Registration registration = registrations.get(tableName);
+        if(registration == null || registration.engine != engine)
+        {
+            throw new IllegalStateException("Engine for " + tableName + " released more times than acquired");
+        }
+
+        registration.referenceCount--;
+        if(registration.referenceCount > 0)
+        {
+            return false;
+        }
+        registrations.remove(tableName);
+        engine.close();
+        return true;
+    }
+}
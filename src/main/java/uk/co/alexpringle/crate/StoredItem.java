@@ -0,0 +1,28 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * An item encoded as it is stored in a crate table.
+ */
+class StoredItem
+{
+    final String id;
+    final byte[] payload;
+    final int format;
+    /**
+     * Tag to add to the item, or null
+     */
+    final String tag;
+    /**
+     * Values of the crate's indexed fields, in the same order
+     */
+    final Object[] indexedValues;
+
+    StoredItem(String id, byte[] payload, int format, String tag, Object[] indexedValues)
+    {
+        this.id = id;
+        this.payload = payload;
+        this.format = format;
+        this.tag = tag;
+        this.indexedValues = indexedValues;
+    }
+}
@@ -0,0 +1,22 @@
+package uk.co.alexpringle.crate;
+
+/**
+ * Stored items read by a {@link StorageEngine}, one row at a time. Rows start before the first item.
+ */
+interface StoredRows
+{
+    /**
+     * @return False once there are no more rows
+     */
+    boolean moveToNext();
+
+    String getId();
+
+    byte[] getPayload();
+
+    int getFormat();
+
+    void close();
+
+    boolean isClosed();
+}
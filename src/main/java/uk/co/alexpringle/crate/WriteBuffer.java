@@ -0,0 +1,130 @@
+package uk.co.alexpringle.crate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Puts and removes waiting to be written to a crate table, keyed by item id so only the last write to an item is kept.
+ */
+class WriteBuffer
+{
+    static final class PendingWrite
+    {
+        final String itemId;
+        /**
+         * Item to store, or null if the item is to be removed
+         */
+        final StoredItem storedItem;
+        /**
+         * Tags to add to the item
+         */
+        final List<String> tags;
+        /**
+         * True if the item was removed or put with a tag since it was stored, so the stored item must not keep its tags
+         */
+        final boolean replacesStoredTags;
+
+        PendingWrite(String itemId, StoredItem storedItem, List<String> tags, boolean replacesStoredTags)
+        {
+            this.itemId = itemId;
+            this.storedItem = storedItem;
+            this.tags = tags;
+            this.replacesStoredTags = replacesStoredTags;
+        }
+
+        boolean isRemove()
+        {
+            return storedItem == null;
+        }
+    }
+
+    private final int maxSize;
+    private final long delayMillis;
+    private final LinkedHashMap<String,PendingWrite> pendingWrites = new LinkedHashMap<String, PendingWrite>();
+    private final Object flushLock = new Object();
+
+    WriteBuffer(int maxSize, long delayMillis)
+    {
+        this.maxSize = maxSize;
+        this.delayMillis = delayMillis;
+    }
+
+    int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    long getDelayMillis()
+    {
+        return delayMillis;
+    }
+
+    /**
+     * Held while flushing, so flushes of the same table never overlap
+     */
+    Object getFlushLock()
+    {
+        return flushLock;
+    }
+
+    synchronized PendingWrite get(String itemId)
+    {
+        return pendingWrites.get(itemId);
+    }
+
+    /**
+     * @return Number of pending writes after adding this one
+     */
+    synchronized int put(StoredItem storedItem)
+    {
+        PendingWrite previousWrite = pendingWrites.get(storedItem.id);
+        boolean replacesStoredTags = false;
+        List<String> tags = new ArrayList<String>();
+        if(storedItem.tag != null)
+        {
+            // the item is stored with exactly this tag
+            replacesStoredTags = true;
+            tags.add(storedItem.tag);
+        }
+        else if(previousWrite != null)
+        {
+            // an untagged put keeps the tags of the write it replaces
+            replacesStoredTags = previousWrite.isRemove() || previousWrite.replacesStoredTags;
+            tags.addAll(previousWrite.tags);
+        }
+        pendingWrites.put(storedItem.id, new PendingWrite(storedItem.id, storedItem, tags, replacesStoredTags));
+        return pendingWrites.size();
+    }
+
+    /**
+     * @return Number of pending writes after adding this one
+     */
+    synchronized int remove(String itemId)
+    {
+        pendingWrites.put(itemId, new PendingWrite(itemId, null, Collections.<String>emptyList(), false));
+        return pendingWrites.size();
+    }
+
+    synchronized List<PendingWrite> getPendingWrites()
+    {
+        return new ArrayList<PendingWrite>(pendingWrites.values());
+    }
+
+    /**
+     * Forgets writes once they are stored, unless they have been replaced by a newer write in the meantime
+     * @return Number of writes still pending
+     */
+    synchronized int removeFlushed(List<PendingWrite> flushedWrites)
+    {
+        for(PendingWrite flushedWrite : flushedWrites)
+        {
+            if(pendingWrites.get(flushedWrite.itemId) == flushedWrite)
+            {
+                pendingWrites.remove(flushedWrite.itemId);
+            }
+        }
+        return pendingWrites.size();
+    }
+}
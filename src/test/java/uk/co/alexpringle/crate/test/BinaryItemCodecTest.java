@@ -0,0 +1,129 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import uk.co.alexpringle.crate.BinaryItemCodec;
+import uk.co.alexpringle.crate.GsonItemCodec;
+import uk.co.alexpringle.crate.ItemCodecException;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryItemCodecTest
+{
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void roundTripSimpleItem()
+    {
+        BinaryItemCodec<SimpleItem> codec = new BinaryItemCodec<SimpleItem>(SimpleItem.class);
+        SimpleItem item = createSimpleItem();
+        Assert.assertEquals(item, codec.decode(codec.encode(item)));
+    }
+
+    @Test
+    public void roundTripNulls()
+    {
+        BinaryItemCodec<SimpleItem> codec = new BinaryItemCodec<SimpleItem>(SimpleItem.class);
+        SimpleItem item = new SimpleItem("1");
+        Assert.assertEquals(item, codec.decode(codec.encode(item)));
+    }
+
+    @Test
+    public void roundTripOtherTypes()
+    {
+        BinaryItemCodec<MixedItem> codec = new BinaryItemCodec<MixedItem>(MixedItem.class);
+        MixedItem item = new MixedItem();
+        item.shortValue = -12;
+        item.charValue = 'c';
+        item.byteValue = -1;
+        item.longValue = Long.MIN_VALUE;
+        item.intValue = Integer.MAX_VALUE;
+        item.doubleValue = Double.NaN;
+        item.state = State.DONE;
+        item.bytes = new byte[]{1, 2, 3};
+        item.names = new ArrayList<String>(Arrays.asList("a", "b"));
+
+        MixedItem decodedItem = codec.decode(codec.encode(item));
+        Assert.assertEquals(item.shortValue, decodedItem.shortValue);
+        Assert.assertEquals(item.charValue, decodedItem.charValue);
+        Assert.assertEquals(item.byteValue, decodedItem.byteValue);
+        Assert.assertEquals(item.longValue, decodedItem.longValue);
+        Assert.assertEquals(item.intValue, decodedItem.intValue);
+        Assert.assertTrue(Double.isNaN(decodedItem.doubleValue));
+        Assert.assertEquals(item.state, decodedItem.state);
+        Assert.assertArrayEquals(item.bytes, decodedItem.bytes);
+        Assert.assertEquals(item.names, decodedItem.names);
+        Assert.assertNull(decodedItem.ignored);
+    }
+
+    @Test
+    public void smallerThanJson()
+    {
+        BinaryItemCodec<SimpleItem> binaryCodec = new BinaryItemCodec<SimpleItem>(SimpleItem.class);
+        GsonItemCodec<SimpleItem> gsonCodec = new GsonItemCodec<SimpleItem>(SimpleItem.class);
+        SimpleItem item = createSimpleItem();
+        Assert.assertTrue(binaryCodec.encode(item).length < gsonCodec.encode(item).length);
+    }
+
+    @Test
+    public void decodeOtherSchema()
+    {
+        BinaryItemCodec<SimpleItem> codec = new BinaryItemCodec<SimpleItem>(SimpleItem.class);
+        BinaryItemCodec<MixedItem> otherCodec = new BinaryItemCodec<MixedItem>(MixedItem.class);
+
+        expectedException.expect(ItemCodecException.class);
+        codec.decode(otherCodec.encode(new MixedItem()));
+    }
+
+    @Test
+    public void decodeTruncated()
+    {
+        BinaryItemCodec<SimpleItem> codec = new BinaryItemCodec<SimpleItem>(SimpleItem.class);
+        byte[] bytes = codec.encode(new SimpleItem("123"));
+
+        expectedException.expect(ItemCodecException.class);
+        codec.decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    private SimpleItem createSimpleItem()
+    {
+        SimpleItem simpleItem = new SimpleItem("7f3a");
+        simpleItem.setName("Forename Surname");
+        simpleItem.setEmail("email@email.com");
+        simpleItem.setBalance(-12.5);
+        simpleItem.setSomeInt(-3);
+        simpleItem.setSomeLong(1L << 40);
+        simpleItem.setSomeFloat(0.25f);
+        simpleItem.setEnabled(true);
+        return simpleItem;
+    }
+
+    private enum State
+    {
+        WAITING, DONE
+    }
+
+    private static class MixedItem
+    {
+        private short shortValue;
+        private char charValue;
+        private Byte byteValue;
+        private long longValue;
+        private int intValue;
+        private double doubleValue;
+        private State state;
+        private byte[] bytes;
+        private List<String> names;
+        private transient String ignored = null;
+
+        private MixedItem()
+        {
+        }
+    }
+}
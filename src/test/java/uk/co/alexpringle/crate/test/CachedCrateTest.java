@@ -0,0 +1,145 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import uk.co.alexpringle.crate.test.crates.CachedCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CachedCrateTest
+{
+    private TestHelper testHelper;
+    private CachedCrate testCrate;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ShadowLog.stream = System.out;
+        testHelper = new TestHelper();
+        testCrate = new CachedCrate(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testHelper.clearCrateDatabase();
+        testCrate.close();
+    }
+
+    @Test
+    public void repeatedReadsHitCache()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+
+        long hits = testCrate.getCacheHitCount();
+        long misses = testCrate.getCacheMissCount();
+
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+
+        Assert.assertEquals(misses + 1, testCrate.getCacheMissCount());
+        Assert.assertEquals(hits + 2, testCrate.getCacheHitCount());
+    }
+
+    @Test
+    public void putInvalidatesCache()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.withId(randomItem.getId());
+
+        SimpleItem updatedItem = testHelper.createRandomSimpleItem();
+        updatedItem.setId(randomItem.getId());
+        testCrate.put(updatedItem);
+        Assert.assertEquals(updatedItem, testCrate.withId(randomItem.getId()));
+
+        SimpleItem bulkUpdatedItem = testHelper.createRandomSimpleItem();
+        bulkUpdatedItem.setId(randomItem.getId());
+        List<SimpleItem> bulkUpdatedItems = new ArrayList<SimpleItem>();
+        bulkUpdatedItems.add(bulkUpdatedItem);
+        testCrate.put(bulkUpdatedItems, "TEST_TAG");
+        Assert.assertEquals(bulkUpdatedItem, testCrate.withId(randomItem.getId()));
+    }
+
+    @Test
+    public void removeInvalidatesCache()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.withId(randomItem.getId());
+
+        testCrate.removeWithId(randomItem.getId());
+        Assert.assertNull(testCrate.withId(randomItem.getId()));
+    }
+
+    @Test
+    public void removeWithTagInvalidatesCache()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "TEST_TAG");
+        testCrate.withId(randomItem.getId());
+
+        testCrate.removeWithTag("TEST_TAG");
+        Assert.assertNull(testCrate.withId(randomItem.getId()));
+    }
+
+    @Test
+    public void removeAllInvalidatesCache()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.withId(randomItem.getId());
+
+        testCrate.removeAll();
+        Assert.assertNull(testCrate.withId(randomItem.getId()));
+    }
+
+    @Test
+    public void replaceInvalidatesCache()
+    {
+        List<SimpleItem> existingItems = testHelper.createRandomSimpleItems(3);
+        testCrate.put(existingItems, "TEST_TAG");
+        for(SimpleItem existingItem : existingItems)
+        {
+            testCrate.withId(existingItem.getId());
+        }
+
+        testCrate.replace("TEST_TAG", testHelper.createRandomSimpleItem());
+        for(SimpleItem existingItem : existingItems)
+        {
+            Assert.assertNull(testCrate.withId(existingItem.getId()));
+        }
+    }
+
+    @Test
+    public void cacheSharedBetweenInstances()
+    {
+        CachedCrate otherCrate = new CachedCrate(RuntimeEnvironment.application);
+
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+
+        SimpleItem updatedItem = testHelper.createRandomSimpleItem();
+        updatedItem.setId(randomItem.getId());
+        otherCrate.put(updatedItem);
+
+        Assert.assertEquals(updatedItem, testCrate.withId(randomItem.getId()));
+        testCrate.removeWithId(randomItem.getId());
+        Assert.assertNull(otherCrate.withId(randomItem.getId()));
+        otherCrate.close();
+    }
+}
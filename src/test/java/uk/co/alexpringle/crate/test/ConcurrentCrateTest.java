@@ -0,0 +1,169 @@
+package uk.co.alexpringle.crate.test;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import uk.co.alexpringle.crate.test.crates.BlockingCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ConcurrentCrateTest
+{
+    private TestHelper testHelper;
+    private BlockingCrate testCrate;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ShadowLog.stream = System.out;
+        testHelper = new TestHelper();
+        testCrate = new BlockingCrate(RuntimeEnvironment.application);
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testCrate.release.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        testHelper.clearCrateDatabase();
+        testCrate.close();
+    }
+
+    @Test
+    public void instancesShareOneConnection() throws Exception
+    {
+        List<Future<SimpleCrate>> openedCrates = new ArrayList<Future<SimpleCrate>>();
+        final CountDownLatch start = new CountDownLatch(1);
+        for(int i = 0; i < 8; i++)
+        {
+            openedCrates.add(executor.submit(new Callable<SimpleCrate>()
+            {
+                @Override
+                public SimpleCrate call() throws Exception
+                {
+                    start.await();
+                    return new SimpleCrate(RuntimeEnvironment.application);
+                }
+            }));
+        }
+        start.countDown();
+
+        List<SimpleCrate> crates = new ArrayList<SimpleCrate>();
+        for(Future<SimpleCrate> openedCrate : openedCrates)
+        {
+            crates.add(openedCrate.get(10, TimeUnit.SECONDS));
+        }
+        SQLiteOpenHelper helper = TestHelper.getSQLiteOpenHelper(crates.get(0));
+        for(SimpleCrate crate : crates)
+        {
+            Assert.assertSame(helper, TestHelper.getSQLiteOpenHelper(crate));
+        }
+
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        crates.get(0).put(randomItem);
+        SQLiteDatabase database = helper.getWritableDatabase();
+        for(SimpleCrate crate : crates.subList(0, crates.size() - 1))
+        {
+            crate.close();
+        }
+        SimpleCrate lastCrate = crates.get(crates.size() - 1);
+        Assert.assertTrue(database.isOpen());
+        Assert.assertEquals(randomItem, lastCrate.withId(randomItem.getId()));
+
+        lastCrate.close();
+        Assert.assertFalse(database.isOpen());
+    }
+
+    @Test
+    public void readsProceedDuringWriteTransaction() throws Exception
+    {
+        final SimpleItem existingItem = testHelper.createRandomSimpleItem();
+        testCrate.put(existingItem);
+
+        // the first item is written, then the transaction is held open while saving the second
+        final List<SimpleItem> newItems = testHelper.createRandomSimpleItems(2);
+        newItems.get(1).setId(BlockingCrate.BLOCKING_ID);
+        Future<?> write = executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                testCrate.put(newItems);
+            }
+        });
+        Assert.assertTrue(testCrate.blocked.await(10, TimeUnit.SECONDS));
+
+        Future<SimpleItem[]> read = executor.submit(new Callable<SimpleItem[]>()
+        {
+            @Override
+            public SimpleItem[] call()
+            {
+                return new SimpleItem[]{testCrate.withId(existingItem.getId()), testCrate.withId(newItems.get(0).getId())};
+            }
+        });
+        SimpleItem[] readItems = read.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(existingItem, readItems[0]);
+        Assert.assertNull("uncommitted write was visible", readItems[1]);
+
+        testCrate.release.countDown();
+        write.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(newItems.get(0), testCrate.withId(newItems.get(0).getId()));
+        Assert.assertEquals(3, testCrate.count());
+    }
+
+    @Test
+    public void putDuringWriteTransaction() throws Exception
+    {
+        // the transaction holds the primary connection, which the single put waits for without blocking the transaction
+        final List<SimpleItem> newItems = testHelper.createRandomSimpleItems(3);
+        newItems.get(1).setId(BlockingCrate.BLOCKING_ID);
+        Future<?> transaction = executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                testCrate.put(newItems, "TEST_TAG");
+            }
+        });
+        Assert.assertTrue(testCrate.blocked.await(10, TimeUnit.SECONDS));
+
+        final SimpleItem singleItem = testHelper.createRandomSimpleItem();
+        Future<?> put = executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                testCrate.put(singleItem);
+            }
+        });
+        Thread.sleep(200);
+
+        testCrate.release.countDown();
+        transaction.get(10, TimeUnit.SECONDS);
+        put.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(3, testCrate.count("TEST_TAG"));
+        Assert.assertEquals(singleItem, testCrate.withId(singleItem.getId()));
+    }
+}
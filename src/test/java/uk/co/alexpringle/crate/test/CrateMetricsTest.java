@@ -0,0 +1,145 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import uk.co.alexpringle.crate.Crate;
+import uk.co.alexpringle.crate.CrateIterator;
+import uk.co.alexpringle.crate.CrateMetrics;
+import uk.co.alexpringle.crate.CrateOperation;
+import uk.co.alexpringle.crate.test.crates.CachedCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class CrateMetricsTest
+{
+    private TestHelper testHelper;
+    private CachedCrate testCrate;
+    private CrateMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ShadowLog.stream = System.out;
+        testHelper = new TestHelper();
+        testCrate = new CachedCrate(RuntimeEnvironment.application);
+        metrics = new CrateMetrics();
+        Crate.setListener(metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        Crate.setListener(null);
+        testHelper.clearCrateDatabase();
+        testCrate.close();
+    }
+
+    @Test
+    public void reportsReadsAndCacheHits()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+
+        CrateMetrics.OperationStats putStats = metrics.getStats(CachedCrate.class, CrateOperation.PUT);
+        Assert.assertEquals(1, putStats.getCount());
+        Assert.assertEquals(1, putStats.getRowsWritten());
+        Assert.assertTrue(putStats.getBytesWritten() > 0);
+
+        testCrate.withId(randomItem.getId());
+        testCrate.withId(randomItem.getId());
+
+        CrateMetrics.OperationStats withIdStats = metrics.getStats(CachedCrate.class, CrateOperation.WITH_ID);
+        Assert.assertEquals(2, withIdStats.getCount());
+        Assert.assertEquals(1, withIdStats.getRowsRead());
+        Assert.assertEquals(putStats.getBytesWritten(), withIdStats.getBytesRead());
+        Assert.assertEquals(1, withIdStats.getCacheHits());
+        Assert.assertTrue(withIdStats.getLatencyPercentileNanos(100) >= withIdStats.getLatencyPercentileNanos(50));
+        Assert.assertTrue(withIdStats.getLatencyPercentileNanos(50) > 0);
+    }
+
+    @Test
+    public void iterationReportedOnceFinished()
+    {
+        List<SimpleItem> randomItems = new ArrayList<SimpleItem>();
+        for(int i = 0; i < 5; i++)
+        {
+            randomItems.add(testHelper.createRandomSimpleItem());
+        }
+        testCrate.put(randomItems, "TEST_TAG");
+
+        CrateMetrics.OperationStats putAllStats = metrics.getStats(CachedCrate.class, CrateOperation.PUT_ALL);
+        Assert.assertEquals(1, putAllStats.getCount());
+        Assert.assertEquals(5, putAllStats.getRowsWritten());
+
+        Assert.assertEquals(5, testCrate.withTag("TEST_TAG").size());
+        CrateMetrics.OperationStats iterateStats = metrics.getStats(CachedCrate.class, CrateOperation.ITERATE);
+        Assert.assertEquals(1, iterateStats.getCount());
+        Assert.assertEquals(5, iterateStats.getRowsRead());
+        Assert.assertEquals(putAllStats.getBytesWritten(), iterateStats.getBytesRead());
+
+        CrateIterator<SimpleItem> iterator = testCrate.iterateAll();
+        iterator.next();
+        Assert.assertEquals(1, iterateStats.getCount());
+        iterator.close();
+        iterator.close();
+        Assert.assertEquals(2, iterateStats.getCount());
+        Assert.assertEquals(6, iterateStats.getRowsRead());
+    }
+
+    @Test
+    public void reportsWritesAndRemovals()
+    {
+        SimpleItem firstItem = testHelper.createRandomSimpleItem();
+        SimpleItem secondItem = testHelper.createRandomSimpleItem();
+        testCrate.put(Arrays.asList(firstItem, secondItem), "TEST_TAG");
+
+        testCrate.replace("TEST_TAG", Arrays.asList(firstItem, testHelper.createRandomSimpleItem()));
+        CrateMetrics.OperationStats replaceStats = metrics.getStats(CachedCrate.class, CrateOperation.REPLACE);
+        Assert.assertEquals(1, replaceStats.getCount());
+        Assert.assertEquals(2, replaceStats.getRowsRead());
+        Assert.assertEquals(2, replaceStats.getRowsWritten());
+
+        testCrate.removeWithId(firstItem.getId());
+        testCrate.removeWithId(firstItem.getId());
+        CrateMetrics.OperationStats removeStats = metrics.getStats(CachedCrate.class, CrateOperation.REMOVE);
+        Assert.assertEquals(2, removeStats.getCount());
+        Assert.assertEquals(1, removeStats.getRowsWritten());
+
+        Assert.assertEquals(1, testCrate.count());
+        Assert.assertEquals(1, metrics.getStats(CachedCrate.class, CrateOperation.COUNT).getCount());
+    }
+
+    @Test
+    public void noReportsWithoutListener()
+    {
+        Crate.setListener(null);
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.withId(randomItem.getId());
+
+        Assert.assertEquals(0, metrics.getStats(CachedCrate.class, CrateOperation.PUT).getCount());
+        Assert.assertEquals(0, metrics.getStats(CachedCrate.class, CrateOperation.WITH_ID).getCount());
+    }
+
+    @Test
+    public void resetForgetsStats()
+    {
+        testCrate.put(testHelper.createRandomSimpleItem());
+        metrics.reset();
+
+        Assert.assertEquals(0, metrics.getStats(CachedCrate.class, CrateOperation.PUT).getCount());
+        Assert.assertEquals(0, metrics.getStats(CachedCrate.class, CrateOperation.PUT).getLatencyPercentileNanos(99));
+    }
+}
@@ -1,5 +1,6 @@
 package uk.co.alexpringle.crate.test;
 
+import android.database.sqlite.SQLiteOpenHelper;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
@@ -7,11 +8,22 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
+import uk.co.alexpringle.crate.CompressionStats;
+import uk.co.alexpringle.crate.CrateIterator;
+import uk.co.alexpringle.crate.ItemVisitor;
+import uk.co.alexpringle.crate.test.crates.BinaryCrate;
+import uk.co.alexpringle.crate.test.crates.CompressedCrate;
+import uk.co.alexpringle.crate.test.crates.ExtendedSimpleCrate;
+import uk.co.alexpringle.crate.test.crates.SeparateFileCrate;
 import uk.co.alexpringle.crate.test.crates.SimpleCrate;
 import uk.co.alexpringle.crate.test.crates.SimpleItem;
+import uk.co.alexpringle.crate.test.crates.VersionedCrate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
@@ -46,6 +58,16 @@ public class CrateTest
         simpleCrate.close();
     }
 
+    @Test
+    public void indirectCrateSubclass()
+    {
+        ExtendedSimpleCrate extendedCrate = new ExtendedSimpleCrate(RuntimeEnvironment.application);
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        extendedCrate.put(randomItem);
+        Assert.assertEquals(randomItem, extendedCrate.withId(randomItem.getId()));
+        extendedCrate.close();
+    }
+
     @Test
     public void putItem()
     {
@@ -73,6 +95,183 @@ public class CrateTest
         }
     }
 
+    @Test
+    public void putExistingItem()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+
+        randomItem.setName("Updated Name");
+        testCrate.put(randomItem);
+
+        Assert.assertEquals(1, testCrate.all().size());
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+    }
+
+    @Test
+    public void putExistingItemKeepsTag()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "TEST_TAG");
+
+        randomItem.setName("Updated Name");
+        testCrate.put(randomItem);
+
+        List<SimpleItem> retrievedItems = testCrate.withTag("TEST_TAG");
+        Assert.assertEquals(1, retrievedItems.size());
+        Assert.assertEquals(randomItem, retrievedItems.get(0));
+    }
+
+    @Test
+    public void reopenAfterClose()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.close();
+
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+
+        SimpleItem otherRandomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(otherRandomItem);
+        Assert.assertEquals(2, testCrate.all().size());
+    }
+
+    @Test
+    public void separateDatabaseFile()
+    {
+        SeparateFileCrate separateFileCrate = new SeparateFileCrate(RuntimeEnvironment.application);
+        try
+        {
+            SimpleItem randomItem = testHelper.createRandomSimpleItem();
+            separateFileCrate.put(randomItem, "TEST_TAG");
+
+            Assert.assertEquals(randomItem, separateFileCrate.withId(randomItem.getId()));
+            Assert.assertEquals(1, separateFileCrate.withTag("TEST_TAG").size());
+            Assert.assertTrue(RuntimeEnvironment.application.getDatabasePath(SeparateFileCrate.DATABASE_NAME).exists());
+            Assert.assertEquals(0, testHelper.queryLong("SELECT COUNT(*) FROM sqlite_master WHERE name=?",
+                    TestHelper.tableName(SeparateFileCrate.class)));
+        }
+        finally
+        {
+            separateFileCrate.close();
+            RuntimeEnvironment.application.deleteDatabase(SeparateFileCrate.DATABASE_NAME);
+        }
+    }
+
+    @Test
+    public void readTextRow()
+    {
+        // rows written by earlier versions hold JSON text rather than a blob
+        testCrate.put(testHelper.createRandomSimpleItem());
+        testHelper.execSQL("INSERT INTO " + TestHelper.tableName(SimpleCrate.class) + " (ID, ITEM) VALUES (?, ?)",
+                "text", "{\"id\":\"text\",\"name\":\"Text Row\"}");
+
+        SimpleItem retrievedItem = testCrate.withId("text");
+        Assert.assertNotNull(retrievedItem);
+        Assert.assertEquals("Text Row", retrievedItem.getName());
+    }
+
+    @Test
+    public void openLegacyTable()
+    {
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+        testHelper.execSQL("CREATE TABLE " + tableName + "(ID TEXT PRIMARY KEY, ITEM TEXT, TAG TEXT)");
+        testHelper.execSQL("INSERT INTO " + tableName + " (ID, ITEM, TAG) VALUES (?, ?, ?)",
+                "legacy", "{\"id\":\"legacy\"}", "TEST_TAG");
+
+        Assert.assertEquals("legacy", testCrate.withId("legacy").getId());
+
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "TEST_TAG");
+        Assert.assertEquals(2, testCrate.withTag("TEST_TAG").size());
+    }
+
+    @Test
+    public void upgradeKeepsTables() throws Exception
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "TEST_TAG");
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+        Assert.assertEquals(2, testHelper.queryLong("SELECT VERSION FROM CRATE_LAYOUT WHERE TABLE_NAME=?", tableName));
+
+        SQLiteOpenHelper helper = TestHelper.getSQLiteOpenHelper(testCrate);
+        helper.onUpgrade(helper.getWritableDatabase(), 1, 2);
+        testCrate.close();
+
+        testCrate = new SimpleCrate(RuntimeEnvironment.application);
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+        Assert.assertEquals(1, testCrate.withTag("TEST_TAG").size());
+    }
+
+    @Test
+    public void upcastOlderItemVersion()
+    {
+        VersionedCrate versionedCrate = new VersionedCrate(RuntimeEnvironment.application);
+        String tableName = TestHelper.tableName(VersionedCrate.class);
+        Assert.assertEquals(0, versionedCrate.count());
+        testHelper.execSQL("INSERT INTO " + tableName + " (ID, ITEM, FORMAT) VALUES (?, ?, ?)",
+                "old", "{\"id\":\"old\",\"title\":\"Old Name\"}", 0);
+
+        SimpleItem oldItem = versionedCrate.withId("old");
+        Assert.assertEquals("Old Name", oldItem.getName());
+        Assert.assertEquals(0, testHelper.queryLong("SELECT FORMAT FROM " + tableName + " WHERE ID=?", "old"));
+
+        // stored in the current version once put again
+        versionedCrate.put(oldItem);
+        Assert.assertEquals(1 << 8, testHelper.queryLong("SELECT FORMAT FROM " + tableName + " WHERE ID=?", "old"));
+        Assert.assertEquals("Old Name", versionedCrate.withId("old").getName());
+        versionedCrate.close();
+    }
+
+    @Test
+    public void binaryCodec()
+    {
+        BinaryCrate binaryCrate = new BinaryCrate(RuntimeEnvironment.application);
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(5);
+        binaryCrate.put(randomSimpleItems, "TEST_TAG");
+
+        for(SimpleItem randomItem : randomSimpleItems)
+        {
+            Assert.assertEquals(randomItem, binaryCrate.withId(randomItem.getId()));
+        }
+        Assert.assertTrue(binaryCrate.withTag("TEST_TAG").containsAll(randomSimpleItems));
+        binaryCrate.close();
+    }
+
+    @Test
+    public void compression()
+    {
+        CompressedCrate compressedCrate = new CompressedCrate(RuntimeEnvironment.application);
+
+        SimpleItem smallItem = testHelper.createRandomSimpleItem();
+        SimpleItem largeItem = testHelper.createRandomSimpleItem();
+        StringBuilder largeName = new StringBuilder();
+        for(int i = 0; i < 200; i++)
+        {
+            largeName.append("Forename Surname ");
+        }
+        largeItem.setName(largeName.toString());
+
+        compressedCrate.put(smallItem);
+        compressedCrate.put(largeItem, "TEST_TAG");
+        testHelper.execSQL("INSERT INTO " + TestHelper.tableName(CompressedCrate.class) + " (ID, ITEM) VALUES (?, ?)",
+                "text", "{\"id\":\"text\"}");
+        compressedCrate.addTag("text", "TEST_TAG");
+
+        CompressionStats compressionStats = compressedCrate.getCompressionStats();
+        Assert.assertEquals(1, compressionStats.getCompressedCount());
+        Assert.assertTrue(compressionStats.getCompressionRatio() < 0.5);
+
+        Assert.assertEquals(smallItem, compressedCrate.withId(smallItem.getId()));
+        Assert.assertEquals(largeItem, compressedCrate.withId(largeItem.getId()));
+        Assert.assertEquals(1, compressionStats.getDecompressedCount());
+
+        List<SimpleItem> taggedItems = compressedCrate.withTag("TEST_TAG");
+        Assert.assertEquals(2, taggedItems.size());
+        Assert.assertTrue(taggedItems.contains(largeItem));
+        compressedCrate.close();
+    }
+
     @Test
     public void notExists()
     {
@@ -101,6 +300,46 @@ public class CrateTest
         Assert.assertNull(testCrate.withId(simpleItem.getId()));
     }
 
+    @Test
+    public void withIds()
+    {
+        List<SimpleItem> randomItems = testHelper.createRandomSimpleItems(2500);
+        testCrate.put(randomItems);
+
+        List<String> itemIds = new ArrayList<String>();
+        for(int i = randomItems.size() - 1; i >= 0; i--)
+        {
+            itemIds.add(randomItems.get(i).getId());
+        }
+        itemIds.add("MISSING_ID");
+
+        Map<String,SimpleItem> items = testCrate.withIds(itemIds);
+        Assert.assertEquals(randomItems.size(), items.size());
+        Assert.assertEquals(new ArrayList<String>(itemIds.subList(0, randomItems.size())), new ArrayList<String>(items.keySet()));
+        for(SimpleItem randomItem : randomItems)
+        {
+            Assert.assertEquals(randomItem, items.get(randomItem.getId()));
+        }
+    }
+
+    @Test
+    public void removeWithIds()
+    {
+        List<SimpleItem> randomItems = testHelper.createRandomSimpleItems(2500);
+        testCrate.put(randomItems);
+
+        List<String> itemIds = new ArrayList<String>();
+        for(SimpleItem randomItem : randomItems.subList(0, 2000))
+        {
+            itemIds.add(randomItem.getId());
+        }
+        testCrate.removeWithIds(itemIds);
+
+        Assert.assertEquals(500, testCrate.all().size());
+        Assert.assertTrue(testCrate.withIds(itemIds).isEmpty());
+        Assert.assertTrue(testCrate.exists(randomItems.get(2000).getId()));
+    }
+
     @Test
     public void all()
     {
@@ -117,6 +356,146 @@ public class CrateTest
         }
     }
 
+    @Test
+    public void allPaged()
+    {
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(25);
+        testCrate.put(randomSimpleItems);
+
+        List<SimpleItem> pagedItems = new ArrayList<SimpleItem>();
+        List<SimpleItem> page = testCrate.all(null, 10);
+        Assert.assertEquals(10, page.size());
+        while(!page.isEmpty())
+        {
+            pagedItems.addAll(page);
+            page = testCrate.all(page.get(page.size() - 1).getId(), 10);
+        }
+
+        Assert.assertEquals(25, pagedItems.size());
+        Assert.assertTrue(pagedItems.containsAll(randomSimpleItems));
+        for(int i = 1; i < pagedItems.size(); i++)
+        {
+            Assert.assertTrue(pagedItems.get(i - 1).getId().compareTo(pagedItems.get(i).getId()) < 0);
+        }
+    }
+
+    @Test
+    public void withTagPaged()
+    {
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(12);
+        testCrate.put(randomSimpleItems, "TEST_TAG");
+        testCrate.put(testHelper.createRandomSimpleItems(7), "UNRELATED_TAG");
+
+        List<SimpleItem> firstPage = testCrate.withTag("TEST_TAG", null, 5);
+        List<SimpleItem> secondPage = testCrate.withTag("TEST_TAG", firstPage.get(4).getId(), 5);
+        List<SimpleItem> thirdPage = testCrate.withTag("TEST_TAG", secondPage.get(4).getId(), 5);
+
+        Assert.assertEquals(5, firstPage.size());
+        Assert.assertEquals(5, secondPage.size());
+        Assert.assertEquals(2, thirdPage.size());
+
+        List<SimpleItem> pagedItems = new ArrayList<SimpleItem>(firstPage);
+        pagedItems.addAll(secondPage);
+        pagedItems.addAll(thirdPage);
+        Assert.assertTrue(pagedItems.containsAll(randomSimpleItems));
+    }
+
+    @Test
+    public void allPagedZeroLimit()
+    {
+        expectedException.expect(IllegalArgumentException.class);
+        testCrate.all(null, 0);
+    }
+
+    @Test
+    public void iterateAll()
+    {
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(5);
+        testCrate.put(randomSimpleItems);
+
+        int count = 0;
+        for(SimpleItem retrievedItem : testCrate.iterateAll())
+        {
+            Assert.assertTrue(randomSimpleItems.contains(retrievedItem));
+            count++;
+        }
+        Assert.assertEquals(5, count);
+    }
+
+    @Test
+    public void iterateEmpty()
+    {
+        CrateIterator<SimpleItem> iterator = testCrate.iterateAll();
+        Assert.assertFalse(iterator.hasNext());
+        iterator.close();
+    }
+
+    @Test
+    public void iterateAndCloseEarly()
+    {
+        testCrate.put(testHelper.createRandomSimpleItems(5));
+
+        CrateIterator<SimpleItem> iterator = testCrate.iterateAll();
+        Assert.assertNotNull(iterator.next());
+        iterator.close();
+        Assert.assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void forEach()
+    {
+        final List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(5);
+        testCrate.put(randomSimpleItems);
+
+        final List<SimpleItem> visitedItems = new ArrayList<SimpleItem>();
+        testCrate.forEach(new ItemVisitor<SimpleItem>()
+        {
+            @Override
+            public void visit(SimpleItem item)
+            {
+                visitedItems.add(item);
+            }
+        });
+
+        Assert.assertEquals(5, visitedItems.size());
+        Assert.assertTrue(visitedItems.containsAll(randomSimpleItems));
+    }
+
+    @Test
+    public void countAndIds()
+    {
+        List<SimpleItem> taggedItems = testHelper.createRandomSimpleItems(5);
+        testCrate.put(taggedItems, "TEST_TAG");
+        testCrate.put(testHelper.createRandomSimpleItems(3));
+
+        Assert.assertEquals(8, testCrate.count());
+        Assert.assertEquals(5, testCrate.count("TEST_TAG"));
+        Assert.assertEquals(0, testCrate.count("MISSING_TAG"));
+
+        List<String> taggedIds = new ArrayList<String>();
+        for(SimpleItem taggedItem : taggedItems)
+        {
+            taggedIds.add(taggedItem.getId());
+        }
+        Collections.sort(taggedIds);
+        Assert.assertEquals(taggedIds, testCrate.ids("TEST_TAG"));
+
+        List<String> allIds = testCrate.ids();
+        Assert.assertEquals(8, allIds.size());
+        Assert.assertTrue(allIds.containsAll(taggedIds));
+    }
+
+    @Test
+    public void idsQueryDoesNotReadItems()
+    {
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+        testCrate.put(testHelper.createRandomSimpleItems(10), "TEST_TAG");
+
+        String tagPlan = testHelper.explainQueryPlan("SELECT ID FROM " + tableName + "_TAGS WHERE TAG =? ORDER BY ID", "TEST_TAG");
+        Assert.assertTrue(tagPlan, tagPlan.contains("COVERING INDEX " + tableName + "_TAGS_TAG_ID_INDEX"));
+        Assert.assertFalse(tagPlan, tagPlan.contains("TEMP B-TREE"));
+    }
+
     @Test
     public void removeAll()
     {
@@ -156,6 +535,71 @@ public class CrateTest
         Assert.assertTrue(retrievedItems.contains(extraRandomItem));
     }
 
+    @Test
+    public void iterateWithTag()
+    {
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(6);
+        testCrate.put(randomSimpleItems, "TEST_TAG");
+        testCrate.put(testHelper.createRandomSimpleItems(3), "UNRELATED_TAG");
+
+        int count = 0;
+        for(SimpleItem retrievedItem : testCrate.iterateWithTag("TEST_TAG"))
+        {
+            Assert.assertTrue(randomSimpleItems.contains(retrievedItem));
+            count++;
+        }
+        Assert.assertEquals(6, count);
+    }
+
+    @Test
+    public void forEachWithTag()
+    {
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(6);
+        testCrate.put(randomSimpleItems, "TEST_TAG");
+        testCrate.put(testHelper.createRandomSimpleItems(3), "UNRELATED_TAG");
+
+        final List<SimpleItem> visitedItems = new ArrayList<SimpleItem>();
+        testCrate.forEachWithTag("TEST_TAG", new ItemVisitor<SimpleItem>()
+        {
+            @Override
+            public void visit(SimpleItem item)
+            {
+                visitedItems.add(item);
+            }
+        });
+
+        Assert.assertEquals(6, visitedItems.size());
+        Assert.assertTrue(visitedItems.containsAll(randomSimpleItems));
+    }
+
+    @Test
+    public void tagQueriesUseIndex()
+    {
+        testCrate.put(testHelper.createRandomSimpleItems(10), "TEST_TAG");
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+
+        String tagCondition = " WHERE ID IN (SELECT ID FROM " + tableName + "_TAGS WHERE TAG =?)";
+
+        String selectPlan = testHelper.explainQueryPlan("SELECT * FROM " + tableName + tagCondition, "TEST_TAG");
+        Assert.assertTrue(selectPlan, selectPlan.contains("INDEX " + tableName + "_TAGS_TAG_ID_INDEX"));
+        Assert.assertFalse(selectPlan, selectPlan.contains("SCAN TABLE " + tableName + "\n"));
+
+        String deletePlan = testHelper.explainQueryPlan("DELETE FROM " + tableName + tagCondition, "TEST_TAG");
+        Assert.assertTrue(deletePlan, deletePlan.contains("INDEX " + tableName + "_TAGS_TAG_ID_INDEX"));
+    }
+
+    @Test
+    public void pagedTagQueryUsesIndexOrder()
+    {
+        testCrate.put(testHelper.createRandomSimpleItems(10), "TEST_TAG");
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+
+        String pagePlan = testHelper.explainQueryPlan("SELECT ID FROM " + tableName +
+                "_TAGS WHERE TAG =? AND ID >? ORDER BY ID LIMIT 10", "TEST_TAG", "0");
+        Assert.assertTrue(pagePlan, pagePlan.contains("INDEX " + tableName + "_TAGS_TAG_ID_INDEX"));
+        Assert.assertFalse(pagePlan, pagePlan.contains("TEMP B-TREE"));
+    }
+
     @Test
     public void removeWithTag()
     {
@@ -223,6 +667,162 @@ public class CrateTest
         Assert.assertEquals(3, retrievedUnrelatedItems.size());
     }
 
+    @Test
+    public void replaceOnlyWritesChanges()
+    {
+        List<SimpleItem> existingItems = testHelper.createRandomSimpleItems(3);
+        testCrate.put(existingItems, "TEST_TAG");
+        // stored items are updated in place, so writes are recorded by triggers rather than seen in changed row ids
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+        testHelper.execSQL("CREATE TABLE WRITTEN_IDS(ID TEXT)");
+        testHelper.execSQL("CREATE TRIGGER WRITTEN_ON_UPDATE AFTER UPDATE ON " + tableName +
+                " BEGIN INSERT INTO WRITTEN_IDS VALUES (NEW.ID); END");
+        testHelper.execSQL("CREATE TRIGGER WRITTEN_ON_INSERT AFTER INSERT ON " + tableName +
+                " BEGIN INSERT INTO WRITTEN_IDS VALUES (NEW.ID); END");
+        String writeCountQuery = "SELECT COUNT(*) FROM WRITTEN_IDS WHERE ID=?";
+
+        SimpleItem changedItem = testHelper.createRandomSimpleItem();
+        changedItem.setId(existingItems.get(1).getId());
+        SimpleItem newItem = testHelper.createRandomSimpleItem();
+        List<SimpleItem> newItems = new ArrayList<SimpleItem>();
+        newItems.add(existingItems.get(0));
+        newItems.add(changedItem);
+        newItems.add(newItem);
+        testCrate.replace("TEST_TAG", newItems);
+
+        Assert.assertEquals(0, testHelper.queryLong(writeCountQuery, existingItems.get(0).getId()));
+        Assert.assertEquals(1, testHelper.queryLong(writeCountQuery, changedItem.getId()));
+        Assert.assertEquals(1, testHelper.queryLong(writeCountQuery, newItem.getId()));
+        Assert.assertEquals(changedItem, testCrate.withId(changedItem.getId()));
+        Assert.assertNull(testCrate.withId(existingItems.get(2).getId()));
+
+        List<SimpleItem> retrievedItems = testCrate.withTag("TEST_TAG");
+        Assert.assertEquals(3, retrievedItems.size());
+        Assert.assertTrue(retrievedItems.containsAll(newItems));
+    }
+
+    @Test
+    public void replaceMovesItemFromOtherTag()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "OTHER_TAG");
+
+        testCrate.replace("TEST_TAG", randomItem);
+
+        Assert.assertEquals(1, testCrate.withTag("TEST_TAG").size());
+        Assert.assertTrue(testCrate.withTag("OTHER_TAG").isEmpty());
+    }
+
+    @Test
+    public void replaceKeepsItemsWithOtherTags()
+    {
+        SimpleItem sharedItem = testHelper.createRandomSimpleItem();
+        testCrate.put(sharedItem, "OTHER_TAG");
+        testCrate.addTag(sharedItem.getId(), "TEST_TAG");
+        SimpleItem otherItem = testHelper.createRandomSimpleItem();
+        testCrate.put(otherItem, "TEST_TAG");
+
+        testCrate.replace("TEST_TAG", testHelper.createRandomSimpleItem());
+
+        Assert.assertEquals(1, testCrate.withTag("TEST_TAG").size());
+        Assert.assertEquals(1, testCrate.withTag("OTHER_TAG").size());
+        Assert.assertEquals(sharedItem, testCrate.withId(sharedItem.getId()));
+        Assert.assertNull(testCrate.withId(otherItem.getId()));
+    }
+
+    @Test
+    public void multipleTags()
+    {
+        List<SimpleItem> randomItems = testHelper.createRandomSimpleItems(3);
+        testCrate.put(randomItems.get(0), "RED");
+        testCrate.addTag(randomItems.get(0).getId(), "ROUND");
+        testCrate.put(randomItems.get(1), "RED");
+        testCrate.put(randomItems.get(2));
+        testCrate.addTag(randomItems.get(2).getId(), "ROUND");
+        testCrate.addTag("MISSING_ID", "ROUND");
+
+        Assert.assertEquals(2, testCrate.withTag("RED").size());
+        Assert.assertEquals(2, testCrate.withTag("ROUND").size());
+
+        List<SimpleItem> redAndRound = testCrate.withAllTags(Arrays.asList("RED", "ROUND"));
+        Assert.assertEquals(1, redAndRound.size());
+        Assert.assertEquals(randomItems.get(0), redAndRound.get(0));
+        Assert.assertEquals(3, testCrate.withAnyTag(Arrays.asList("RED", "ROUND")).size());
+
+        testCrate.removeTag(randomItems.get(0).getId(), "RED");
+        Assert.assertEquals(1, testCrate.withTag("RED").size());
+        Assert.assertEquals(randomItems.get(0), testCrate.withId(randomItems.get(0).getId()));
+        Assert.assertTrue(testCrate.withAllTags(Arrays.asList("RED", "ROUND")).isEmpty());
+
+        testCrate.removeWithId(randomItems.get(2).getId());
+        Assert.assertEquals(1, testCrate.withTag("ROUND").size());
+        Assert.assertEquals(2, testHelper.countRows(TestHelper.tableName(SimpleCrate.class) + "_TAGS"));
+    }
+
+    @Test
+    public void putMovesItemToTag()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "INBOX");
+        testCrate.addTag(randomItem.getId(), "STARRED");
+
+        testCrate.put(randomItem, "ARCHIVE");
+        Assert.assertTrue(testCrate.withTag("INBOX").isEmpty());
+        Assert.assertTrue(testCrate.withTag("STARRED").isEmpty());
+        Assert.assertEquals(1, testCrate.count("ARCHIVE"));
+
+        testCrate.put(randomItem);
+        Assert.assertEquals(1, testCrate.count("ARCHIVE"));
+    }
+
+    @Test
+    public void migrateSingleTagColumn()
+    {
+        String tableName = TestHelper.tableName(SimpleCrate.class);
+        testHelper.execSQL("CREATE TABLE " + tableName + "(ID TEXT PRIMARY KEY, ITEM TEXT, TAG TEXT)");
+        testHelper.execSQL("INSERT INTO " + tableName + " (ID, ITEM, TAG) VALUES (?, ?, ?)",
+                "tagged", "{\"id\":\"tagged\"}", "TEST_TAG");
+        testHelper.execSQL("INSERT INTO " + tableName + " (ID, ITEM) VALUES (?, ?)",
+                "untagged", "{\"id\":\"untagged\"}");
+
+        List<SimpleItem> taggedItems = testCrate.withTag("TEST_TAG");
+        Assert.assertEquals(1, taggedItems.size());
+        Assert.assertEquals("tagged", taggedItems.get(0).getId());
+        Assert.assertEquals(0, testHelper.queryLong("SELECT COUNT(*) FROM " + tableName + " WHERE TAG IS NOT NULL"));
+    }
+
+    @Test
+    public void putAsyncReadYourWrites() throws Exception
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.putAsync(randomItem);
+        Assert.assertEquals(randomItem, testCrate.withIdAsync(randomItem.getId()).get());
+
+        List<SimpleItem> randomSimpleItems = testHelper.createRandomSimpleItems(20);
+        testCrate.putAsync(randomSimpleItems, "TEST_TAG");
+        List<SimpleItem> retrievedItems = testCrate.withTagAsync("TEST_TAG").get();
+        Assert.assertEquals(20, retrievedItems.size());
+        Assert.assertTrue(retrievedItems.containsAll(randomSimpleItems));
+
+        testCrate.removeAsync(randomItem.getId());
+        Assert.assertNull(testCrate.withIdAsync(randomItem.getId()).get());
+    }
+
+    @Test
+    public void putAsyncInOrder() throws Exception
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        for(int i = 0; i < 50; i++)
+        {
+            SimpleItem version = testHelper.createRandomSimpleItem();
+            version.setId(randomItem.getId());
+            version.setSomeInt(i);
+            testCrate.putAsync(version);
+        }
+
+        Assert.assertEquals(49, testCrate.withIdAsync(randomItem.getId()).get().getSomeInt());
+    }
+
     @Test
     public void withNullId()
     {
@@ -0,0 +1,137 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import uk.co.alexpringle.crate.test.crates.IndexedCrate;
+import uk.co.alexpringle.crate.test.crates.IndexedItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class IndexedCrateTest
+{
+    private TestHelper testHelper;
+    private IndexedCrate testCrate;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ShadowLog.stream = System.out;
+        testHelper = new TestHelper();
+        testCrate = new IndexedCrate(RuntimeEnvironment.application);
+
+        List<IndexedItem> items = new ArrayList<IndexedItem>();
+        items.add(new IndexedItem("1", "apple", 10, 4.5, true));
+        items.add(new IndexedItem("2", "banana", 20, 3.0, false));
+        items.add(new IndexedItem("3", "cherry", 30, null, true));
+        items.add(new IndexedItem("4", "apple", 40, 1.5, true));
+        testCrate.put(items);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testHelper.clearCrateDatabase();
+        testCrate.close();
+    }
+
+    @Test
+    public void equalTo()
+    {
+        Assert.assertEquals(ids("1", "4"), ids(testCrate.query().equalTo("name", "apple").list()));
+        Assert.assertEquals(ids("2"), ids(testCrate.query().equalTo("enabled", false).list()));
+        Assert.assertEquals(ids("3"), ids(testCrate.query().equalTo("rating", null).list()));
+    }
+
+    @Test
+    public void range()
+    {
+        Assert.assertEquals(ids("2", "3"), ids(testCrate.query().greaterThan("score", 10).lessThanOrEqualTo("score", 30).orderBy("score").list()));
+        Assert.assertEquals(ids("2", "1"), ids(testCrate.query().greaterThanOrEqualTo("rating", 3.0).orderBy("rating").list()));
+        Assert.assertEquals(ids("4"), ids(testCrate.query().lessThan("rating", 3).list()));
+    }
+
+    @Test
+    public void orderByAndLimit()
+    {
+        Assert.assertEquals(ids("4", "3"), ids(testCrate.query().orderByDescending("score").limit(2).list()));
+        Assert.assertEquals(ids("3", "4", "2", "1"), ids(testCrate.query().orderBy("rating").list()));
+        Assert.assertEquals(ids("4", "1"), ids(testCrate.query().equalTo("name", "apple").orderBy("rating").list()));
+    }
+
+    @Test
+    public void queryWithTag()
+    {
+        testCrate.put(new IndexedItem("5", "apple", 50, 2.0, true), "TEST_TAG");
+
+        Assert.assertEquals(ids("5"), ids(testCrate.query().withTag("TEST_TAG").equalTo("name", "apple").list()));
+    }
+
+    @Test
+    public void putUpdatesIndexedColumns()
+    {
+        testCrate.put(new IndexedItem("1", "damson", 10, 4.5, true));
+
+        Assert.assertEquals(ids("4"), ids(testCrate.query().equalTo("name", "apple").list()));
+        Assert.assertEquals(ids("1"), ids(testCrate.query().equalTo("name", "damson").list()));
+    }
+
+    @Test
+    public void queryUsesIndex()
+    {
+        String tableName = TestHelper.tableName(IndexedCrate.class);
+        String queryPlan = testHelper.explainQueryPlan("SELECT ITEM FROM " + tableName + " WHERE FIELD_score >?", "10");
+
+        Assert.assertTrue(queryPlan, queryPlan.contains("INDEX " + tableName + "_FIELD_score_INDEX"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void queryUnindexedField()
+    {
+        testCrate.query().equalTo("note", "text");
+    }
+
+    @Test
+    public void backfillExistingTable() throws Exception
+    {
+        testHelper.clearCrateDatabase();
+        testCrate.close();
+
+        String tableName = TestHelper.tableName(IndexedCrate.class);
+        testHelper.execSQL("CREATE TABLE " + tableName + "(ID TEXT PRIMARY KEY, ITEM TEXT, TAG TEXT)");
+        testHelper.execSQL("INSERT INTO " + tableName + " (ID, ITEM) VALUES (?, ?)",
+                "legacy", "{\"id\":\"legacy\",\"name\":\"old\",\"score\":7}");
+
+        testCrate = new IndexedCrate(RuntimeEnvironment.application);
+        Assert.assertEquals(ids("legacy"), ids(testCrate.query().equalTo("name", "old").equalTo("score", 7).list()));
+    }
+
+    private static List<String> ids(String... ids)
+    {
+        List<String> idList = new ArrayList<String>();
+        for(String id : ids)
+        {
+            idList.add(id);
+        }
+        return idList;
+    }
+
+    private static List<String> ids(List<IndexedItem> items)
+    {
+        List<String> idList = new ArrayList<String>();
+        for(IndexedItem item : items)
+        {
+            idList.add(item.getId());
+        }
+        return idList;
+    }
+}
@@ -0,0 +1,307 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.alexpringle.crate.Crate;
+import uk.co.alexpringle.crate.CrateIterator;
+import uk.co.alexpringle.crate.test.crates.JdbcCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs without Robolectric, so the crate is stored through JDBC on a plain JVM
+ */
+public class JdbcCrateTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private JdbcCrate testCrate;
+    private int itemCount;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        testCrate = new JdbcCrate(temporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testCrate.close();
+    }
+
+    @Test
+    public void putAndRetrieve()
+    {
+        SimpleItem randomItem = createItem();
+        testCrate.put(randomItem);
+
+        SimpleItem storedItem = testCrate.withId(randomItem.getId());
+        Assert.assertNotNull(storedItem);
+        Assert.assertEquals(randomItem.getName(), storedItem.getName());
+        Assert.assertTrue(testCrate.exists(randomItem.getId()));
+        Assert.assertNull(testCrate.withId("MISSING_ID"));
+        Assert.assertEquals(1, testCrate.count());
+    }
+
+    @Test
+    public void tagsAndRemovals()
+    {
+        List<SimpleItem> randomItems = new ArrayList<SimpleItem>();
+        for(int i = 0; i < 5; i++)
+        {
+            randomItems.add(createItem());
+        }
+        testCrate.put(randomItems, "TEST_TAG");
+        testCrate.put(createItem());
+
+        Assert.assertEquals(5, testCrate.withTag("TEST_TAG").size());
+        Assert.assertEquals(5, testCrate.count("TEST_TAG"));
+        Assert.assertEquals(6, testCrate.ids().size());
+
+        testCrate.replace("TEST_TAG", Arrays.asList(randomItems.get(0), createItem()));
+        Assert.assertEquals(2, testCrate.withTag("TEST_TAG").size());
+        Assert.assertEquals(3, testCrate.count());
+
+        testCrate.removeWithId(randomItems.get(0).getId());
+        Assert.assertEquals(1, testCrate.withTag("TEST_TAG").size());
+
+        testCrate.removeWithTag("TEST_TAG");
+        Assert.assertEquals(1, testCrate.count());
+        testCrate.removeAll();
+        Assert.assertEquals(0, testCrate.count());
+    }
+
+    @Test
+    public void tagsSurviveRepeatedPut() throws Exception
+    {
+        SimpleItem randomItem = createItem();
+        testCrate.put(randomItem, "TEST_TAG");
+
+        // deleting the row, as INSERT OR REPLACE does with recursive triggers on, would remove its tags
+        Field engineField = Crate.class.getDeclaredField("storageEngine");
+        engineField.setAccessible(true);
+        Object engine = engineField.get(testCrate);
+        Field connectionField = engine.getClass().getDeclaredField("writeConnection");
+        connectionField.setAccessible(true);
+        Statement statement = ((Connection) connectionField.get(engine)).createStatement();
+        try
+        {
+            statement.execute("PRAGMA recursive_triggers=ON");
+        }
+        finally
+        {
+            statement.close();
+        }
+
+        randomItem.setName("RENAMED");
+        testCrate.put(randomItem);
+        Assert.assertEquals("RENAMED", testCrate.withId(randomItem.getId()).getName());
+        Assert.assertEquals(1, testCrate.withTag("TEST_TAG").size());
+    }
+
+    @Test
+    public void iterateAll()
+    {
+        for(int i = 0; i < 3; i++)
+        {
+            testCrate.put(createItem());
+        }
+
+        int itemsRead = 0;
+        CrateIterator<SimpleItem> iterator = testCrate.iterateAll();
+        for(SimpleItem item : iterator)
+        {
+            Assert.assertNotNull(item.getId());
+            itemsRead++;
+        }
+        Assert.assertEquals(3, itemsRead);
+    }
+
+    @Test
+    public void itemsPersistAfterClose()
+    {
+        SimpleItem randomItem = createItem();
+        testCrate.put(randomItem, "TEST_TAG");
+        testCrate.close();
+
+        testCrate = new JdbcCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(randomItem.getName(), testCrate.withId(randomItem.getId()).getName());
+        Assert.assertEquals(1, testCrate.withTag("TEST_TAG").size());
+    }
+
+    @Test
+    public void readsShareBoundedConnections() throws Exception
+    {
+        final SimpleItem randomItem = createItem();
+        testCrate.put(randomItem);
+        for(int i = 0; i < 20; i++)
+        {
+            Thread reader = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    testCrate.withId(randomItem.getId());
+                }
+            });
+            reader.start();
+            reader.join();
+        }
+
+        Field engineField = Crate.class.getDeclaredField("storageEngine");
+        engineField.setAccessible(true);
+        Object engine = engineField.get(testCrate);
+        Field idleField = engine.getClass().getDeclaredField("idleReadConnections");
+        idleField.setAccessible(true);
+        Assert.assertEquals(1, ((Collection<?>) idleField.get(engine)).size());
+    }
+
+    @Test
+    public void logMessagesOnlyBuiltWhenLoggable()
+    {
+        CountingItem countingItem = new CountingItem("COUNTED_ID");
+        testCrate.put(countingItem);
+        testCrate.withId(countingItem.getId());
+        Assert.assertEquals(0, countingItem.toStringCount);
+
+        Logger logger = Logger.getLogger("Crate");
+        logger.setLevel(Level.FINE);
+        try
+        {
+            testCrate.put(countingItem);
+            Assert.assertEquals(1, countingItem.toStringCount);
+        }
+        finally
+        {
+            logger.setLevel(null);
+        }
+    }
+
+    @Test
+    public void concurrentReplacesOnSharedFile() throws Exception
+    {
+        final OtherJdbcCrate otherCrate = new OtherJdbcCrate(temporaryFolder.getRoot());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        try
+        {
+            Thread[] writers = new Thread[2];
+            for(int i = 0; i < writers.length; i++)
+            {
+                final Crate<SimpleItem> crate = i == 0 ? testCrate : otherCrate;
+                writers[i] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            for(int j = 0; j < 50; j++)
+                            {
+                                crate.replace("TEST_TAG", Arrays.asList(new SimpleItem("ID_" + j),
+                                        new SimpleItem("ID_" + (j + 1))));
+                            }
+                        }
+                        catch(Throwable e)
+                        {
+                            failures.add(e);
+                        }
+                    }
+                });
+                writers[i].start();
+            }
+            for(Thread writer : writers)
+            {
+                writer.join();
+            }
+        }
+        finally
+        {
+            otherCrate.close();
+        }
+
+        Assert.assertEquals(Collections.<Throwable>emptyList(), failures);
+        Assert.assertEquals(2, testCrate.count("TEST_TAG"));
+    }
+
+    @Test
+    public void invalidCrateDoesNotHoldEngine() throws Exception
+    {
+        try
+        {
+            new InvalidVersionCrate(temporaryFolder.getRoot());
+            Assert.fail("Negative item version accepted");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // expected
+        }
+        Assert.assertFalse(TestHelper.isEngineOpen(InvalidVersionCrate.class));
+    }
+
+    private SimpleItem createItem()
+    {
+        itemCount++;
+        SimpleItem item = new SimpleItem("ID_" + itemCount);
+        item.setName("NAME_" + itemCount);
+        return item;
+    }
+
+    private static class InvalidVersionCrate extends JdbcCrate
+    {
+        InvalidVersionCrate(File directory)
+        {
+            super(directory);
+        }
+
+        @Override
+        protected int getItemVersion()
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Stored in its own table of the same database file, so it writes through a second engine
+     */
+    private static class OtherJdbcCrate extends JdbcCrate
+    {
+        OtherJdbcCrate(File directory)
+        {
+            super(directory);
+        }
+    }
+
+    private static class CountingItem extends SimpleItem
+    {
+        transient int toStringCount;
+
+        CountingItem(String id)
+        {
+            super(id);
+        }
+
+        @Override
+        public String toString()
+        {
+            toStringCount++;
+            return super.toString();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.alexpringle.crate.test.crates.LogCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs without Robolectric, as log structured crates do not use SQLite
+ */
+public class LogCrateTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private LogCrate testCrate;
+    private int itemCount;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        testCrate = new LogCrate(temporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testCrate.close();
+    }
+
+    @Test
+    public void putAndRetrieve()
+    {
+        SimpleItem randomItem = createItem();
+        testCrate.put(randomItem);
+
+        Assert.assertEquals(randomItem.getName(), testCrate.withId(randomItem.getId()).getName());
+        Assert.assertTrue(testCrate.exists(randomItem.getId()));
+        Assert.assertNull(testCrate.withId("MISSING_ID"));
+
+        randomItem.setName("NEW_NAME");
+        testCrate.put(randomItem);
+        Assert.assertEquals("NEW_NAME", testCrate.withId(randomItem.getId()).getName());
+        Assert.assertEquals(1, testCrate.count());
+    }
+
+    @Test
+    public void tagsAndRemovals()
+    {
+        List<SimpleItem> randomItems = new ArrayList<SimpleItem>();
+        for(int i = 0; i < 5; i++)
+        {
+            randomItems.add(createItem());
+        }
+        testCrate.put(randomItems, "TEST_TAG");
+        SimpleItem untaggedItem = createItem();
+        testCrate.put(untaggedItem);
+        testCrate.addTag(untaggedItem.getId(), "OTHER_TAG");
+        testCrate.addTag(randomItems.get(0).getId(), "OTHER_TAG");
+
+        Assert.assertEquals(5, testCrate.withTag("TEST_TAG").size());
+        Assert.assertEquals(1, testCrate.withAllTags(Arrays.asList("TEST_TAG", "OTHER_TAG")).size());
+        Assert.assertEquals(6, testCrate.withAnyTag(Arrays.asList("TEST_TAG", "OTHER_TAG")).size());
+        Assert.assertEquals(2, testCrate.withTag("TEST_TAG", randomItems.get(2).getId(), 2).size());
+
+        testCrate.replace("TEST_TAG", Arrays.asList(randomItems.get(0), randomItems.get(1)));
+        Assert.assertEquals(2, testCrate.count("TEST_TAG"));
+        Assert.assertEquals(3, testCrate.count());
+        // replacement items keep only the replaced tag
+        Assert.assertEquals(1, testCrate.count("OTHER_TAG"));
+
+        testCrate.removeTag(untaggedItem.getId(), "OTHER_TAG");
+        Assert.assertEquals(0, testCrate.count("OTHER_TAG"));
+        testCrate.removeWithTag("TEST_TAG");
+        Assert.assertEquals(Arrays.asList(untaggedItem.getId()), testCrate.ids());
+        testCrate.removeWithId(untaggedItem.getId());
+        Assert.assertEquals(0, testCrate.count());
+    }
+
+    @Test
+    public void pagesInIdOrder()
+    {
+        for(int i = 0; i < 5; i++)
+        {
+            testCrate.put(createItem());
+        }
+
+        List<SimpleItem> page = testCrate.all("ID_2", 2);
+        Assert.assertEquals(2, page.size());
+        Assert.assertEquals("ID_3", page.get(0).getId());
+        Assert.assertEquals("ID_4", page.get(1).getId());
+    }
+
+    @Test
+    public void failedTransactionRolledBack()
+    {
+        SimpleItem storedItem = createItem();
+        testCrate.put(storedItem, "TEST_TAG");
+
+        SimpleItem changedItem = new SimpleItem(storedItem.getId());
+        changedItem.setName("CHANGED_NAME");
+        try
+        {
+            testCrate.put(Arrays.asList(changedItem, createItem(), null), "OTHER_TAG");
+            Assert.fail("Null item stored");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        Assert.assertEquals(storedItem.getName(), testCrate.withId(storedItem.getId()).getName());
+        Assert.assertEquals(1, testCrate.count());
+        Assert.assertEquals(0, testCrate.count("OTHER_TAG"));
+
+        testCrate.close();
+        testCrate = new LogCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(storedItem.getName(), testCrate.withId(storedItem.getId()).getName());
+        Assert.assertEquals(1, testCrate.count());
+    }
+
+    @Test
+    public void itemsPersistAfterClose()
+    {
+        SimpleItem removedItem = createItem();
+        SimpleItem keptItem = createItem();
+        testCrate.put(Arrays.asList(removedItem, keptItem), "TEST_TAG");
+        testCrate.removeWithId(removedItem.getId());
+        testCrate.close();
+
+        testCrate = new LogCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(Arrays.asList(keptItem.getId()), testCrate.ids("TEST_TAG"));
+        Assert.assertEquals(keptItem.getName(), testCrate.withId(keptItem.getId()).getName());
+    }
+
+    @Test
+    public void tornWriteDiscardedOnOpen() throws IOException
+    {
+        SimpleItem randomItem = createItem();
+        testCrate.put(randomItem);
+        testCrate.close();
+
+        File[] segmentFiles = getLogDirectory().listFiles();
+        Assert.assertNotNull(segmentFiles);
+        FileOutputStream output = new FileOutputStream(segmentFiles[0], true);
+        output.write(new byte[]{0, 0, 1, 0, 1, 2, 3});
+        output.close();
+
+        testCrate = new LogCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(randomItem.getName(), testCrate.withId(randomItem.getId()).getName());
+        SimpleItem newItem = createItem();
+        testCrate.put(newItem);
+        testCrate.close();
+
+        testCrate = new LogCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(2, testCrate.count());
+    }
+
+    @Test
+    public void compactsOverwrittenItems() throws InterruptedException
+    {
+        List<SimpleItem> randomItems = new ArrayList<SimpleItem>();
+        for(int i = 0; i < 10; i++)
+        {
+            SimpleItem item = createItem();
+            testCrate.put(item, "TEST_TAG");
+            randomItems.add(item);
+        }
+        StringBuilder longName = new StringBuilder();
+        for(int i = 0; i < 1000; i++)
+        {
+            longName.append("NAME_");
+        }
+        for(int i = 0; i < 500; i++)
+        {
+            SimpleItem item = randomItems.get(i % randomItems.size());
+            item.setName(longName.toString() + i);
+            testCrate.put(item);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!hasHintFile() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(hasHintFile());
+
+        for(SimpleItem item : randomItems)
+        {
+            Assert.assertEquals(item.getName(), testCrate.withId(item.getId()).getName());
+        }
+        testCrate.close();
+
+        testCrate = new LogCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(10, testCrate.count("TEST_TAG"));
+        for(SimpleItem item : randomItems)
+        {
+            Assert.assertEquals(item.getName(), testCrate.withId(item.getId()).getName());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void queryUnsupported()
+    {
+        testCrate.query();
+    }
+
+    private boolean hasHintFile()
+    {
+        File[] files = getLogDirectory().listFiles();
+        for(File file : files == null ? new File[0] : files)
+        {
+            if(file.getName().endsWith(".hint"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File getLogDirectory()
+    {
+        return new File(temporaryFolder.getRoot(), "CRATE_DATABASE-log");
+    }
+
+    private SimpleItem createItem()
+    {
+        itemCount++;
+        SimpleItem item = new SimpleItem("ID_" + itemCount);
+        item.setName("NAME_" + itemCount);
+        return item;
+    }
+}
@@ -0,0 +1,181 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.co.alexpringle.crate.Crate;
+import uk.co.alexpringle.crate.CrateMetrics;
+import uk.co.alexpringle.crate.CrateOperation;
+import uk.co.alexpringle.crate.test.crates.MemoryCrate;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs without Robolectric, storing snapshots through JDBC
+ */
+public class MemoryCrateTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MemoryCrate testCrate;
+    private int itemCount;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        testCrate = new MemoryCrate(temporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        Crate.setListener(null);
+        testCrate.close();
+    }
+
+    @Test
+    public void putAndRetrieve()
+    {
+        SimpleItem randomItem = createItem();
+        testCrate.put(randomItem);
+
+        Assert.assertSame(randomItem, testCrate.withId(randomItem.getId()));
+        Assert.assertTrue(testCrate.exists(randomItem.getId()));
+        Assert.assertNull(testCrate.withId("MISSING_ID"));
+        Assert.assertEquals(1, testCrate.withIds(Arrays.asList(randomItem.getId(), "MISSING_ID")).size());
+
+        SimpleItem changedItem = new SimpleItem(randomItem.getId());
+        changedItem.setName("NEW_NAME");
+        testCrate.put(changedItem);
+        Assert.assertEquals("NEW_NAME", testCrate.withId(randomItem.getId()).getName());
+        Assert.assertEquals(1, testCrate.count());
+    }
+
+    @Test
+    public void tagsAndRemovals()
+    {
+        List<SimpleItem> randomItems = new ArrayList<SimpleItem>();
+        for(int i = 0; i < 5; i++)
+        {
+            randomItems.add(createItem());
+        }
+        testCrate.put(randomItems, "TEST_TAG");
+        SimpleItem untaggedItem = createItem();
+        testCrate.put(untaggedItem);
+        testCrate.addTag(untaggedItem.getId(), "OTHER_TAG");
+        testCrate.addTag(randomItems.get(0).getId(), "OTHER_TAG");
+
+        Assert.assertEquals(5, testCrate.withTag("TEST_TAG").size());
+        Assert.assertEquals(1, testCrate.withAllTags(Arrays.asList("TEST_TAG", "OTHER_TAG")).size());
+        Assert.assertEquals(6, testCrate.withAnyTag(Arrays.asList("TEST_TAG", "OTHER_TAG")).size());
+        Assert.assertEquals(2, testCrate.withTag("TEST_TAG", randomItems.get(2).getId(), 2).size());
+
+        testCrate.replace("TEST_TAG", Arrays.asList(randomItems.get(0), randomItems.get(1)));
+        Assert.assertEquals(2, testCrate.count("TEST_TAG"));
+        Assert.assertEquals(3, testCrate.count());
+        // replacement items keep only the replaced tag
+        Assert.assertEquals(1, testCrate.count("OTHER_TAG"));
+        testCrate.removeTag(untaggedItem.getId(), "OTHER_TAG");
+        Assert.assertEquals(0, testCrate.count("OTHER_TAG"));
+        testCrate.removeWithTag("TEST_TAG");
+        Assert.assertEquals(Arrays.asList(untaggedItem.getId()), testCrate.ids());
+        testCrate.removeWithId(untaggedItem.getId());
+        Assert.assertEquals(0, testCrate.count());
+    }
+
+    @Test
+    public void pagesInIdOrder()
+    {
+        for(int i = 0; i < 5; i++)
+        {
+            testCrate.put(createItem());
+        }
+
+        List<SimpleItem> page = testCrate.all("ID_2", 2);
+        Assert.assertEquals(2, page.size());
+        Assert.assertEquals("ID_3", page.get(0).getId());
+        Assert.assertEquals("ID_4", page.get(1).getId());
+    }
+
+    @Test
+    public void changesStoredOnClose()
+    {
+        SimpleItem removedItem = createItem();
+        SimpleItem keptItem = createItem();
+        testCrate.put(Arrays.asList(removedItem, keptItem), "TEST_TAG");
+        testCrate.addTag(keptItem.getId(), "OTHER_TAG");
+        testCrate.removeWithId(removedItem.getId());
+        testCrate.close();
+
+        testCrate = new MemoryCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(Arrays.asList(keptItem.getId()), testCrate.ids("TEST_TAG"));
+        Assert.assertEquals(Arrays.asList(keptItem.getId()), testCrate.ids("OTHER_TAG"));
+        Assert.assertEquals(keptItem.getName(), testCrate.withId(keptItem.getId()).getName());
+
+        testCrate.removeAll();
+        testCrate.put(createItem());
+        testCrate.close();
+
+        testCrate = new MemoryCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(1, testCrate.count());
+        Assert.assertEquals(0, testCrate.count("TEST_TAG"));
+    }
+
+    @Test
+    public void snapshotStoredAfterInterval() throws InterruptedException
+    {
+        CrateMetrics metrics = new CrateMetrics();
+        Crate.setListener(metrics);
+        CrateMetrics.OperationStats flushStats = metrics.getStats(MemoryCrate.class, CrateOperation.FLUSH);
+        for(int i = 0; i < 5; i++)
+        {
+            testCrate.put(createItem(), "TEST_TAG");
+        }
+        Assert.assertEquals(0, metrics.getStats(MemoryCrate.class, CrateOperation.PUT).getRowsWritten());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while(flushStats.getCount() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, flushStats.getCount());
+        Assert.assertEquals(5, flushStats.getRowsWritten());
+
+        testCrate.flush();
+        Assert.assertEquals(1, flushStats.getCount());
+        Assert.assertEquals(5, testCrate.withTag("TEST_TAG").size());
+        Assert.assertEquals(0, metrics.getStats(MemoryCrate.class, CrateOperation.ITERATE).getRowsRead());
+    }
+
+    @Test
+    public void snapshotAfterCloseDoesNotReopen() throws Exception
+    {
+        MemoryCrate otherCrate = new MemoryCrate(temporaryFolder.getRoot());
+        testCrate.put(createItem());
+        testCrate.close();
+
+        // the snapshot scheduled by the closed instance stores the other instance's change
+        SimpleItem otherItem = createItem();
+        otherCrate.put(otherItem);
+        Thread.sleep(500);
+        otherCrate.close();
+        Assert.assertFalse(TestHelper.isEngineOpen(MemoryCrate.class));
+
+        testCrate = new MemoryCrate(temporaryFolder.getRoot());
+        Assert.assertEquals(2, testCrate.count());
+    }
+
+    private SimpleItem createItem()
+    {
+        SimpleItem item = new SimpleItem("ID_" + itemCount++);
+        item.setName("NAME_" + item.getId());
+        return item;
+    }
+}
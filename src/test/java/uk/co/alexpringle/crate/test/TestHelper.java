@@ -1,6 +1,7 @@
 package uk.co.alexpringle.crate.test;
 
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import org.robolectric.RuntimeEnvironment;
@@ -10,6 +11,7 @@ import uk.co.alexpringle.crate.test.crates.SimpleItem;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 public class TestHelper
@@ -45,6 +47,8 @@ public class TestHelper
 
             }
         };
+        // crates open the database with write-ahead logging, which can not be switched off while they are open
+        helperSQLiteOpenHelper.setWriteAheadLoggingEnabled(true);
     }
 
     public void clearCrateDatabase() throws NoSuchFieldException, IllegalAccessException
@@ -68,6 +72,84 @@ public class TestHelper
         }
     }
 
+    public void execSQL(String sql, Object... bindArgs)
+    {
+        SQLiteDatabase database = helperSQLiteOpenHelper.getWritableDatabase();
+        database.execSQL(sql, bindArgs);
+        database.close();
+    }
+
+    public long countRows(String tableName)
+    {
+        SQLiteDatabase database = helperSQLiteOpenHelper.getReadableDatabase();
+        long rowCount = DatabaseUtils.queryNumEntries(database, tableName);
+        database.close();
+        return rowCount;
+    }
+
+    public long queryLong(String sql, String... selectionArgs)
+    {
+        SQLiteDatabase database = helperSQLiteOpenHelper.getReadableDatabase();
+        long result = DatabaseUtils.longForQuery(database, sql, selectionArgs);
+        database.close();
+        return result;
+    }
+
+    public String explainQueryPlan(String sql, String... selectionArgs)
+    {
+        SQLiteDatabase database = helperSQLiteOpenHelper.getReadableDatabase();
+        StringBuilder queryPlan = new StringBuilder();
+        Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        if(cursor.moveToFirst())
+        {
+            do
+            {
+                queryPlan.append(cursor.getString(cursor.getColumnIndex("detail")));
+                queryPlan.append("\n");
+            }
+            while (cursor.moveToNext());
+        }
+        cursor.close();
+        database.close();
+        return queryPlan.toString();
+    }
+
+    public static SQLiteOpenHelper getSQLiteOpenHelper(Crate<?> crate) throws NoSuchFieldException, IllegalAccessException
+    {
+        Field engineField = Crate.class.getDeclaredField("storageEngine");
+        engineField.setAccessible(true);
+        Object engine = engineField.get(crate);
+        engineField.setAccessible(false);
+
+        Field helperField = engine.getClass().getDeclaredField("helper");
+        helperField.setAccessible(true);
+        SQLiteOpenHelper helper = (SQLiteOpenHelper) helperField.get(engine);
+        helperField.setAccessible(false);
+        return helper;
+    }
+
+    /**
+     * @return True if an instance of the crate class still holds the table's shared storage engine
+     */
+    public static boolean isEngineOpen(Class<? extends Crate<?>> crateClass) throws Exception
+    {
+        Class<?> registryClass = Class.forName("uk.co.alexpringle.crate.StorageEngineRegistry");
+        Field registrationsField = registryClass.getDeclaredField("registrations");
+        registrationsField.setAccessible(true);
+        Map<?,?> registrations = (Map<?,?>) registrationsField.get(null);
+        registrationsField.setAccessible(false);
+        // the registry's methods are static and synchronized
+        synchronized(registryClass)
+        {
+            return registrations.containsKey(tableName(crateClass));
+        }
+    }
+
+    public static String tableName(Class<? extends Crate<?>> crateClass)
+    {
+        return crateClass.getName().replace(".","");
+    }
+
     public SimpleItem createRandomSimpleItem()
     {
         SimpleItem simpleItem = new SimpleItem();
@@ -0,0 +1,191 @@
+package uk.co.alexpringle.crate.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import uk.co.alexpringle.crate.test.crates.SimpleItem;
+import uk.co.alexpringle.crate.test.crates.WriteBehindCrate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WriteBehindCrateTest
+{
+    private TestHelper testHelper;
+    private WriteBehindCrate testCrate;
+    private String tableName;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ShadowLog.stream = System.out;
+        testHelper = new TestHelper();
+        testCrate = new WriteBehindCrate(RuntimeEnvironment.application);
+        tableName = TestHelper.tableName(WriteBehindCrate.class);
+        // opens the crate's table before writes are buffered
+        testCrate.removeAll();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        testCrate.flush();
+        testHelper.clearCrateDatabase();
+        testCrate.close();
+    }
+
+    @Test
+    public void putIsBufferedUntilFlush()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+
+        Assert.assertEquals(0, testHelper.countRows(tableName));
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+        Assert.assertTrue(testCrate.exists(randomItem.getId()));
+
+        testCrate.flush();
+        Assert.assertEquals(1, testHelper.countRows(tableName));
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+    }
+
+    @Test
+    public void lastWriteWins()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "TEST_TAG");
+        for(int i = 0; i < WriteBehindCrate.WRITE_BUFFER_SIZE * 2; i++)
+        {
+            SimpleItem updatedItem = testHelper.createRandomSimpleItem();
+            updatedItem.setId(randomItem.getId());
+            testCrate.put(updatedItem);
+            randomItem = updatedItem;
+        }
+
+        Assert.assertEquals(0, testHelper.countRows(tableName));
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+
+        testCrate.flush();
+        Assert.assertEquals(1, testHelper.countRows(tableName));
+        List<SimpleItem> taggedItems = testCrate.withTag("TEST_TAG");
+        Assert.assertEquals(1, taggedItems.size());
+        Assert.assertEquals(randomItem, taggedItems.get(0));
+    }
+
+    @Test
+    public void removeIsBuffered()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.flush();
+
+        testCrate.removeWithId(randomItem.getId());
+        Assert.assertEquals(1, testHelper.countRows(tableName));
+        Assert.assertNull(testCrate.withId(randomItem.getId()));
+        Assert.assertFalse(testCrate.exists(randomItem.getId()));
+
+        testCrate.flush();
+        Assert.assertEquals(0, testHelper.countRows(tableName));
+    }
+
+    @Test
+    public void putAfterRemoveDropsTag()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "TEST_TAG");
+        testCrate.flush();
+
+        testCrate.removeWithId(randomItem.getId());
+        testCrate.put(randomItem);
+        testCrate.flush();
+
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+        Assert.assertTrue(testCrate.withTag("TEST_TAG").isEmpty());
+    }
+
+    @Test
+    public void taggedPutMovesItem()
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem, "INBOX");
+        testCrate.flush();
+
+        testCrate.put(randomItem, "ARCHIVE");
+        testCrate.flush();
+
+        Assert.assertTrue(testCrate.withTag("INBOX").isEmpty());
+        Assert.assertEquals(1, testCrate.withTag("ARCHIVE").size());
+    }
+
+    @Test
+    public void withIdsSeesBufferedWrites()
+    {
+        List<SimpleItem> randomItems = testHelper.createRandomSimpleItems(3);
+        testCrate.put(randomItems.get(0));
+        testCrate.put(randomItems.get(1));
+        testCrate.flush();
+        testCrate.removeWithId(randomItems.get(0).getId());
+        testCrate.put(randomItems.get(2));
+
+        List<String> itemIds = new ArrayList<String>();
+        for(SimpleItem randomItem : randomItems)
+        {
+            itemIds.add(randomItem.getId());
+        }
+        Map<String,SimpleItem> items = testCrate.withIds(itemIds);
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals(randomItems.get(1), items.get(randomItems.get(1).getId()));
+        Assert.assertEquals(randomItems.get(2), items.get(randomItems.get(2).getId()));
+    }
+
+    @Test
+    public void fullBufferIsFlushed()
+    {
+        List<SimpleItem> randomItems = testHelper.createRandomSimpleItems(WriteBehindCrate.WRITE_BUFFER_SIZE);
+        for(int i = 0; i < randomItems.size() - 1; i++)
+        {
+            testCrate.put(randomItems.get(i));
+        }
+        Assert.assertEquals(0, testHelper.countRows(tableName));
+
+        testCrate.put(randomItems.get(randomItems.size() - 1));
+        Assert.assertEquals(WriteBehindCrate.WRITE_BUFFER_SIZE, testHelper.countRows(tableName));
+    }
+
+    @Test
+    public void queriesSeeBufferedWrites()
+    {
+        List<SimpleItem> randomItems = testHelper.createRandomSimpleItems(5);
+        for(SimpleItem randomItem : randomItems)
+        {
+            testCrate.put(randomItem, "TEST_TAG");
+        }
+        testCrate.removeWithId(randomItems.get(0).getId());
+
+        Assert.assertEquals(4, testCrate.all().size());
+        Assert.assertEquals(4, testCrate.count());
+        Assert.assertEquals(4, testCrate.ids("TEST_TAG").size());
+        Assert.assertEquals(4, testCrate.withTag("TEST_TAG").size());
+    }
+
+    @Test
+    public void closeFlushesBuffer() throws Exception
+    {
+        SimpleItem randomItem = testHelper.createRandomSimpleItem();
+        testCrate.put(randomItem);
+        testCrate.close();
+
+        Assert.assertEquals(1, testHelper.countRows(tableName));
+        testCrate = new WriteBehindCrate(RuntimeEnvironment.application);
+        Assert.assertEquals(randomItem, testCrate.withId(randomItem.getId()));
+    }
+}
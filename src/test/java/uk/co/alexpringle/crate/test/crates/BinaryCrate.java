@@ -0,0 +1,22 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.BinaryItemCodec;
+import uk.co.alexpringle.crate.Crate;
+import uk.co.alexpringle.crate.ItemCodec;
+
+import java.lang.reflect.Type;
+
+public class BinaryCrate extends Crate<SimpleItem>
+{
+    public BinaryCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected ItemCodec<SimpleItem> createItemCodec(Type itemType)
+    {
+        return new BinaryItemCodec<SimpleItem>(SimpleItem.class);
+    }
+}
@@ -0,0 +1,40 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Blocks in {@link #beforeSave(SimpleItem)} for the item with id {@link #BLOCKING_ID}, so tests can hold a write
+ * transaction open.
+ */
+public class BlockingCrate extends Crate<SimpleItem>
+{
+    public static final String BLOCKING_ID = "BLOCKING_ID";
+
+    public final CountDownLatch blocked = new CountDownLatch(1);
+    public final CountDownLatch release = new CountDownLatch(1);
+
+    public BlockingCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected void beforeSave(SimpleItem item)
+    {
+        if(BLOCKING_ID.equals(item.getId()))
+        {
+            blocked.countDown();
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+public class CachedCrate extends Crate<SimpleItem>
+{
+    public CachedCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected int getCacheSize()
+    {
+        return 100;
+    }
+}
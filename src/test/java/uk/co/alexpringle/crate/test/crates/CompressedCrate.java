@@ -0,0 +1,18 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+public class CompressedCrate extends Crate<SimpleItem>
+{
+    public CompressedCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected int getCompressionThreshold()
+    {
+        return 512;
+    }
+}
@@ -0,0 +1,11 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+
+public class ExtendedSimpleCrate extends SimpleCrate
+{
+    public ExtendedSimpleCrate(Context context)
+    {
+        super(context);
+    }
+}
@@ -0,0 +1,12 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+public class IndexedCrate extends Crate<IndexedItem>
+{
+    public IndexedCrate(Context context)
+    {
+        super(context);
+    }
+}
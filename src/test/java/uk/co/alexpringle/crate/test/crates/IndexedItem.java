@@ -0,0 +1,67 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import uk.co.alexpringle.crate.HasId;
+import uk.co.alexpringle.crate.Indexed;
+
+public class IndexedItem implements HasId
+{
+    private String id;
+    @Indexed
+    private String name;
+    @Indexed
+    private int score;
+    @Indexed
+    private Double rating;
+    @Indexed
+    private boolean enabled;
+    private String note;
+
+    public IndexedItem()
+    {
+
+    }
+
+    public IndexedItem(String id, String name, int score, Double rating, boolean enabled)
+    {
+        this.id = id;
+        this.name = name;
+        this.score = score;
+        this.rating = rating;
+        this.enabled = enabled;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getScore()
+    {
+        return score;
+    }
+
+    public Double getRating()
+    {
+        return rating;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public String getNote()
+    {
+        return note;
+    }
+
+    public void setNote(String note)
+    {
+        this.note = note;
+    }
+}
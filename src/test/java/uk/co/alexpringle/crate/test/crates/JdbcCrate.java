@@ -0,0 +1,13 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import uk.co.alexpringle.crate.Crate;
+
+import java.io.File;
+
+public class JdbcCrate extends Crate<SimpleItem>
+{
+    public JdbcCrate(File directory)
+    {
+        super(directory);
+    }
+}
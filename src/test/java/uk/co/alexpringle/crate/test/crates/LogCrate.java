@@ -0,0 +1,19 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import uk.co.alexpringle.crate.Crate;
+
+import java.io.File;
+
+public class LogCrate extends Crate<SimpleItem>
+{
+    public LogCrate(File directory)
+    {
+        super(directory);
+    }
+
+    @Override
+    protected boolean isLogStructured()
+    {
+        return true;
+    }
+}
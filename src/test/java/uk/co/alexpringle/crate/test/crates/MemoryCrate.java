@@ -0,0 +1,25 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import uk.co.alexpringle.crate.Crate;
+
+import java.io.File;
+
+public class MemoryCrate extends Crate<SimpleItem>
+{
+    public MemoryCrate(File directory)
+    {
+        super(directory);
+    }
+
+    @Override
+    protected boolean isHeldInMemory()
+    {
+        return true;
+    }
+
+    @Override
+    protected long getSnapshotIntervalMillis()
+    {
+        return 50;
+    }
+}
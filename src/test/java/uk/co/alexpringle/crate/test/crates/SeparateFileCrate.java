@@ -0,0 +1,20 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+public class SeparateFileCrate extends Crate<SimpleItem>
+{
+    public static final String DATABASE_NAME = "SEPARATE_FILE_CRATE_DATABASE";
+
+    public SeparateFileCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected String getDatabaseName()
+    {
+        return DATABASE_NAME;
+    }
+}
@@ -0,0 +1,31 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+import java.nio.charset.Charset;
+
+/**
+ * Items of version 0 stored their name as "title"
+ */
+public class VersionedCrate extends Crate<SimpleItem>
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public VersionedCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected int getItemVersion()
+    {
+        return 1;
+    }
+
+    @Override
+    protected byte[] upcast(byte[] payload, int storedVersion)
+    {
+        return new String(payload, UTF_8).replace("\"title\":", "\"name\":").getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,26 @@
+package uk.co.alexpringle.crate.test.crates;
+
+import android.content.Context;
+import uk.co.alexpringle.crate.Crate;
+
+public class WriteBehindCrate extends Crate<SimpleItem>
+{
+    public static final int WRITE_BUFFER_SIZE = 10;
+
+    public WriteBehindCrate(Context context)
+    {
+        super(context);
+    }
+
+    @Override
+    protected int getWriteBufferSize()
+    {
+        return WRITE_BUFFER_SIZE;
+    }
+
+    @Override
+    protected long getWriteBufferDelayMillis()
+    {
+        return 60000;
+    }
+}